@@ -11,200 +11,332 @@
 package com.github.jikoo.regionerator;
 
 import com.github.jikoo.regionerator.database.DatabaseAdapter;
+import com.github.jikoo.regionerator.database.FlagSnapshot;
+import com.github.jikoo.regionerator.database.QueuedWriteAdapter;
+import com.github.jikoo.regionerator.database.StorageMode;
 import com.github.jikoo.regionerator.util.BatchExpirationLoadingCache;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.CompactTimestamp;
 import com.github.jikoo.regionerator.util.yaml.Config;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Utility for storing and loading chunk visit timestamps.
  */
 public class ChunkFlagger {
 
+	/** Ticks after startup before the first maintenance run. */
+	private static final long MAINTENANCE_DELAY_TICKS = 20L * 60 * 10;
+
 	private final Regionerator plugin;
-	private final DatabaseAdapter adapter;
-	private final BatchExpirationLoadingCache<String, FlagData> flagCache;
+	private final QueuedWriteAdapter adapter;
+	private final Map<String, WorldFlags> worldFlags = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor loadExecutor;
+	private final ExecutorService flushExecutor;
+	private final ScheduledExecutorService delayExecutor;
+	private final AtomicBoolean maintaining = new AtomicBoolean();
+	/** Flags cached for all worlds. The configured maximum cache size applies to all worlds together. */
+	private final AtomicInteger cachedFlags = new AtomicInteger();
+	private final @Nullable LegacyFlagConverter converter;
+	private volatile boolean converted = false;
+	private final AtomicBoolean importing = new AtomicBoolean();
 
 	ChunkFlagger(@NotNull Regionerator plugin) {
 		this.plugin = plugin;
 
 		try {
 			// Set up database adapter
-			adapter = DatabaseAdapter.getAdapter(plugin);
+			adapter = new QueuedWriteAdapter(plugin, DatabaseAdapter.getAdapter(plugin));
 		} catch (Exception e) {
 			throw new RuntimeException("An error occurred while setting up the database", e);
 		}
 
-		Config config = plugin.config();
-		this.flagCache = new BatchExpirationLoadingCache.Builder<String, FlagData>()
-				.setRetention(config.getCacheRetention())
-				.setCacheMax(config.getCacheMaxSize())
-				.setFrequency(config.getCacheExpirationFrequency())
-				.setBatchMax(config.getCacheBatchMax())
-				.setBatchDelay(config.getCacheBatchDelay())
-				.build(this::loadFlag, this::expireBatch);
+		// Loads and saves for all worlds share threads so that the database is not flooded.
+		// The main thread must never wait for a load or run one itself.
+		loadExecutor = BatchExpirationLoadingCache.newLoadExecutor("Regionerator Flag Loader",
+				plugin.config().getCacheLoadThreads(), plugin.config().getCacheMaxQueuedLoads(),
+				() -> !Bukkit.isPrimaryThread());
+		flushExecutor = BatchExpirationLoadingCache.newFlushExecutor("Regionerator Flag Writer");
+		delayExecutor = BatchExpirationLoadingCache.newDelayExecutor("Regionerator Flag Batch Delay");
+
+		if (LegacyFlagConverter.isConversionRequired(plugin.getDataFolder())) {
+			// Convert in the background. Deletion waits for conversion to finish.
+			converter = new LegacyFlagConverter(plugin, adapter, () -> {
+				converted = true;
+				reloadCached();
+			});
+			converter.start();
+		} else {
+			converter = null;
+		}
+		// Stored flags may also be converted in the background when the database is opened.
+		adapter.getConversion().thenRun(this::reloadCached);
 
-		convertOldFlagsFile();
-		convertOldPerWorldFlagFiles();
-		flagCache.lazyExpireAll();
+		// Save changed flags periodically so that a crash loses at most one interval of flags.
+		long checkpointTicks = plugin.config().getCacheCheckpointInterval() / 50;
+		Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::checkpoint, checkpointTicks, checkpointTicks);
 
-		// Even if cache is stagnant, save every 10 minutes
-		Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, flagCache::lazyExpireAll, 10 * 60 * 20, 10 * 60 * 20);
+		long maintenanceTicks = plugin.config().getDatabaseMaintenanceInterval() / 50;
+		if (maintenanceTicks > 0) {
+			Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::maintain,
+					Math.min(maintenanceTicks, MAINTENANCE_DELAY_TICKS), maintenanceTicks);
+		}
 	}
 
 	/**
-	 * For use in cache. Don't call manually.
+	 * Gets the flag namespace for a world, creating it if necessary.
 	 *
-	 * @param key the key of the FlagData
-	 * @return the FlagData
+	 * @param worldName the world name
+	 * @return the world's flag namespace
 	 */
-	private FlagData loadFlag(String key) {
-		try {
-			return new FlagData(key, adapter.get(key));
-		} catch (Exception e) {
-			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
-			return new FlagData(key, Config.FLAG_OH_NO);
-		}
+	private @NotNull WorldFlags getWorldFlags(@NotNull String worldName) {
+		return worldFlags.computeIfAbsent(worldName, WorldFlags::new);
 	}
 
 	/**
-	 * For use in cache. Don't call manually.
-	 *
-	 * @param expiredData the batch of expired FlagData
+	 * Save all changed flags without removing them from the cache.
 	 */
-	private void expireBatch(Collection<FlagData> expiredData) {
-		// Only attempt to save if dirty to minimize write time
-		expiredData.removeIf(next -> !next.isDirty() || next.getLastVisit() == Config.FLAG_OH_NO);
-
-		if (expiredData.isEmpty()) {
-			return;
+	private void checkpoint() {
+		for (WorldFlags flags : worldFlags.values()) {
+			flags.visits.checkpoint();
 		}
+	}
 
-		try {
-			adapter.update(expiredData);
-
-			// Flag as no longer dirty to reduce saves if data is still in use
-			expiredData.forEach(FlagData::wash);
-		} catch (Exception e) {
-			plugin.getLogger().log(Level.SEVERE, "Exception updating chunk flags", e);
+	/**
+	 * Drops cached flags so that they are loaded again including values written directly to the database. Unsaved
+	 * flags are kept. Flag indices are reloaded for the same reason.
+	 */
+	private void reloadCached() {
+		for (WorldFlags flags : worldFlags.values()) {
+			flags.visits.invalidateAll();
+			loadIndex(flags);
 		}
 	}
 
 	/**
-	 * Converts old flags file.
+	 * Loads the index of flagged chunks of an enabled world in the background. Flags set while loading are indexed as
+	 * they are set, so loading only adds stored flags.
+	 *
+	 * @param flags the world's flag namespace
 	 */
-	private void convertOldFlagsFile() {
-		File oldFlagsFile = new File(this.plugin.getDataFolder(), "flags.yml");
-		if (!oldFlagsFile.exists()) {
+	private void loadIndex(@NotNull WorldFlags flags) {
+		if (!plugin.config().isEnabled(flags.worldName)) {
 			return;
 		}
-		this.plugin.getLogger().info("Beginning converting flags.yml");
-		YamlConfiguration oldFlags = YamlConfiguration.loadConfiguration(oldFlagsFile);
-		for (String world : oldFlags.getKeys(false)) {
-			if (!oldFlags.isConfigurationSection(world)) {
-				continue;
-			}
 
-			ConfigurationSection worldSection = oldFlags.getConfigurationSection(world);
-			if (worldSection == null) {
-				continue;
+		flags.index.setReady(false);
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			try {
+				adapter.forEachRegionBitmap(flags.worldName, flags.index::load);
+				// Imported flags are indexed once the import completes.
+				flags.index.setReady(!importing.get());
+				plugin.debug(DebugLevel.LOW, () -> String.format("Indexed %s flagged regions in %s.",
+						flags.index.getRegionCount(), flags.worldName));
+			} catch (Exception e) {
+				plugin.getLogger().log(Level.WARNING, "Exception indexing chunk flags of " + flags.worldName, e);
 			}
+		});
+	}
 
-			for (String chunkPath : worldSection.getKeys(false)) {
-				if (!worldSection.isLong(chunkPath)) {
-					continue;
-				}
+	/**
+	 * Gets whether flags of old versions or stored in older formats are still being converted. If conversion failed,
+	 * flags remain incomplete until conversion resumes on the next startup.
+	 *
+	 * @return true if conversion is in progress or did not finish
+	 */
+	public boolean isConverting() {
+		CompletableFuture<Void> conversion = adapter.getConversion();
+		return converter != null && !converted || !conversion.isDone() || conversion.isCompletedExceptionally();
+	}
 
-				String[] chunk = chunkPath.split("_");
-				if (chunk.length != 2) {
-					// Invalid data, skip
-					continue;
-				}
+	/**
+	 * Gets whether flags are being imported from a snapshot. Imported flags are not visible until the import completes.
+	 *
+	 * @return true if an import is in progress
+	 */
+	public boolean isImporting() {
+		return importing.get();
+	}
 
-				int chunkX;
-				int chunkZ;
+	/**
+	 * Removes stored flags that no longer prevent deletion and releases the space they used.
+	 *
+	 * <p>Expired flags are removed from enabled worlds. Values as of deletion are kept until one flag duration after
+	 * they expired. All values of disabled worlds are only removed if configured.
+	 */
+	private void maintain() {
+		if (plugin.isDeletionActive() || isConverting() || isImporting() || !maintaining.compareAndSet(false, true)) {
+			return;
+		}
 
-				try {
-					chunkX = Integer.parseInt(chunk[0]);
-					chunkZ = Integer.parseInt(chunk[1]);
-				} catch (NumberFormatException e) {
-					// Invalid data, skip
-					continue;
+		try {
+			long now = System.currentTimeMillis();
+			long pruned = 0;
+			int dropped = 0;
+			for (String worldName : adapter.getWorldNames()) {
+				long flagDuration = plugin.config().getFlagDuration(worldName);
+				if (flagDuration >= 0) {
+					pruned += adapter.prune(worldName, now, now - flagDuration);
+				} else if (plugin.config().isPruneDisabledWorlds()) {
+					adapter.dropWorld(worldName);
+					// Reload any cached flags as missing.
+					WorldFlags flags = worldFlags.get(worldName);
+					if (flags != null) {
+						flags.visits.invalidateAll();
+					}
+					++dropped;
 				}
-
-				flagCache.get(this.getFlagDbId(world, chunkX, chunkZ))
-						.thenAccept(flagData -> flagData.importOldValue(worldSection.getLong(chunkPath)));
 			}
-		}
-		// Rename old flag file
-		if (oldFlagsFile.renameTo(new File(oldFlagsFile.getParentFile(), "flags.yml.bak"))) {
-			this.plugin.getLogger().info("Finished converting flags.yml, renamed to flags.yml.bak. Delete at convenience if all appears well.");
-		} else {
-			this.plugin.getLogger().warning("Finished converting flags.yml but could not rename! Conversion will run again on startup.");
+			long reclaimed = adapter.compact();
+			plugin.getLogger().info(String.format("Database maintenance removed %s flags and all flags of %s disabled worlds and reclaimed %s KiB.",
+					pruned, dropped, reclaimed / 1024));
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception maintaining database", e);
+		} finally {
+			maintaining.set(false);
 		}
 	}
 
 	/**
-	 * Converts old per-region flag files.
+	 * Rebuilds the database, returning all unused space to the file system. Databases created by older versions only
+	 * release space during maintenance once rebuilt. Flags are not saved until the rebuild completes, which may take
+	 * several minutes for large databases.
+	 *
+	 * @return a future completed with the number of bytes reclaimed
 	 */
-	private void convertOldPerWorldFlagFiles() {
-		File oldFlagsFolder = new File(this.plugin.getDataFolder(), "flags");
-		if (!oldFlagsFolder.exists() || !oldFlagsFolder.isDirectory()) {
-			return;
+	public @NotNull CompletableFuture<Long> rebuild() {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		if (!maintaining.compareAndSet(false, true)) {
+			future.completeExceptionally(new IllegalStateException("Database maintenance is already running"));
+			return future;
 		}
-		this.plugin.getLogger().info("Beginning converting flags folder.");
 
-		Pattern chunkCoordsSplitter = Pattern.compile("_");
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			try {
+				future.complete(adapter.rebuild());
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			} finally {
+				maintaining.set(false);
+			}
+		});
+		return future;
+	}
 
-		File[] worldDirectories = oldFlagsFolder.listFiles();
-		if (worldDirectories == null) {
-			return;
+	/**
+	 * Loads a flag from the database.
+	 *
+	 * @param worldName the world name
+	 * @param chunkKey the {@link ChunkKey} of the FlagData
+	 * @param onDelete whether to load the value as of last deletion
+	 * @return the chunk's last visit timestamp
+	 */
+	private long loadFlag(@NotNull String worldName, long chunkKey, boolean onDelete) {
+		try {
+			return onDelete ? adapter.getOnDelete(worldName, chunkKey) : adapter.get(worldName, chunkKey);
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
+			return Config.FLAG_OH_NO;
 		}
+	}
 
-		for (File worldFlagsFolder : worldDirectories) {
-			if (!worldFlagsFolder.isDirectory()) continue;
+	/**
+	 * For use in cache. Don't call manually.
+	 *
+	 * <p>If the database stores entire regions at once, the remainder of the region is primed in the cache.
+	 *
+	 * @param flags the world's flag namespace
+	 * @param chunkKey the {@link ChunkKey} of the FlagData
+	 * @return the chunk's last visit timestamp as a {@link CompactTimestamp} code
+	 */
+	private long loadVisit(@NotNull WorldFlags flags, long chunkKey) {
+		if (!adapter.isRegionGranular()) {
+			return CompactTimestamp.encode(loadFlag(flags.worldName, chunkKey, false));
+		}
 
-			String worldName = worldFlagsFolder.getName();
+		int regionX = ChunkKey.getX(chunkKey) >> 5;
+		int regionZ = ChunkKey.getZ(chunkKey) >> 5;
+		long[] region;
+		try {
+			region = adapter.getRegion(flags.worldName, regionX, regionZ);
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
+			return CompactTimestamp.OH_NO;
+		}
 
-			File[] regionFlagsFiles = worldFlagsFolder.listFiles();
-			if (regionFlagsFiles == null) {
-				continue;
+		int requested = ChunkKey.getRegionIndex(chunkKey);
+		for (int index = 0; index < region.length; ++index) {
+			if (index != requested) {
+				flags.visits.prime(ChunkKey.ofRegionIndex(regionX, regionZ, index),
+						CompactTimestamp.encode(region[index]));
 			}
+		}
 
-			for (File regionFlagsFile : regionFlagsFiles) {
-				YamlConfiguration regionConfig = YamlConfiguration.loadConfiguration(regionFlagsFile);
-
-				Map<String, Object> values = regionConfig.getValues(false);
-
-				for (Map.Entry<String, Object> entry : values.entrySet()) {
-					String[] args = chunkCoordsSplitter.split(entry.getKey());
+		return CompactTimestamp.encode(region[requested]);
+	}
 
-					int chunkX = Integer.parseInt(args[0]);
-					int chunkZ = Integer.parseInt(args[1]);
+	/**
+	 * For use in cache. Don't call manually.
+	 *
+	 * @param worldName the world name
+	 * @param chunkKeys the {@link ChunkKey ChunkKeys} of the FlagData
+	 * @return the chunks' last visit timestamps as {@link CompactTimestamp} codes
+	 */
+	private @NotNull long[] loadVisits(@NotNull String worldName, @NotNull long[] chunkKeys) {
+		long[] flags;
+		try {
+			flags = adapter.getAll(worldName, chunkKeys);
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
+			flags = new long[chunkKeys.length];
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+		}
+		for (int i = 0; i < flags.length; ++i) {
+			flags[i] = CompactTimestamp.encode(flags[i]);
+		}
+		return flags;
+	}
 
-					flagCache.get(this.getFlagDbId(worldName, chunkX, chunkZ))
-							.thenAccept(flagData -> flagData.importOldValue((long) entry.getValue()));
-				}
+	/**
+	 * For use in cache. Don't call manually.
+	 *
+	 * @param worldName the world name
+	 * @param expiredData the batch of expired unsaved values
+	 */
+	private void expireBatch(@NotNull String worldName, @NotNull BatchExpirationLoadingCache.Batch expiredData) {
+		Collection<FlagData> flags = new ArrayList<>(expiredData.size());
+		for (int i = 0; i < expiredData.size(); ++i) {
+			// Never save values that failed to load.
+			if (expiredData.getValue(i) != CompactTimestamp.OH_NO) {
+				flags.add(new FlagData(expiredData.getKey(i), CompactTimestamp.decode((int) expiredData.getValue(i))));
 			}
 		}
-		// Rename old flag file
-		if (oldFlagsFolder.renameTo(new File(oldFlagsFolder.getParentFile(), "flags.bak"))) {
-			this.plugin.getLogger().info("Finished converting flags folder, renamed to flags.bak. Delete at convenience if all appears well.");
-		} else {
-			this.plugin.getLogger().warning("Finished converting flags folder but could not rename! Conversion will run again on startup.");
+
+		if (flags.isEmpty()) {
+			return;
+		}
+
+		try {
+			adapter.update(worldName, flags);
+		} catch (Exception e) {
+			// The cache keeps the flags marked for saving and retries them.
+			throw new RuntimeException("Exception updating chunk flags of " + worldName, e);
 		}
 	}
 
@@ -220,9 +352,10 @@ public class ChunkFlagger {
 	}
 
 	public void flagChunksInRadius(@NotNull String world, int chunkX, int chunkZ, int radius, long flagTil) {
+		WorldFlags flags = getWorldFlags(world);
 		for (int dX = -radius; dX <= radius; dX++) {
 			for (int dZ = -radius; dZ <= radius; dZ++) {
-				flagChunk(world, chunkX + dX, chunkZ + dZ, flagTil);
+				flagChunk(flags, ChunkKey.of(chunkX + dX, chunkZ + dZ), flagTil);
 			}
 		}
 	}
@@ -236,18 +369,13 @@ public class ChunkFlagger {
 	 * @param flagTil the flag timestamp
 	 */
 	public void flagChunk(@NotNull String world, int chunkX, int chunkZ, long flagTil) {
-		String flagDbId = this.getFlagDbId(world, chunkX, chunkZ);
-		FlagData flagData = this.flagCache.getIfPresent(flagDbId);
-		if (flagData != null) {
-			long current = flagData.getLastVisit();
-			if (current == Config.FLAG_ETERNAL) {
-				return;
-			}
-			flagData.setLastVisit(flagTil);
-		} else {
-			flagData = new FlagData(flagDbId, flagTil, true);
-			flagCache.put(flagDbId, flagData);
-		}
+		flagChunk(getWorldFlags(world), ChunkKey.of(chunkX, chunkZ), flagTil);
+	}
+
+	private void flagChunk(@NotNull WorldFlags flags, long chunkKey, long flagTil) {
+		int code = CompactTimestamp.encode(flagTil);
+		flags.index.flag(chunkKey, () -> flags.visits.merge(chunkKey, code,
+				(current, visit) -> current == CompactTimestamp.ETERNAL ? current : visit));
 	}
 
 	/**
@@ -275,15 +403,111 @@ public class ChunkFlagger {
 	 * @param chunkZ the chunk Z coordinate
 	 */
 	public void unflagChunk(@NotNull String world, int chunkX, int chunkZ) {
-		flagCache.computeIfAbsent(getFlagDbId(world, chunkX, chunkZ), key -> new FlagData(key, Config.FLAG_DEFAULT, true))
-				.setLastVisit(Config.FLAG_DEFAULT);
+		WorldFlags flags = getWorldFlags(world);
+		long chunkKey = ChunkKey.of(chunkX, chunkZ);
+		flags.index.unflag(chunkKey, () -> flags.visits.put(chunkKey, CompactTimestamp.DEFAULT));
+	}
+
+	/**
+	 * Copies all stored flags to another storage mode. The target storage should be empty. Changes made while copying
+	 * may not be included, so migration should be done while the server is idle.
+	 *
+	 * @param storageMode the storage mode to copy flags to
+	 * @return a future completed with the number of flags copied
+	 */
+	public @NotNull CompletableFuture<Long> migrate(@NotNull StorageMode storageMode) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			try {
+				// Write everything currently cached before reading.
+				checkpoint();
+				CompletableFuture.runAsync(() -> {}, flushExecutor).join();
+				adapter.flush();
+
+				DatabaseAdapter target = storageMode.open(plugin, false);
+				try {
+					future.complete(DatabaseAdapter.copyFlags(adapter, target));
+				} finally {
+					target.close();
+				}
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Writes a snapshot of all stored flags to a file.
+	 *
+	 * @param file the snapshot file
+	 * @return a future completed with the number of values written
+	 * @see FlagSnapshot
+	 */
+	public @NotNull CompletableFuture<Long> exportFlags(@NotNull File file) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+			try {
+				// Write everything currently cached before reading.
+				checkpoint();
+				CompletableFuture.runAsync(() -> {}, flushExecutor).join();
+				future.complete(FlagSnapshot.export(adapter, file.toPath()));
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stores all flags from a snapshot file. Imported flags are merged with stored flags, keeping the later of the two.
+	 * Deletion and maintenance wait for the import to complete. Only one import may run at a time.
+	 *
+	 * @param file the snapshot file
+	 * @return a future completed with the number of values read
+	 * @see FlagSnapshot
+	 */
+	public @NotNull CompletableFuture<Long> importFlags(@NotNull File file) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		if (!importing.compareAndSet(false, true)) {
+			future.completeExceptionally(new IllegalStateException("Flags are already being imported"));
+			return future;
+		}
+
+		// Imported flags bypass the index and cache, neither can be trusted until reloaded.
+		for (WorldFlags flags : worldFlags.values()) {
+			flags.index.setReady(false);
+		}
+
+		Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+
+			try {
+				future.complete(FlagSnapshot.importFlags(file.toPath(), adapter));
+			} catch (Exception e) {
+				// Some flags may have been imported regardless.
+				future.completeExceptionally(e);
+			} finally {
+				importing.set(false);
+				reloadCached();
+			}
+		});
+		return future;
 	}
 
 	/**
 	 * Force a save of all flags and close the connection.
 	 */
 	void shutdown() {
-		flagCache.expireAll();
+		if (converter != null) {
+			converter.cancel();
+		}
+		// Finish pending saves before saving everything else.
+		BatchExpirationLoadingCache.awaitShutdown(delayExecutor);
+		BatchExpirationLoadingCache.awaitShutdown(flushExecutor);
+		BatchExpirationLoadingCache.awaitShutdown(loadExecutor);
+		for (WorldFlags flags : worldFlags.values()) {
+			flags.visits.expireAll();
+		}
 		adapter.close();
 	}
 
@@ -293,7 +517,86 @@ public class ChunkFlagger {
 	 * @return the flag cache size
 	 */
 	public int getCached() {
-		return flagCache.getCached();
+		int cached = 0;
+		for (WorldFlags flags : worldFlags.values()) {
+			cached += flags.visits.getCached();
+		}
+		return cached;
+	}
+
+	/**
+	 * Gets the estimated number of bytes used by the flag cache.
+	 *
+	 * @return the flag cache memory usage in bytes
+	 */
+	public long getCacheMemoryUsage() {
+		long bytes = 0;
+		for (WorldFlags flags : worldFlags.values()) {
+			bytes += flags.visits.getMemoryUsage();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of regions with flagged chunks in the flag indices.
+	 *
+	 * @return the number of indexed regions
+	 */
+	public int getIndexedRegions() {
+		int regions = 0;
+		for (WorldFlags flags : worldFlags.values()) {
+			regions += flags.index.getRegionCount();
+		}
+		return regions;
+	}
+
+	/**
+	 * Gets the number of flags changed since the last checkpoint.
+	 *
+	 * @return the number of unsaved flags
+	 */
+	public int getUnsaved() {
+		int unsaved = 0;
+		for (WorldFlags flags : worldFlags.values()) {
+			unsaved += flags.visits.getDirty();
+		}
+		return unsaved;
+	}
+
+	/**
+	 * Gets the number of chunks with flags waiting to be written to the database.
+	 *
+	 * @return the number of queued writes
+	 */
+	public int getQueuedWrites() {
+		return adapter.getQueuedWrites();
+	}
+
+	/**
+	 * Gets the number of flags written by the most recent database commit.
+	 *
+	 * @return the size of the last commit
+	 */
+	public int getLastCommitSize() {
+		return adapter.getLastCommitSize();
+	}
+
+	/**
+	 * Gets the time taken by the most recent database commit.
+	 *
+	 * @return the duration of the last commit in milliseconds
+	 */
+	public long getLastCommitLatency() {
+		return adapter.getLastCommitLatency();
+	}
+
+	/**
+	 * Gets the number of flag loads waiting for a loading thread.
+	 *
+	 * @return the load queue size
+	 */
+	public int getQueuedLoads() {
+		return loadExecutor.getQueue().size();
 	}
 
 	/**
@@ -302,7 +605,11 @@ public class ChunkFlagger {
 	 * @return the flag cache deletion queue size
 	 */
 	public int getQueued() {
-		return flagCache.getQueued();
+		int queued = 0;
+		for (WorldFlags flags : worldFlags.values()) {
+			queued += flags.visits.getQueued();
+		}
+		return queued;
 	}
 
 	/**
@@ -314,133 +621,162 @@ public class ChunkFlagger {
 	 * @return a CompletableFuture supplying a FlagData
 	 */
 	public CompletableFuture<FlagData> getChunkFlag(@NotNull World world, int chunkX, int chunkZ) {
-		return this.flagCache.get(getFlagDbId(world.getName(), chunkX, chunkZ)).thenApply(flagData -> {
+		WorldFlags flags = getWorldFlags(world.getName());
+		long chunkKey = ChunkKey.of(chunkX, chunkZ);
+		if (!flags.index.mayBeFlagged(chunkKey)) {
+			// Never flagged, nothing to load.
+			return CompletableFuture.completedFuture(new FlagData(chunkKey, Config.FLAG_DEFAULT));
+		}
+
+		BatchExpirationLoadingCache visits = flags.visits;
+		return visits.get(chunkKey).thenApply(code -> {
 			// Ensure changing config value allows deleting fresh chunks.
-			if (flagData.getLastVisit() == Long.MAX_VALUE && plugin.config().isDeleteFreshChunks(world)) {
-				flagData.setLastVisit(Config.FLAG_DEFAULT);
+			if (code == CompactTimestamp.GENERATED && plugin.config().isDeleteFreshChunks(world)) {
+				visits.computeIfPresent(chunkKey,
+						current -> current == CompactTimestamp.GENERATED ? CompactTimestamp.DEFAULT : current);
+				return new FlagData(chunkKey, Config.FLAG_DEFAULT);
 			}
-			return flagData;
+			return new FlagData(chunkKey, CompactTimestamp.decode(code.intValue()));
 		});
 	}
 
+	/**
+	 * Gets a {@link CompletableFuture} which completes once the flags of every chunk in a region are cached.
+	 *
+	 * <p>Missing flags are loaded from the database together instead of chunk by chunk. Chunks that were never flagged
+	 * according to the world's index are skipped.
+	 *
+	 * @param world the world
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return a CompletableFuture completing when the region is loaded
+	 */
+	public CompletableFuture<Void> prefetchRegion(@NotNull World world, int regionX, int regionZ) {
+		WorldFlags flags = getWorldFlags(world.getName());
+		long[] bitmap = flags.index.getBitmap(regionX, regionZ);
+		long[] chunkKeys = new long[ChunkKey.CHUNKS_PER_REGION];
+		int count = 0;
+		for (int index = 0; index < chunkKeys.length; ++index) {
+			if (bitmap == null || (bitmap[index >> 6] & 1L << index) != 0) {
+				chunkKeys[count++] = ChunkKey.ofRegionIndex(regionX, regionZ, index);
+			}
+		}
+
+		if (count == 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return flags.visits.getAll(count == chunkKeys.length ? chunkKeys : Arrays.copyOf(chunkKeys, count))
+				.thenAccept(values -> {});
+	}
+
 	/**
 	 * Gets a {@link CompletableFuture} providing a chunk's {@link FlagData} as of last delete from the database.
 	 *
+	 * <p>Values as of deletion are rarely requested and are read directly rather than cached.
+	 *
 	 * @param world the world name
 	 * @param chunkX the chunk X coordinate
 	 * @param chunkZ the chunk Z coordinate
 	 * @return a {@link CompletableFuture<FlagData>}
 	 */
 	public CompletableFuture<FlagData> getChunkFlagOnDelete(@NotNull World world, int chunkX, int chunkZ) {
-		return this.flagCache.get(getFlagDbId(world.getName(), chunkX, chunkZ) + "_old");
+		long chunkKey = ChunkKey.of(chunkX, chunkZ);
+		String worldName = world.getName();
+		return CompletableFuture.supplyAsync(() -> new FlagData(chunkKey, loadFlag(worldName, chunkKey, true)), loadExecutor);
 	}
 
-	 /**
-	 * Gets a unique identifier for a chunk for use in the database.
-	 *
-	 * @param worldName the world name
-	 * @param chunkX the chunk X coordinate
-	 * @param chunkZ the chunk Z coordinate
-	 * @return the ID of the chunk for database use
+	/**
+	 * A per-world flag namespace. Chunks within the namespace are keyed by {@link ChunkKey}. Flags are cached as
+	 * {@link CompactTimestamp} codes.
 	 */
-	@NotNull
-	@Contract(pure = true)
-	private String getFlagDbId(@NotNull String worldName, int chunkX, int chunkZ) {
-		return worldName + "_" + chunkX + '_' + chunkZ;
+	private final class WorldFlags {
+
+		private final String worldName;
+		private final BatchExpirationLoadingCache visits;
+		private final FlagIndex index = new FlagIndex();
+
+		private WorldFlags(@NotNull String worldName) {
+			this.worldName = worldName;
+			this.visits = newCacheBuilder().build(
+					key -> loadVisit(this, key),
+					keys -> loadVisits(worldName, keys),
+					batch -> expireBatch(worldName, batch));
+			// Old and imported flags are written directly to the database, so the index is loaded once they are written.
+			if (!isConverting() && !importing.get()) {
+				loadIndex(this);
+			}
+		}
+
+		private @NotNull BatchExpirationLoadingCache.Builder newCacheBuilder() {
+			Config config = plugin.config();
+			return new BatchExpirationLoadingCache.Builder()
+					.setRetention(config.getCacheRetention())
+					.setCacheMax(config.getCacheMaxSize())
+					.setSizeCounter(cachedFlags)
+					.setLogger(plugin.getLogger())
+					.setFrequency(config.getCacheExpirationFrequency())
+					.setBatchMax(config.getCacheBatchMax())
+					.setBatchDelay(config.getCacheBatchDelay())
+					.setLoadExecutor(loadExecutor)
+					.setFlushExecutor(flushExecutor)
+					.setDelayExecutor(delayExecutor);
+		}
+
 	}
 
 	/**
-	 * A container for a chunk's visit time.
+	 * A snapshot of a chunk's visit time.
 	 */
 	public static class FlagData {
 
-		private final String chunkId;
-		private final AtomicLong lastVisit;
-		private final AtomicBoolean dirty;
-
-		private FlagData(@NotNull String chunkId, long lastVisit) {
-			this(chunkId, lastVisit, false);
-		}
+		private final long chunkKey;
+		private final long lastVisit;
 
-		private FlagData(@NotNull String chunkId, long lastVisit, boolean dirty) {
-			this.chunkId = chunkId;
-			this.lastVisit = new AtomicLong(lastVisit);
-			this.dirty = new AtomicBoolean(dirty);
+		public FlagData(long chunkKey, long lastVisit) {
+			this.chunkKey = chunkKey;
+			this.lastVisit = lastVisit;
 		}
 
 		/**
-		 * Gets the chunk's database identifier.
+		 * Gets the chunk's {@link ChunkKey} within its world's namespace.
 		 *
-		 * @return the chunk's database identifier
+		 * @return the chunk's packed key
 		 */
-		@NotNull
-		public String getChunkId() {
-			return chunkId;
+		public long getChunkKey() {
+			return chunkKey;
 		}
 
 		/**
-		 * Gets the chunk's last visit timestamp.
+		 * Gets the chunk's X coordinate.
 		 *
-		 * @return the chunk's last visit timestamp
+		 * @return the chunk X coordinate
 		 */
-		public long getLastVisit() {
-			return lastVisit.get();
+		public int getChunkX() {
+			return ChunkKey.getX(chunkKey);
 		}
 
 		/**
-		 * Sets the chunk's last visit timestamp.
+		 * Gets the chunk's Z coordinate.
 		 *
-		 * @param lastVisit the chunk's last visit timestamp
+		 * @return the chunk Z coordinate
 		 */
-		private void setLastVisit(long lastVisit) {
-			if (this.lastVisit.getAndSet(lastVisit) != lastVisit) {
-				this.dirty.set(true);
-			}
+		public int getChunkZ() {
+			return ChunkKey.getZ(chunkKey);
 		}
 
 		/**
-		 * Imports an old value. For use in data conversion.
-		 *
-		 * @param oldValue the imported old value
-		 */
-		private void importOldValue(long oldValue) {
-			// Ignore default values.
-			if (oldValue == Config.FLAG_DEFAULT) {
-				return;
-			}
-
-			if (oldValue == Long.MAX_VALUE) {
-				// Only set fresh generated flag if current value is default.
-				if (this.lastVisit.compareAndSet(Config.FLAG_DEFAULT, oldValue)) {
-					this.dirty.set(true);
-				}
-				return;
-			}
-
-			if (this.lastVisit.updateAndGet(currentValue -> Math.max(currentValue, oldValue)) == oldValue) {
-				this.dirty.set(true);
-			}
-		}
-
-		/**
-		 * Gets whether or not the chunk data needs to be saved to the database.
+		 * Gets the chunk's last visit timestamp.
 		 *
-		 * @return true if the chunk data has not been saved
-		 */
-		private boolean isDirty() {
-			return dirty.get();
-		}
-
-		/**
-		 * Hello yes this is Joseph King how can I help you?
+		 * @return the chunk's last visit timestamp
 		 */
-		private void wash() {
-			dirty.set(false);
+		public long getLastVisit() {
+			return lastVisit;
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hash(chunkId, lastVisit, dirty);
+			return 31 * Long.hashCode(chunkKey) + Long.hashCode(lastVisit);
 		}
 
 		@Override
@@ -448,9 +784,8 @@ public class ChunkFlagger {
 			if (this == obj) return true;
 			if (obj == null || getClass() != obj.getClass()) return false;
 			FlagData other = (FlagData) obj;
-			return lastVisit.equals(other.lastVisit) && dirty.equals(other.dirty) && chunkId.equals(other.chunkId);
+			return chunkKey == other.chunkKey && lastVisit == other.lastVisit;
 		}
 	}
 
 }
-
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits shared by the deletion cycles of all worlds.
+ *
+ * <p>Each running cycle occupies its own thread plus the threads of its pipeline, and a cycle only starts if its
+ * threads fit in the thread budget. Cycles must hold a region permit from reading a region until its changes are
+ * written and reserve I/O operations before reading or writing. Permits are handed out in the order they are requested
+ * and I/O is reserved in the order it is requested, so worlds take turns rather than one world starving the others.
+ */
+final class DeletionBudget {
+
+	private final Permits regions = new Permits();
+	private final Object ioLock = new Object();
+	private int maxRegions = 0;
+	private volatile int threads = 1;
+	private volatile int cycleThreads = 1;
+	private long ioIntervalNanos = 0;
+	private long nextIo = 0;
+
+	/**
+	 * Updates limits from the configuration. Permits already held are not revoked, but reductions apply as they are
+	 * released.
+	 *
+	 * @param config the configuration
+	 */
+	synchronized void reload(@NotNull Config config) {
+		threads = config.getDeletionThreads();
+		// Each cycle runs on its own thread feeding a pipeline with a single commit thread.
+		cycleThreads = 2 + config.getDeletionReadThreads() + config.getDeletionFlagThreads()
+				+ config.getDeletionHookThreads();
+
+		int newMaxRegions = config.getDeletionMaxRegions();
+		if (newMaxRegions > maxRegions) {
+			regions.release(newMaxRegions - maxRegions);
+		} else if (newMaxRegions < maxRegions) {
+			regions.reducePermits(maxRegions - newMaxRegions);
+		}
+		maxRegions = newMaxRegions;
+
+		int ioPerSecond = config.getDeletionIoPerSecond();
+		synchronized (ioLock) {
+			ioIntervalNanos = ioPerSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / ioPerSecond;
+		}
+	}
+
+	/**
+	 * Gets the maximum number of deletion threads across all worlds.
+	 *
+	 * @return the number of threads
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Gets the number of threads used by each running cycle.
+	 *
+	 * @return the number of threads
+	 */
+	int getCycleThreads() {
+		return cycleThreads;
+	}
+
+	/**
+	 * Gets whether another cycle's threads fit in the thread budget. A single cycle may always run, even if its threads
+	 * alone exceed the budget.
+	 *
+	 * @param running the number of cycles running
+	 * @return true if another cycle may start
+	 */
+	boolean canStartCycle(int running) {
+		return running == 0 || (running + 1) * cycleThreads <= threads;
+	}
+
+	/**
+	 * Gets the maximum number of regions in the deletion pipelines of all worlds at once.
+	 *
+	 * @return the number of regions
+	 */
+	synchronized int getMaxRegions() {
+		return maxRegions;
+	}
+
+	/**
+	 * Gets the number of regions in the deletion pipelines of all worlds.
+	 *
+	 * @return the number of regions
+	 */
+	synchronized int getActiveRegions() {
+		return Math.max(0, maxRegions - regions.availablePermits());
+	}
+
+	/**
+	 * Waits for a region permit.
+	 *
+	 * @param cancelled whether the requester has stopped waiting
+	 * @return true if a permit was acquired, false if cancelled first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean acquireRegion(@NotNull BooleanSupplier cancelled) throws InterruptedException {
+		while (!cancelled.getAsBoolean()) {
+			if (regions.tryAcquire(1, TimeUnit.SECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a region permit.
+	 */
+	void releaseRegion() {
+		regions.release();
+	}
+
+	/**
+	 * Waits until the I/O budget allows the given number of operations.
+	 *
+	 * @param operations the number of operations
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void acquireIo(int operations) throws InterruptedException {
+		long wait;
+		synchronized (ioLock) {
+			if (ioIntervalNanos == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			// Reserve the next free slot so that concurrent requesters are spaced out in turn.
+			long start = nextIo - now > 0 ? nextIo : now;
+			nextIo = start + ioIntervalNanos * operations;
+			wait = start - now;
+		}
+
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Fair semaphore that can be shrunk.
+	 */
+	private static final class Permits extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		private Permits() {
+			super(0, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+
+	}
+
+}
@@ -10,101 +10,418 @@
 
 package com.github.jikoo.regionerator;
 
+import com.github.jikoo.planarwrappers.util.Coords;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.util.yaml.MiscData.CycleProgress;
 import com.github.jikoo.regionerator.world.ChunkInfo;
 import com.github.jikoo.regionerator.world.RegionInfo;
 import com.github.jikoo.regionerator.world.WorldInfo;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.bukkit.World;
 import org.bukkit.plugin.IllegalPluginAccessException;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Runnable for checking and deleting chunks and regions.
+ *
+ * <p>Regions pass through a pipeline of {@link DeletionStage DeletionStages} so that disk, database and main thread
+ * work overlap: region headers are read, flags are loaded for the whole region, remaining chunks are checked against
+ * protection hooks, and changes are written by a single thread. Each region holds a permit from the shared
+ * {@link DeletionBudget} from entering the pipeline until it is completed.
  */
 public class DeletionRunnable extends BukkitRunnable {
 
 	private static final String STATS_FORMAT = "%s: checked %s, deleted %s regions & %s chunks";
+	private static final String PROGRESS_FORMAT = " - Progress: %s/%s regions (%s%%)";
+	private static final String HOOK_FORMAT = " - main thread hooks: queued %s chunks";
+	/** Regions are checked in order of coordinates so that a cycle can resume from a position. */
+	private static final Comparator<RegionInfo> REGION_ORDER = Comparator.comparingInt(RegionInfo::getLowestChunkX)
+			.thenComparingInt(RegionInfo::getLowestChunkZ);
+	private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
 
 	private final Regionerator plugin;
 	private final Phaser phaser;
+	private final DeletionBudget budget;
+	private final DeletionThrottle throttle;
 	private final WorldInfo world;
+	private volatile List<DeletionStage<?>> stages = Collections.emptyList();
 	private final AtomicLong nextRun = new AtomicLong(Long.MAX_VALUE);
-	private final AtomicInteger regionCount = new AtomicInteger(), heavyChecks = new AtomicInteger(),
+	private final AtomicInteger regionCount = new AtomicInteger(), regionTotal = new AtomicInteger(), heavyChecks = new AtomicInteger(),
 			regionsDeleted = new AtomicInteger(), chunksDeleted = new AtomicInteger();
-
-	DeletionRunnable(Regionerator plugin, World world) {
+	private final @Nullable CycleProgress resumeFrom;
+	private final BitSet completed = new BitSet();
+	/** Regions in the pipeline holding a region permit. */
+	private final Set<RegionCheck> inPipeline = ConcurrentHashMap.newKeySet();
+	private volatile List<RegionInfo> pending = Collections.emptyList();
+	private int completedCount = 0;
+	private long lastCheckpoint = System.currentTimeMillis();
+
+	DeletionRunnable(Regionerator plugin, DeletionBudget budget, DeletionThrottle throttle, World world) {
 		this.plugin = plugin;
 		this.phaser = new Phaser(1);
+		this.budget = budget;
+		this.throttle = throttle;
 		this.world = plugin.getWorldManager().getWorld(world);
+		this.resumeFrom = plugin.getMiscData().getCycleProgress(world.getName());
 	}
 
 	@Override
 	public void run() {
-		world.getRegions().forEach(this::handleRegion);
+		Stream<RegionInfo> regionStream = world.getRegions();
+		List<RegionInfo> regions = regionStream == null ? Collections.emptyList() : regionStream.sorted(REGION_ORDER).collect(Collectors.toList());
+		regionTotal.set(regions.size());
+
+		if (resumeFrom != null) {
+			// Skip regions completed before the cycle was interrupted.
+			int start = 0;
+			while (start < regions.size() && isCompleted(regions.get(start), resumeFrom)) {
+				++start;
+			}
+			regions = regions.subList(start, regions.size());
+			regionCount.set(resumeFrom.getChecked());
+			regionsDeleted.set(resumeFrom.getRegionsDeleted());
+			chunksDeleted.set(resumeFrom.getChunksDeleted());
+			plugin.getLogger().info(String.format("Resuming deletion cycle for %s, %s regions remaining",
+					getWorld(), regions.size()));
+		}
+		pending = regions;
+
+		Config config = plugin.config();
+		String threadName = "Regionerator Deletion " + getWorld();
+		int queueSize = config.getDeletionQueueSize();
+		Logger logger = plugin.getLogger();
+		// Changes are written by a single thread.
+		DeletionStage<RegionCheck> commitStage = new DeletionStage<>(threadName, "commit", 1, queueSize, logger,
+				releasing(this::commitRegion));
+		DeletionStage<RegionCheck> hookStage = new DeletionStage<>(threadName, "hooks", config.getDeletionHookThreads(),
+				queueSize, logger, releasing(check -> checkHooks(check, commitStage)));
+		DeletionStage<RegionCheck> flagStage = new DeletionStage<>(threadName, "flags", config.getDeletionFlagThreads(),
+				queueSize, logger, releasing(check -> resolveFlags(check, hookStage)));
+		DeletionStage<RegionCheck> readStage = new DeletionStage<>(threadName, "read", config.getDeletionReadThreads(),
+				queueSize, logger, releasing(check -> readRegion(check, flagStage)));
+		List<DeletionStage<?>> pipeline = Arrays.asList(readStage, flagStage, hookStage, commitStage);
+		stages = pipeline;
+
+		try {
+			for (int index = 0; index < regions.size(); ++index) {
+				if (isCancelled()) {
+					break;
+				}
+
+				// Pausing stops regions from entering the pipeline. Regions already in the pipeline are completed.
+				phaser.arriveAndAwaitAdvance();
+
+				// Wait for this world's turn.
+				if (!budget.acquireRegion(this::isCancelled)) {
+					break;
+				}
+				RegionCheck check = new RegionCheck(regions.get(index), index);
+				inPipeline.add(check);
+				readStage.put(check);
+			}
+
+			// Complete regions in the pipeline in order so that statistics are final.
+			for (DeletionStage<?> stage : pipeline) {
+				stage.close();
+			}
+		} catch (InterruptedException e) {
+			pipeline.forEach(DeletionStage::cancel);
+			Thread.currentThread().interrupt();
+		} finally {
+			// Regions abandoned by cancellation do not complete.
+			inPipeline.forEach(this::releaseRegion);
+		}
+
+		if (isCancelled()) {
+			// Progress is saved when the plugin disables so that the cycle resumes on the next start.
+			phaser.arriveAndDeregister();
+			return;
+		}
+
 		plugin.getLogger().info("Regeneration cycle complete for " + getRunStats());
 		nextRun.set(System.currentTimeMillis() + plugin.config().getCycleDelayMillis());
-		if (plugin.config().isRememberCycleDelay()) {
+		try {
+			plugin.getServer().getScheduler().runTask(plugin, () -> plugin.finishCycle(this));
+		} catch (IllegalPluginAccessException e) {
+			// Plugin disabling, odds are on that we were mid-cycle. Don't update finish time.
+		}
+		phaser.arriveAndDeregister();
+	}
+
+	private static boolean isCompleted(RegionInfo region, CycleProgress progress) {
+		int regionX = Coords.chunkToRegion(region.getLowestChunkX());
+		int regionZ = Coords.chunkToRegion(region.getLowestChunkZ());
+		return regionX < progress.getRegionX() || regionX == progress.getRegionX() && regionZ <= progress.getRegionZ();
+	}
+
+	/**
+	 * Marks a region as completed. Regions interrupted by cancellation are not completed so that they are checked when
+	 * the cycle resumes.
+	 *
+	 * @param check the region check
+	 */
+	private void complete(RegionCheck check) {
+		releaseRegion(check);
+
+		boolean checkpoint = false;
+		synchronized (completed) {
+			completed.set(check.index);
+			while (completed.get(completedCount)) {
+				++completedCount;
+			}
+			long now = System.currentTimeMillis();
+			if (now - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+				lastCheckpoint = now;
+				checkpoint = true;
+			}
+		}
+
+		if (checkpoint) {
 			try {
-				plugin.getServer().getScheduler().runTask(plugin, () -> plugin.finishCycle(this));
+				plugin.getServer().getScheduler().runTask(plugin, this::saveProgress);
 			} catch (IllegalPluginAccessException e) {
-				// Plugin disabling, odds are on that we were mid-cycle. Don't update finish time.
+				// Plugin disabling, progress is saved on disable.
 			}
 		}
-		phaser.arriveAndDeregister();
 	}
 
-	private void handleRegion(RegionInfo region) {
+	/**
+	 * Returns the region permit held by a region leaving the pipeline.
+	 *
+	 * @param check the region check
+	 */
+	private void releaseRegion(RegionCheck check) {
+		if (inPipeline.remove(check)) {
+			budget.releaseRegion();
+		}
+	}
+
+	/**
+	 * Wraps a stage's handler so that a region whose handling fails returns its region permit. The failed region is
+	 * skipped like a region that cannot be read, otherwise saved progress could not advance past it for the rest of
+	 * the cycle. It is checked again next cycle.
+	 *
+	 * @param handler the handler
+	 * @return the wrapped handler
+	 */
+	private DeletionStage.Handler<RegionCheck> releasing(DeletionStage.Handler<RegionCheck> handler) {
+		return check -> {
+			try {
+				handler.handle(check);
+			} catch (RuntimeException e) {
+				if (isCancelled()) {
+					releaseRegion(check);
+				} else {
+					complete(check);
+				}
+				throw e;
+			}
+		};
+	}
+
+	/**
+	 * Saves the position after the last of the consecutive completed regions. Must be called on the main thread.
+	 */
+	void saveProgress() {
+		if (nextRun.get() != Long.MAX_VALUE) {
+			// Cycle is complete.
+			return;
+		}
+
+		int count;
+		synchronized (completed) {
+			count = completedCount;
+		}
+		if (count == 0) {
+			// Nothing to add to existing progress.
+			return;
+		}
+
+		RegionInfo last = pending.get(count - 1);
+		int checked = resumeFrom == null ? 0 : resumeFrom.getChecked();
+		plugin.getMiscData().setCycleProgress(getWorld(), new CycleProgress(
+				Coords.chunkToRegion(last.getLowestChunkX()), Coords.chunkToRegion(last.getLowestChunkZ()),
+				checked + count, regionsDeleted.get(), chunksDeleted.get()));
+	}
+
+	/**
+	 * Reads a region's header.
+	 *
+	 * @param check the region check
+	 * @param next the stage resolving flags
+	 * @throws InterruptedException if interrupted while waiting for I/O budget or the next stage
+	 */
+	private void readRegion(RegionCheck check, DeletionStage<RegionCheck> next) throws InterruptedException {
 		if (isCancelled()) {
 			return;
 		}
 
-		phaser.arriveAndAwaitAdvance();
+		RegionInfo region = check.region;
 
 		regionCount.incrementAndGet();
 		plugin.debug(DebugLevel.HIGH, () -> String.format("Checking %s: %s (%s)",
 				world.getWorld().getName(), region.getIdentifier(), regionCount.get()));
 
 		try {
+			budget.acquireIo(1);
 			region.read();
 		} catch (IOException e) {
 			plugin.getLogger().log(Level.WARNING, "Unable to read region!", e);
+			complete(check);
 			return;
 		}
 
-		// Collect potentially eligible chunks
-		List<ChunkInfo> chunks = region.getChunks().filter(this::isDeleteEligible).collect(Collectors.toList());
+		next.put(check);
+	}
 
-		if (chunks.size() != region.getChunksPerRegion()) {
-			// If entire region is not being deleted, filter out chunks that are already orphaned or freshly generated
-			chunks.removeIf(chunk -> {
-				if (isCancelled()) {
-					return true;
-				}
-				VisitStatus visitStatus = chunk.getVisitStatus();
-				return visitStatus == VisitStatus.ORPHANED || !plugin.config().isDeleteFreshChunks(world.getWorld()) && visitStatus == VisitStatus.GENERATED;
-			});
-		} else if (!plugin.config().isDeleteFreshChunks(world.getWorld())
-				&& chunks.stream().noneMatch(chunk -> chunk.getVisitStatus()== VisitStatus.UNVISITED)) {
-			// If we're configured to not delete fresh chunks and the whole region is likely fresh, do nothing.
+	/**
+	 * Loads flags for a region and collects chunks that are not visited or recently modified.
+	 *
+	 * @param check the region check
+	 * @param next the stage checking hooks
+	 * @throws InterruptedException if interrupted while waiting for I/O budget or the next stage
+	 */
+	private void resolveFlags(RegionCheck check, DeletionStage<RegionCheck> next) throws InterruptedException {
+		if (isCancelled()) {
+			return;
+		}
+
+		RegionInfo region = check.region;
+
+		// Load flags for the entire region at once rather than chunk by chunk.
+		budget.acquireIo(1);
+		plugin.getFlagger().prefetchRegion(world.getWorld(),
+				Coords.chunkToRegion(region.getLowestChunkX()), Coords.chunkToRegion(region.getLowestChunkZ())).join();
+
+		check.chunks = region.getChunks().filter(this::isFlagEligible).collect(Collectors.toList());
+
+		// Regions without candidates still pass through hook checks for recovery time.
+		next.put(check);
+	}
+
+	/**
+	 * Checks candidate chunks of a region against protection hooks, then waits for the configured recovery time.
+	 *
+	 * @param check the region check
+	 * @param next the stage committing changes
+	 * @throws InterruptedException if interrupted while waiting for budget or the next stage
+	 */
+	private void checkHooks(RegionCheck check, DeletionStage<RegionCheck> next) throws InterruptedException {
+		if (isCancelled()) {
 			return;
 		}
 
+		List<ChunkInfo> chunks = check.chunks;
+		if (!chunks.isEmpty()) {
+			chunks = filterProtected(check.region, chunks);
+		}
+
+		if (isCancelled()) {
+			// Chunks are not checked once cancelled, the region is incomplete.
+			return;
+		}
+
+		if (!chunks.isEmpty()) {
+			check.chunks = chunks;
+			next.put(check);
+		}
+
+		if (regionCount.get() % 20 == 0) {
+			plugin.debug(DebugLevel.LOW, this::getRunStats);
+		}
 
 		if (chunks.isEmpty()) {
-			// If no chunks are modified, do nothing.
-			recover();
+			// Complete before recovering so that other worlds may continue.
+			complete(check);
+		}
+
+		recover();
+	}
+
+	private List<ChunkInfo> filterProtected(RegionInfo region, List<ChunkInfo> candidates) {
+		// Query main thread hooks for all candidates in as few ticks as possible.
+		List<ChunkInfo> unorphaned = candidates.stream().filter(chunk -> !chunk.isOrphaned()).collect(Collectors.toList());
+		awaitHooks(plugin.getSyncHookBatcher().prefetch(world.getWorld(), unorphaned));
+
+		try {
+			// Collect eligible chunks
+			List<ChunkInfo> chunks = candidates.stream().filter(this::isHookEligible).collect(Collectors.toList());
+
+			if (chunks.size() != region.getChunksPerRegion()) {
+				// If entire region is not being deleted, filter out chunks that are already orphaned or freshly generated
+				chunks.removeIf(chunk -> {
+					if (isCancelled()) {
+						return true;
+					}
+					VisitStatus visitStatus = chunk.getVisitStatus();
+					return visitStatus == VisitStatus.ORPHANED || !plugin.config().isDeleteFreshChunks(world.getWorld()) && visitStatus == VisitStatus.GENERATED;
+				});
+			} else if (!plugin.config().isDeleteFreshChunks(world.getWorld())
+					&& chunks.stream().noneMatch(chunk -> chunk.getVisitStatus()== VisitStatus.UNVISITED)) {
+				// If we're configured to not delete fresh chunks and the whole region is likely fresh, do nothing.
+				return Collections.emptyList();
+			}
+
+			return chunks;
+		} finally {
+			plugin.getSyncHookBatcher().release(world.getWorld(), unorphaned);
+		}
+	}
+
+	private void awaitHooks(CompletableFuture<Void> future) {
+		while (!isCancelled() && plugin.isEnabled()) {
+			try {
+				future.get(1, TimeUnit.SECONDS);
+				return;
+			} catch (TimeoutException e) {
+				// Check for cancellation and keep waiting.
+			} catch (ExecutionException e) {
+				// Chunks that could not be checked are queried individually.
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Orphans chunks and writes the region.
+	 *
+	 * @param check the region check
+	 * @throws InterruptedException if interrupted while waiting for I/O budget
+	 */
+	private void commitRegion(RegionCheck check) throws InterruptedException {
+		if (isCancelled()) {
 			return;
 		}
 
+		RegionInfo region = check.region;
+		List<ChunkInfo> chunks = check.chunks;
+
 		// Orphan chunks. N.B. Changes do not take effect until RegionInfo#write is called.
 		chunks.forEach(ChunkInfo::setOrphaned);
 
+		budget.acquireIo(1);
 		try {
 			region.write();
 			chunks.forEach(chunk -> plugin.getFlagger().unflagChunk(chunk.getWorld().getName(), chunk.getChunkX(), chunk.getChunkZ()));
@@ -118,23 +435,23 @@ public class DeletionRunnable extends BukkitRunnable {
 					"Caught an IOException attempting to populate chunk data: %s", e.getMessage()), e);
 		}
 
-		if (regionCount.get() % 20 == 0) {
-			plugin.debug(DebugLevel.LOW, this::getRunStats);
-		}
-
-		recover();
+		complete(check);
 	}
 
+	/**
+	 * Sleeps for the recovery time set by the {@link DeletionThrottle}. With several hook threads, only the thread that
+	 * reaches the expensive check count recovers; other threads continue.
+	 */
 	private void recover() {
 		try {
-			// Allow server to recover for configured time.
-			Thread.sleep(plugin.config().getDeletionRecoveryMillis());
+			// Allow server to recover.
+			Thread.sleep(throttle.getRecoveryMillis());
 		} catch (InterruptedException ignored) {}
 		// Reset chunk count after sleep.
 		heavyChecks.set(0);
 	}
 
-	private boolean isDeleteEligible(ChunkInfo chunkInfo) {
+	private boolean isFlagEligible(ChunkInfo chunkInfo) {
 		if (isCancelled()) {
 			// If task is cancelled, report all chunks ineligible for deletion
 			plugin.debug(DebugLevel.HIGH, () -> "Deletion task is cancelled, chunks are ineligible for delete.");
@@ -165,6 +482,19 @@ public class DeletionRunnable extends BukkitRunnable {
 			return false;
 		}
 
+		return true;
+	}
+
+	private boolean isHookEligible(ChunkInfo chunkInfo) {
+		if (isCancelled()) {
+			// If task is cancelled, report all chunks ineligible for deletion
+			return false;
+		}
+
+		if (chunkInfo.isOrphaned()) {
+			return true;
+		}
+
 		// Do recovery for heavy checks as required.
 		if (heavyChecks.incrementAndGet() >= plugin.config().getDeletionChunkCount()) {
 			recover();
@@ -200,6 +530,23 @@ public class DeletionRunnable extends BukkitRunnable {
 		return String.format(STATS_FORMAT, world.getWorld().getName(), regionCount.get(), regionsDeleted, chunksDeleted);
 	}
 
+	public String getProgress() {
+		int total = regionTotal.get();
+		int checked = regionCount.get();
+		return String.format(PROGRESS_FORMAT, checked, total, total == 0 ? 0 : checked * 100L / total);
+	}
+
+	/**
+	 * Gets statistics for each stage of the cycle's pipeline.
+	 *
+	 * @return the statistics
+	 */
+	public List<String> getPipelineStats() {
+		List<String> stats = stages.stream().map(DeletionStage::getStats).collect(Collectors.toList());
+		stats.add(String.format(HOOK_FORMAT, plugin.getSyncHookBatcher().getQueued()));
+		return stats;
+	}
+
 	public String getWorld() {
 		return world.getWorld().getName();
 	}
@@ -212,4 +559,20 @@ public class DeletionRunnable extends BukkitRunnable {
 		return phaser;
 	}
 
+	/**
+	 * A region passing through the pipeline.
+	 */
+	private static class RegionCheck {
+
+		private final RegionInfo region;
+		private final int index;
+		private List<ChunkInfo> chunks = Collections.emptyList();
+
+		private RegionCheck(RegionInfo region, int index) {
+			this.region = region;
+			this.index = index;
+		}
+
+	}
+
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A stage of a {@link DeletionRunnable DeletionRunnable's} pipeline. Items are queued in a bounded queue and handled by
+ * the stage's own threads. Handlers pass items to the following stage themselves, so a full queue slows the stages
+ * feeding it.
+ *
+ * @param <T> the type of item handled
+ */
+final class DeletionStage<T> {
+
+	private static final String STATS_FORMAT = " - %s: %s regions, %.2f/s, queued %s/%s, busy %s%%";
+	/** The stage whose handler the current thread is running. */
+	private static final ThreadLocal<DeletionStage<?>> CURRENT = new ThreadLocal<>();
+
+	private final String name;
+	private final Logger logger;
+	private final Handler<T> handler;
+	private final BlockingQueue<T> queue;
+	private final List<Thread> threads;
+	private final AtomicLong handled = new AtomicLong(), busyNanos = new AtomicLong(), blockedNanos = new AtomicLong();
+	private final long startNanos;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructs and starts a new DeletionStage.
+	 *
+	 * @param threadName the base name of the stage's threads
+	 * @param name the name of the stage
+	 * @param threadCount the number of threads handling items
+	 * @param capacity the maximum number of queued items
+	 * @param logger the logger for errors handling items
+	 * @param handler the handler for items
+	 */
+	DeletionStage(@NotNull String threadName, @NotNull String name, int threadCount, int capacity,
+			@NotNull Logger logger, @NotNull Handler<T> handler) {
+		this.name = name;
+		this.logger = logger;
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.threads = new ArrayList<>(threadCount);
+		this.startNanos = System.nanoTime();
+		for (int i = 1; i <= threadCount; ++i) {
+			Thread thread = new Thread(this::run, threadName + ' ' + name + '-' + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Queues an item, waiting for space if necessary.
+	 *
+	 * @param item the item
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void put(@NotNull T item) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("Stage " + name + " is closed");
+		}
+		if (queue.offer(item)) {
+			return;
+		}
+
+		// Time spent waiting on a full queue is not work done by the stage handing the item over.
+		long start = System.nanoTime();
+		try {
+			queue.put(item);
+		} finally {
+			DeletionStage<?> current = CURRENT.get();
+			if (current != null) {
+				current.blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting items and waits for queued items to be handled.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void close() throws InterruptedException {
+		closed = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Stops accepting items and stops handling queued items.
+	 */
+	void cancel() {
+		closed = true;
+		threads.forEach(Thread::interrupt);
+	}
+
+	private void run() {
+		CURRENT.set(this);
+		while (true) {
+			T item;
+			try {
+				item = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (item == null) {
+				if (closed && queue.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+
+			long start = System.nanoTime();
+			try {
+				handler.handle(item);
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				// Keep the stage running, a dead stage would block the stages feeding it.
+				logger.log(Level.WARNING, "Unable to handle region in deletion stage " + name, e);
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				handled.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Gets statistics for the stage: items handled, throughput, queue depth and the portion of time threads spent
+	 * handling items, excluding time waiting for the following stage. The busiest stage with the fullest queue ahead of
+	 * it is the bottleneck.
+	 *
+	 * @return the statistics
+	 */
+	@NotNull String getStats() {
+		double elapsed = Math.max(1, System.nanoTime() - startNanos);
+		long handledCount = handled.get();
+		return String.format(STATS_FORMAT, name, handledCount,
+				handledCount / (elapsed / TimeUnit.SECONDS.toNanos(1)), queue.size(),
+				queue.size() + queue.remainingCapacity(),
+				Math.round((busyNanos.get() - blockedNanos.get()) * 100 / (elapsed * threads.size())));
+	}
+
+	/**
+	 * Handler for items in a stage.
+	 *
+	 * @param <T> the type of item handled
+	 */
+	@FunctionalInterface
+	interface Handler<T> {
+
+		/**
+		 * Handles an item.
+		 *
+		 * @param item the item
+		 * @throws InterruptedException if interrupted while handling the item
+		 */
+		void handle(@NotNull T item) throws InterruptedException;
+
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adjusts deletion recovery time to server load.
+ *
+ * <p>Runs every tick on the main thread to measure the time between ticks. Ticks shorter than 50 milliseconds are
+ * padded by the server, so the measured duration only exceeds 50 milliseconds when the server is falling behind. Once
+ * per second the scan rate is lowered sharply if the average tick exceeds the target or too many chunks are waiting
+ * on main thread hooks, and raised gradually otherwise. Recovery time is the inverse of the scan rate.
+ */
+final class DeletionThrottle extends BukkitRunnable {
+
+	/** Ticks between rate adjustments. */
+	private static final int ADJUST_INTERVAL = 20;
+	/** Weight of the latest tick in the average tick duration. */
+	private static final double TICK_WEIGHT = 0.1;
+	private static final double DECREASE = 0.7;
+	private static final double INCREASE = 1.1;
+
+	private final Regionerator plugin;
+	private long lastTick = 0;
+	private int ticks = 0;
+	private volatile double averageTickMillis = 50;
+	private volatile double rate = 0;
+
+	DeletionThrottle(@NotNull Regionerator plugin) {
+		this.plugin = plugin;
+	}
+
+	@Override
+	public void run() {
+		long now = System.nanoTime();
+		if (lastTick != 0) {
+			double tickMillis = (now - lastTick) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+			averageTickMillis += (tickMillis - averageTickMillis) * TICK_WEIGHT;
+		}
+		lastTick = now;
+
+		if (++ticks < ADJUST_INTERVAL) {
+			return;
+		}
+		ticks = 0;
+
+		Config config = plugin.config();
+		double minRate = config.getDeletionMinRate();
+		double maxRate = config.getDeletionMaxRate();
+		double current = rate == 0 ? getFixedRate(config) : rate;
+
+		if (averageTickMillis > config.getDeletionTargetTickMillis()
+				|| plugin.getSyncHookBatcher().getQueued() > config.getDeletionMaxQueuedHookChunks()) {
+			current *= DECREASE;
+		} else if (plugin.isDeletionActive()) {
+			// Only speed up while deletion is running to measure the effect of the current rate.
+			current *= INCREASE;
+		}
+
+		rate = Math.max(minRate, Math.min(maxRate, current));
+	}
+
+	/**
+	 * Gets the time to wait between regions, and after each configured number of expensive chunk checks.
+	 *
+	 * @return the recovery time in milliseconds
+	 */
+	long getRecoveryMillis() {
+		Config config = plugin.config();
+		if (!config.isDeletionAdaptive()) {
+			return config.getDeletionRecoveryMillis();
+		}
+		return Math.round(1000 / getRate());
+	}
+
+	/**
+	 * Gets the current scan rate.
+	 *
+	 * @return the rate in regions per second per hook thread
+	 */
+	double getRate() {
+		Config config = plugin.config();
+		if (!config.isDeletionAdaptive()) {
+			return getFixedRate(config);
+		}
+		double current = rate;
+		if (current == 0) {
+			current = getFixedRate(config);
+		}
+		return Math.max(config.getDeletionMinRate(), Math.min(config.getDeletionMaxRate(), current));
+	}
+
+	/**
+	 * Gets the average time between ticks.
+	 *
+	 * @return the average tick duration in milliseconds
+	 */
+	double getAverageTickMillis() {
+		return averageTickMillis;
+	}
+
+	private static double getFixedRate(@NotNull Config config) {
+		long recovery = config.getDeletionRecoveryMillis();
+		return recovery == 0 ? Double.POSITIVE_INFINITY : 1000D / recovery;
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An in-memory index of the chunks of a world that may have a flag.
+ *
+ * <p>Each region containing flagged chunks costs a bitmap of {@value ChunkKey#REGION_BITMAP_LONGS} longs. Once the
+ * index is loaded from the database, a clear bit guarantees that a chunk has no flag, so lookups of chunks that were
+ * never flagged are answered without loading anything. Set bits may be stale: flags removed by maintenance are only
+ * dropped from the index when the server restarts.
+ *
+ * <p>Changes to a chunk's flag are made while holding the lock of its region's bitmap so that the index and the flag
+ * cannot disagree.
+ */
+final class FlagIndex {
+
+	private final Map<Long, long[]> regions = new ConcurrentHashMap<>();
+	private volatile boolean ready = false;
+
+	/**
+	 * Gets whether the index contains every stored flag. Until ready, every chunk may be flagged.
+	 *
+	 * @return true if the index is ready
+	 */
+	boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Sets whether the index contains every stored flag. The index must be marked not ready while flags are written to
+	 * the database without passing through the index.
+	 *
+	 * @param ready whether the index is ready
+	 */
+	void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	/**
+	 * Gets whether a chunk may have a flag.
+	 *
+	 * @param chunkKey the {@link ChunkKey} of the chunk
+	 * @return false if the chunk definitely has no flag
+	 */
+	boolean mayBeFlagged(long chunkKey) {
+		if (!ready) {
+			return true;
+		}
+
+		long[] bitmap = regions.get(getRegionKey(chunkKey));
+		if (bitmap == null) {
+			return false;
+		}
+
+		int index = ChunkKey.getRegionIndex(chunkKey);
+		synchronized (bitmap) {
+			return (bitmap[index >> 6] & 1L << index) != 0;
+		}
+	}
+
+	/**
+	 * Gets a copy of the bitmap of chunks in a region that may have a flag.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return the bitmap, ordered by {@link ChunkKey#getRegionIndex(long)}, or null if the index is not ready
+	 */
+	@Nullable long[] getBitmap(int regionX, int regionZ) {
+		if (!ready) {
+			return null;
+		}
+
+		long[] bitmap = regions.get(ChunkKey.of(regionX, regionZ));
+		if (bitmap == null) {
+			return new long[ChunkKey.REGION_BITMAP_LONGS];
+		}
+
+		synchronized (bitmap) {
+			return bitmap.clone();
+		}
+	}
+
+	/**
+	 * Marks a chunk as flagged before changing its flag.
+	 *
+	 * @param chunkKey the {@link ChunkKey} of the chunk
+	 * @param change the change to the chunk's flag
+	 */
+	void flag(long chunkKey, @NotNull Runnable change) {
+		long[] bitmap = regions.computeIfAbsent(getRegionKey(chunkKey), key -> new long[ChunkKey.REGION_BITMAP_LONGS]);
+		int index = ChunkKey.getRegionIndex(chunkKey);
+		synchronized (bitmap) {
+			bitmap[index >> 6] |= 1L << index;
+			change.run();
+		}
+	}
+
+	/**
+	 * Marks a chunk as not flagged after removing its flag.
+	 *
+	 * @param chunkKey the {@link ChunkKey} of the chunk
+	 * @param change the removal of the chunk's flag
+	 */
+	void unflag(long chunkKey, @NotNull Runnable change) {
+		long[] bitmap = regions.get(getRegionKey(chunkKey));
+		if (bitmap == null) {
+			change.run();
+			return;
+		}
+
+		int index = ChunkKey.getRegionIndex(chunkKey);
+		synchronized (bitmap) {
+			change.run();
+			bitmap[index >> 6] &= ~(1L << index);
+		}
+	}
+
+	/**
+	 * Adds stored flags of a region to the index.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @param stored the bitmap of chunks with stored flags
+	 */
+	void load(int regionX, int regionZ, @NotNull long[] stored) {
+		long[] bitmap = regions.computeIfAbsent(ChunkKey.of(regionX, regionZ),
+				key -> new long[ChunkKey.REGION_BITMAP_LONGS]);
+		synchronized (bitmap) {
+			for (int word = 0; word < bitmap.length; ++word) {
+				bitmap[word] |= stored[word];
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of regions in the index.
+	 *
+	 * @return the number of regions
+	 */
+	int getRegionCount() {
+		return regions.size();
+	}
+
+	private static long getRegionKey(long chunkKey) {
+		return ChunkKey.of(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5);
+	}
+
+}
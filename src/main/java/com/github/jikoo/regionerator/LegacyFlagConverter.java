@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.database.QueuedWriteAdapter;
+import com.github.jikoo.regionerator.util.BatchExpirationLoadingCache;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Converts flags stored in the YAML files of old versions in the background.
+ *
+ * <p>Region flag files are parsed in parallel and written directly to the database in large batches. Converted files
+ * are recorded once written so that an interrupted conversion resumes where it stopped.
+ */
+final class LegacyFlagConverter {
+
+	/** Flags written to the database per batch. */
+	private static final int BATCH_SIZE = 16384;
+	/** Region flag files converted between progress checkpoints. */
+	private static final int FILES_PER_CHECKPOINT = 256;
+	private static final String PROGRESS_FILE = "converted.txt";
+
+	private final Regionerator plugin;
+	private final QueuedWriteAdapter adapter;
+	private final Runnable onComplete;
+	private final Thread thread;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Constructs a new LegacyFlagConverter.
+	 *
+	 * @param plugin the plugin
+	 * @param adapter the adapter to write converted flags to
+	 * @param onComplete a task run once conversion finishes successfully
+	 */
+	LegacyFlagConverter(@NotNull Regionerator plugin, @NotNull QueuedWriteAdapter adapter, @NotNull Runnable onComplete) {
+		this.plugin = plugin;
+		this.adapter = adapter;
+		this.onComplete = onComplete;
+		this.thread = new Thread(this::run, "Regionerator Legacy Flag Converter");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Gets whether flags of old versions exist.
+	 *
+	 * @param dataFolder the plugin's data folder
+	 * @return true if flags need to be converted
+	 */
+	static boolean isConversionRequired(@NotNull File dataFolder) {
+		return new File(dataFolder, "flags.yml").exists() || new File(dataFolder, "flags").isDirectory();
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops conversion after the current checkpoint and waits for it to stop.
+	 */
+	void cancel() {
+		cancelled = true;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		try {
+			convertFlagsFile();
+			convertFlagsFolder();
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception converting old flags! Deletion is paused until conversion resumes on next startup.", e);
+			return;
+		}
+
+		if (!cancelled) {
+			onComplete.run();
+		}
+	}
+
+	/**
+	 * Converts old flags file.
+	 *
+	 * @throws Exception if an error occurs writing flags
+	 */
+	private void convertFlagsFile() throws Exception {
+		File oldFlagsFile = new File(plugin.getDataFolder(), "flags.yml");
+		if (!oldFlagsFile.exists()) {
+			return;
+		}
+		plugin.getLogger().info("Beginning converting flags.yml");
+		YamlConfiguration oldFlags = YamlConfiguration.loadConfiguration(oldFlagsFile);
+		long converted = 0;
+		for (String world : oldFlags.getKeys(false)) {
+			ConfigurationSection worldSection = oldFlags.getConfigurationSection(world);
+			if (worldSection == null) {
+				continue;
+			}
+
+			LegacyFlags flags = new LegacyFlags();
+			for (String chunkPath : worldSection.getKeys(false)) {
+				Object value = worldSection.get(chunkPath);
+				if (value instanceof Number) {
+					flags.add(chunkPath, ((Number) value).longValue());
+				}
+			}
+
+			if (cancelled) {
+				return;
+			}
+			converted += write(world, flags);
+		}
+		adapter.flush();
+
+		// Rename old flag file
+		if (oldFlagsFile.renameTo(new File(oldFlagsFile.getParentFile(), "flags.yml.bak"))) {
+			plugin.getLogger().info("Finished converting " + converted + " flags from flags.yml, renamed to flags.yml.bak. Delete at convenience if all appears well.");
+		} else {
+			plugin.getLogger().warning("Finished converting flags.yml but could not rename! Conversion will run again on startup.");
+		}
+	}
+
+	/**
+	 * Converts old per-region flag files.
+	 *
+	 * @throws Exception if an error occurs writing flags or recording progress
+	 */
+	private void convertFlagsFolder() throws Exception {
+		File oldFlagsFolder = new File(plugin.getDataFolder(), "flags");
+		if (!oldFlagsFolder.isDirectory()) {
+			return;
+		}
+
+		File[] worldDirectories = oldFlagsFolder.listFiles(File::isDirectory);
+		if (worldDirectories == null) {
+			return;
+		}
+
+		Path progressFile = oldFlagsFolder.toPath().resolve(PROGRESS_FILE);
+		Set<String> done = new HashSet<>();
+		if (Files.exists(progressFile)) {
+			done.addAll(Files.readAllLines(progressFile, StandardCharsets.UTF_8));
+			plugin.getLogger().info("Resuming converting flags folder, " + done.size() + " files already converted.");
+		} else {
+			plugin.getLogger().info("Beginning converting flags folder.");
+		}
+
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+		ThreadPoolExecutor parser = BatchExpirationLoadingCache.newLoadExecutor("Regionerator Flag Parser", threads,
+				FILES_PER_CHECKPOINT, () -> true);
+		long converted = 0;
+
+		try {
+			for (File worldFlagsFolder : worldDirectories) {
+				String worldName = worldFlagsFolder.getName();
+				File[] regionFlagsFiles = worldFlagsFolder.listFiles(File::isFile);
+				if (regionFlagsFiles == null) {
+					continue;
+				}
+
+				List<File> remaining = new ArrayList<>();
+				for (File regionFlagsFile : regionFlagsFiles) {
+					if (!done.contains(getProgressId(worldName, regionFlagsFile))) {
+						remaining.add(regionFlagsFile);
+					}
+				}
+
+				for (int start = 0; start < remaining.size(); start += FILES_PER_CHECKPOINT) {
+					if (cancelled) {
+						return;
+					}
+
+					List<File> group = remaining.subList(start, Math.min(remaining.size(), start + FILES_PER_CHECKPOINT));
+					List<CompletableFuture<LegacyFlags>> parsed = new ArrayList<>(group.size());
+					for (File regionFlagsFile : group) {
+						parsed.add(CompletableFuture.supplyAsync(() -> parseRegionFile(regionFlagsFile), parser));
+					}
+
+					LegacyFlags flags = new LegacyFlags();
+					for (CompletableFuture<LegacyFlags> future : parsed) {
+						flags.addAll(future.join());
+					}
+					converted += write(worldName, flags);
+
+					// Progress is only recorded once flags are stored.
+					adapter.flush();
+					List<String> ids = new ArrayList<>(group.size());
+					for (File regionFlagsFile : group) {
+						ids.add(getProgressId(worldName, regionFlagsFile));
+					}
+					Files.write(progressFile, ids, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+							StandardOpenOption.APPEND);
+				}
+			}
+		} finally {
+			BatchExpirationLoadingCache.awaitShutdown(parser);
+		}
+
+		// Rename old flag file
+		if (oldFlagsFolder.renameTo(new File(oldFlagsFolder.getParentFile(), "flags.bak"))) {
+			plugin.getLogger().info("Finished converting " + converted + " flags from flags folder, renamed to flags.bak. Delete at convenience if all appears well.");
+		} else {
+			plugin.getLogger().warning("Finished converting flags folder but could not rename! Conversion will run again on startup.");
+		}
+	}
+
+	private static @NotNull String getProgressId(@NotNull String worldName, @NotNull File regionFlagsFile) {
+		return worldName + '/' + regionFlagsFile.getName();
+	}
+
+	private static @NotNull LegacyFlags parseRegionFile(@NotNull File regionFlagsFile) {
+		YamlConfiguration regionConfig = YamlConfiguration.loadConfiguration(regionFlagsFile);
+		LegacyFlags flags = new LegacyFlags();
+		for (Map.Entry<String, Object> entry : regionConfig.getValues(false).entrySet()) {
+			if (entry.getValue() instanceof Number) {
+				flags.add(entry.getKey(), ((Number) entry.getValue()).longValue());
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * Writes converted flags to the database. Flags only move forwards, and flags marking a freshly generated chunk
+	 * are only written if the chunk has no flag.
+	 *
+	 * @param worldName the world name
+	 * @param flags the converted flags
+	 * @return the number of flags written
+	 * @throws Exception if an error occurs reading or writing flags
+	 */
+	private long write(@NotNull String worldName, @NotNull LegacyFlags flags) throws Exception {
+		long written = 0;
+		for (int start = 0; start < flags.size; start += BATCH_SIZE) {
+			int end = Math.min(flags.size, start + BATCH_SIZE);
+			List<ChunkFlagger.FlagData> batch = new ArrayList<>(end - start);
+			long[] generated = new long[end - start];
+			int generatedCount = 0;
+
+			for (int i = start; i < end; ++i) {
+				long value = flags.values[i];
+				if (value == Long.MAX_VALUE) {
+					generated[generatedCount++] = flags.keys[i];
+				} else if (value != Config.FLAG_DEFAULT) {
+					batch.add(new ChunkFlagger.FlagData(flags.keys[i], value));
+				}
+			}
+
+			if (generatedCount > 0) {
+				long[] chunkKeys = Arrays.copyOf(generated, generatedCount);
+				long[] stored = adapter.getAll(worldName, chunkKeys);
+				for (int i = 0; i < chunkKeys.length; ++i) {
+					if (stored[i] == Config.FLAG_DEFAULT) {
+						batch.add(new ChunkFlagger.FlagData(chunkKeys[i], Long.MAX_VALUE));
+					}
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				adapter.update(worldName, batch);
+				written += batch.size();
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * A growable list of chunk flags.
+	 */
+	private static final class LegacyFlags {
+
+		private long[] keys = new long[64];
+		private long[] values = new long[64];
+		private int size = 0;
+
+		/**
+		 * Adds a flag keyed by chunk coordinates in the form {@code <chunkX>_<chunkZ>}. Invalid keys are skipped.
+		 *
+		 * @param chunkPath the chunk coordinates
+		 * @param value the flag
+		 */
+		private void add(@NotNull String chunkPath, long value) {
+			int separator = chunkPath.indexOf('_');
+			if (separator < 0 || chunkPath.indexOf('_', separator + 1) >= 0) {
+				return;
+			}
+
+			try {
+				add(ChunkKey.of(Integer.parseInt(chunkPath.substring(0, separator)),
+						Integer.parseInt(chunkPath.substring(separator + 1))), value);
+			} catch (NumberFormatException e) {
+				// Invalid data, skip
+			}
+		}
+
+		private void add(long chunkKey, long value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = chunkKey;
+			values[size] = value;
+			++size;
+		}
+
+		private void addAll(@NotNull LegacyFlags other) {
+			for (int i = 0; i < other.size; ++i) {
+				add(other.keys[i], other.values[i]);
+			}
+		}
+
+	}
+
+}
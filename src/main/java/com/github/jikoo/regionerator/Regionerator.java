@@ -13,6 +13,7 @@ package com.github.jikoo.regionerator;
 import com.github.jikoo.regionerator.commands.RegioneratorExecutor;
 import com.github.jikoo.regionerator.hooks.Hook;
 import com.github.jikoo.regionerator.hooks.PluginHook;
+import com.github.jikoo.regionerator.hooks.SyncHookBatcher;
 import com.github.jikoo.regionerator.listeners.DebugListener;
 import com.github.jikoo.regionerator.listeners.FlaggingListener;
 import com.github.jikoo.regionerator.listeners.HookListener;
@@ -22,7 +23,9 @@ import com.github.jikoo.regionerator.util.yaml.MiscData;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -50,6 +53,9 @@ public class Regionerator extends JavaPlugin {
 	private final Map<String, DeletionRunnable> deletionRunnables = new ConcurrentHashMap<>();
 	private final Set<Hook> protectionHooks = Collections.newSetFromMap(new ConcurrentHashMap<>());
 	private final WorldManager worldManager = new WorldManager(this);
+	private final DeletionBudget deletionBudget = new DeletionBudget();
+	private final SyncHookBatcher syncHookBatcher = new SyncHookBatcher(this);
+	private final DeletionThrottle deletionThrottle = new DeletionThrottle(this);
 	private final AtomicBoolean paused = new AtomicBoolean();
 	private ChunkFlagger chunkFlagger;
 	private Config config;
@@ -62,6 +68,7 @@ public class Regionerator extends JavaPlugin {
 
 		saveDefaultConfig();
 		config = new Config(this);
+		deletionBudget.reload(config);
 		miscData = new MiscData(this, new File(getDataFolder(), "data.yml"));
 
 		boolean migrated = false;
@@ -80,7 +87,20 @@ public class Regionerator extends JavaPlugin {
 
 		miscData.checkWorldValidity();
 
-		chunkFlagger = new ChunkFlagger(this);
+		if (config.getStorageMode() == null) {
+			// Falling back to another storage mode would start from empty storage, making every chunk appear unvisited.
+			getLogger().severe("Flag storage is not configured correctly. Regionerator will not be enabled.");
+			getServer().getPluginManager().disablePlugin(this);
+			return;
+		}
+
+		try {
+			chunkFlagger = new ChunkFlagger(this);
+		} catch (RuntimeException e) {
+			getLogger().log(Level.SEVERE, "Unable to open flag storage. Regionerator will not be enabled.", e);
+			getServer().getPluginManager().disablePlugin(this);
+			return;
+		}
 		debugListener = new DebugListener(this);
 
 		PluginCommand command = getCommand("regionerator");
@@ -97,6 +117,11 @@ public class Regionerator extends JavaPlugin {
 			return;
 		}
 
+		// Query main thread hooks for deletion in groups every tick.
+		syncHookBatcher.runTaskTimer(this, 1L, 1L);
+		// Measure server load for deletion.
+		deletionThrottle.runTaskTimer(this, 1L, 1L);
+
 		reloadFeatures();
 
 		debug(DebugLevel.LOW, () -> executor.onCommand(Bukkit.getConsoleSender(), Objects.requireNonNull(command), "regionerator", new String[0]));
@@ -106,7 +131,12 @@ public class Regionerator extends JavaPlugin {
 	public void onDisable() {
 		// Manually cancel deletion runnables - Bukkit does not do a good job of informing tasks they can't continue.
 		deletionRunnables.values().forEach(BukkitRunnable::cancel);
+		// Save progress of unfinished cycles so that they resume on the next start.
+		deletionRunnables.values().forEach(DeletionRunnable::saveProgress);
 		deletionRunnables.clear();
+		if (miscData != null) {
+			miscData.saveNow();
+		}
 		getServer().getScheduler().cancelTasks(this);
 
 		if (chunkFlagger != null) {
@@ -122,6 +152,7 @@ public class Regionerator extends JavaPlugin {
 		super.reloadConfig();
 		if (this.config != null) {
 			this.config.reload();
+			deletionBudget.reload(config);
 		}
 		if (this.miscData != null) {
 			this.miscData.reload();
@@ -217,11 +248,15 @@ public class Regionerator extends JavaPlugin {
 	}
 
 	void finishCycle(DeletionRunnable runnable) {
-		miscData.setNextCycle(runnable.getWorld(), runnable.getNextRun());
+		miscData.setCycleProgress(runnable.getWorld(), null);
+		if (config.isRememberCycleDelay()) {
+			miscData.setNextCycle(runnable.getWorld(), runnable.getNextRun());
+		}
 	}
 
 	/**
-	 * Attempts to activate {@link DeletionRunnable}s for any configured worlds.
+	 * Attempts to activate {@link DeletionRunnable}s for any configured worlds. Worlds run at the same time up to the
+	 * {@link DeletionBudget#getThreads() thread budget}, starting with the world that has been waiting longest.
 	 */
 	public void attemptDeletionActivation() {
 		deletionRunnables.values().removeIf(value -> value.getNextRun() < System.currentTimeMillis());
@@ -230,38 +265,95 @@ public class Regionerator extends JavaPlugin {
 			return;
 		}
 
-		for (String worldName : config.enabledWorlds()) {
-			if (miscData.getNextCycle(worldName) > System.currentTimeMillis()) {
-				// Not time yet.
-				continue;
-			}
-			DeletionRunnable runnable = deletionRunnables.get(worldName);
-			if (runnable != null) {
-				if (runnable.getNextRun() == Long.MAX_VALUE) {
-					// Deletion is ongoing for world.
-					return;
-				}
-				// Deletion is complete for world.
-				continue;
+		if (chunkFlagger.isConverting()) {
+			// Flags may be missing until old flags are converted.
+			debug(DebugLevel.LOW, () -> "Deletion is waiting for old flags to be converted.");
+			return;
+		}
+
+		if (chunkFlagger.isImporting()) {
+			// Imported flags are not visible until the import completes.
+			debug(DebugLevel.LOW, () -> "Deletion is waiting for flags to be imported.");
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		List<String> dueWorlds = config.enabledWorlds().stream()
+				// Worlds with a runnable are either ongoing or complete.
+				.filter(worldName -> !deletionRunnables.containsKey(worldName))
+				.filter(worldName -> miscData.getNextCycle(worldName) <= now)
+				.sorted(Comparator.comparingLong(miscData::getNextCycle))
+				.collect(Collectors.toList());
+
+		int running = getActiveDeletions();
+		for (String worldName : dueWorlds) {
+			if (!deletionBudget.canStartCycle(running)) {
+				// Remaining worlds wait for a cycle to complete.
+				debug(DebugLevel.LOW, () -> "Deletion threads are busy, " + worldName + " is waiting.");
+				return;
 			}
 			World world = Bukkit.getWorld(worldName);
 			if (world == null) {
 				// World is not loaded.
 				continue;
 			}
+			DeletionRunnable runnable;
 			try {
-				runnable = new DeletionRunnable(this, world);
+				runnable = new DeletionRunnable(this, deletionBudget, deletionThrottle, world);
 			} catch (RuntimeException e) {
 				debug(DebugLevel.HIGH, e::getMessage);
 				continue;
 			}
 			runnable.runTaskAsynchronously(this);
 			deletionRunnables.put(worldName, runnable);
+			++running;
 			debug(DebugLevel.LOW, () -> "Deletion run scheduled for " + world.getName());
-			return;
 		}
 	}
 
+	/**
+	 * Gets whether a deletion cycle is in progress in any world.
+	 *
+	 * @return true if deletion is in progress
+	 */
+	public boolean isDeletionActive() {
+		return getActiveDeletions() > 0;
+	}
+
+	/**
+	 * Gets the number of worlds with a deletion cycle in progress.
+	 *
+	 * @return the number of worlds
+	 */
+	public int getActiveDeletions() {
+		return (int) deletionRunnables.values().stream().filter(runnable -> runnable.getNextRun() == Long.MAX_VALUE).count();
+	}
+
+	/**
+	 * Gets usage of the budget shared by deletion cycles.
+	 *
+	 * @return a description of the budget in use
+	 */
+	public String getDeletionBudgetStats() {
+		int ioPerSecond = config.getDeletionIoPerSecond();
+		int running = getActiveDeletions();
+		return String.format("Deletion budget: %s worlds using %s/%s threads, %s/%s regions, %s I/O per second",
+				running, running * deletionBudget.getCycleThreads(), deletionBudget.getThreads(), deletionBudget.getActiveRegions(),
+				deletionBudget.getMaxRegions(), ioPerSecond == 0 ? "unlimited" : ioPerSecond);
+	}
+
+	/**
+	 * Gets the current deletion scan rate and the server load it is based on.
+	 *
+	 * @return a description of the scan rate
+	 */
+	public String getDeletionRateStats() {
+		double rate = deletionThrottle.getRate();
+		return String.format("Deletion rate: %s regions/s per hook thread (%s), average tick %.1f ms",
+				Double.isInfinite(rate) ? "unlimited" : String.format("%.2f", rate),
+				config.isDeletionAdaptive() ? "adaptive" : "fixed", deletionThrottle.getAverageTickMillis());
+	}
+
 	public Set<Hook> getProtectionHooks() {
 		return Collections.unmodifiableSet(this.protectionHooks);
 	}
@@ -299,6 +391,10 @@ public class Regionerator extends JavaPlugin {
 		return this.protectionHooks.remove(hook);
 	}
 
+	public SyncHookBatcher getSyncHookBatcher() {
+		return this.syncHookBatcher;
+	}
+
 	public ChunkFlagger getFlagger() {
 		return this.chunkFlagger;
 	}
@@ -13,10 +13,12 @@ package com.github.jikoo.regionerator.commands;
 import com.github.jikoo.planarwrappers.util.Coords;
 import com.github.jikoo.regionerator.DeletionRunnable;
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.database.StorageMode;
 import com.github.jikoo.regionerator.hooks.Hook;
 import com.github.jikoo.regionerator.util.yaml.Config;
 import com.github.jikoo.regionerator.world.ChunkInfo;
 import com.github.jikoo.regionerator.world.RegionInfo;
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
@@ -24,8 +26,10 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.stream.Stream;
+import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
 import org.bukkit.World;
 import org.bukkit.command.Command;
@@ -81,12 +85,20 @@ public class RegioneratorExecutor implements TabExecutor {
 					sender.sendMessage(runnable.getRunStats());
 					if (runnable.getNextRun() < Long.MAX_VALUE) {
 						sender.sendMessage(" - Next run: " + format.format(runnable.getNextRun()));
+					} else {
+						sender.sendMessage(runnable.getProgress());
+						runnable.getPipelineStats().forEach(sender::sendMessage);
 					}
 				} else {
 					sender.sendMessage("Cycle for " + worldName + " is ready to start.");
 				}
 			}
 
+			if (plugin.isDeletionActive()) {
+				sender.sendMessage(plugin.getDeletionBudgetStats());
+				sender.sendMessage(plugin.getDeletionRateStats());
+			}
+
 			if (plugin.isPaused()) {
 				sender.sendMessage("Regionerator is paused. Use \"/regionerator resume\" to continue.");
 			}
@@ -124,6 +136,108 @@ public class RegioneratorExecutor implements TabExecutor {
 		if (args[0].equals("cache")) {
 			sender.sendMessage("Cached chunk values: " + plugin.getFlagger().getCached());
 			sender.sendMessage("Queued saves: " + plugin.getFlagger().getQueued());
+			sender.sendMessage("Unsaved changes: " + plugin.getFlagger().getUnsaved());
+			sender.sendMessage("Queued loads: " + plugin.getFlagger().getQueuedLoads());
+			sender.sendMessage("Queued writes: " + plugin.getFlagger().getQueuedWrites());
+			sender.sendMessage(String.format("Last commit: %s flags in %s ms",
+					plugin.getFlagger().getLastCommitSize(), plugin.getFlagger().getLastCommitLatency()));
+			int cached = plugin.getFlagger().getCached();
+			long memory = plugin.getFlagger().getCacheMemoryUsage();
+			sender.sendMessage(String.format("Estimated cache memory: %s KiB (%s bytes per entry)",
+					memory / 1024, cached == 0 ? 0 : memory / cached));
+			sender.sendMessage("Indexed flagged regions: " + plugin.getFlagger().getIndexedRegions());
+			return true;
+		}
+
+		if (args[0].equals("migrate")) {
+			StorageMode storageMode = null;
+			if (args.length > 1) {
+				for (StorageMode value : StorageMode.values()) {
+					if (value.name().equalsIgnoreCase(args[1])) {
+						storageMode = value;
+						break;
+					}
+				}
+			}
+			if (storageMode == null) {
+				sender.sendMessage("Please specify a storage mode: /regionerator migrate <chunk|region|file>");
+				return true;
+			}
+			if (storageMode == plugin.config().getStorageMode()) {
+				sender.sendMessage("Flags are already stored using " + storageMode.name() + "!");
+				return true;
+			}
+			if (plugin.getFlagger().isConverting()) {
+				sender.sendMessage("Flags cannot be copied until old flags are converted!");
+				return true;
+			}
+
+			StorageMode target = storageMode;
+			sender.sendMessage("Copying flags to " + target.name() + " storage. This may take a while.");
+			plugin.getFlagger().migrate(target).whenComplete((copied, throwable) -> Bukkit.getScheduler().runTask(plugin, () -> {
+				if (throwable != null) {
+					sender.sendMessage("Unable to copy flags! Please check console.");
+					plugin.getLogger().log(Level.WARNING, "Unable to migrate flags to " + target.name(), throwable);
+					return;
+				}
+				plugin.getMiscData().setMigratedStorage(target);
+				sender.sendMessage(String.format("Copied %s flags. Set database.storage-mode to %s and restart to use them.",
+						copied, target.name()));
+			}));
+			return true;
+		}
+
+		if (args[0].equals("rebuild")) {
+			if (plugin.isDeletionActive() || plugin.getFlagger().isConverting()) {
+				sender.sendMessage("The database cannot be rebuilt while deletion is running or old flags are being converted!");
+				return true;
+			}
+
+			sender.sendMessage("Rebuilding the database. Flags are not saved until complete, this may take several minutes.");
+			plugin.getFlagger().rebuild().whenComplete((reclaimed, throwable) -> Bukkit.getScheduler().runTask(plugin, () -> {
+				if (throwable != null) {
+					sender.sendMessage("Unable to rebuild the database! Please check console.");
+					plugin.getLogger().log(Level.WARNING, "Unable to rebuild the database", throwable);
+					return;
+				}
+				sender.sendMessage(String.format("Rebuilt the database, reclaimed %s KiB.", reclaimed / 1024));
+			}));
+			return true;
+		}
+
+		if (args[0].equals("export") || args[0].equals("import")) {
+			boolean export = args[0].equals("export");
+			File file = args.length > 1 ? getSnapshotFile(args[1]) : null;
+			if (file == null) {
+				sender.sendMessage("Please specify a file name: /regionerator " + args[0] + " <file>");
+				return true;
+			}
+			if (!export && !file.isFile()) {
+				sender.sendMessage("No snapshot named " + file.getName() + " exists in the plugin folder!");
+				return true;
+			}
+			if (plugin.getFlagger().isConverting()) {
+				sender.sendMessage("Flags cannot be " + (export ? "exported" : "imported") + " until old flags are converted!");
+				return true;
+			}
+			if (!export && plugin.isDeletionActive()) {
+				sender.sendMessage("Flags cannot be imported while deletion is running!");
+				return true;
+			}
+
+			sender.sendMessage((export ? "Exporting flags to " : "Importing flags from ") + file.getName()
+					+ ". This may take a while.");
+			CompletableFuture<Long> future = export ? plugin.getFlagger().exportFlags(file)
+					: plugin.getFlagger().importFlags(file);
+			future.whenComplete((count, throwable) -> Bukkit.getScheduler().runTask(plugin, () -> {
+				if (throwable != null) {
+					sender.sendMessage("Unable to " + (export ? "export" : "import") + " flags! Please check console.");
+					plugin.getLogger().log(Level.WARNING, "Unable to " + (export ? "export flags to " : "import flags from ")
+							+ file.getName(), throwable);
+					return;
+				}
+				sender.sendMessage(String.format("%s %s flags.", export ? "Exported" : "Imported", count));
+			}));
 			return true;
 		}
 
@@ -187,6 +301,19 @@ public class RegioneratorExecutor implements TabExecutor {
 		return false;
 	}
 
+	/**
+	 * Gets a snapshot file in the plugin folder. Names containing path separators are not allowed.
+	 *
+	 * @param name the file name
+	 * @return the file or null if the name is not allowed
+	 */
+	private @Nullable File getSnapshotFile(@NotNull String name) {
+		if (name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+			return null;
+		}
+		return new File(plugin.getDataFolder(), name);
+	}
+
 	@Nullable
 	@Override
 	public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command,
@@ -197,8 +324,8 @@ public class RegioneratorExecutor implements TabExecutor {
 
 		if (args.length == 1) {
 			String[] completions = sender instanceof Player
-					? new String[]{"pause", "resume", "reload", "flag", "unflag", "cache", "check"}
-					: new String[]{"pause", "resume", "reload", "flag", "unflag", "cache"};
+					? new String[]{"pause", "resume", "reload", "flag", "unflag", "cache", "migrate", "export", "import", "rebuild", "check"}
+					: new String[]{"pause", "resume", "reload", "flag", "unflag", "cache", "migrate", "export", "import", "rebuild"};
 			return TabCompleter.completeString(args[0], completions);
 		}
 
@@ -215,6 +342,10 @@ public class RegioneratorExecutor implements TabExecutor {
 			}
 		}
 
+		if ("migrate".equals(args[0]) && args.length == 2) {
+			return TabCompleter.completeEnum(args[1], StorageMode.class);
+		}
+
 		return Collections.emptyList();
 	}
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.Regionerator;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A conversion of stored flags run on its own thread so that startup is not delayed.
+ *
+ * <p>Conversions commit in batches and remove converted rows as they go, so a stopped conversion resumes where it left
+ * off on the next startup. Conversions must check {@link #isCancelled()} between batches.
+ */
+final class BackgroundConversion {
+
+	private final Regionerator plugin;
+	private final Task task;
+	private final Thread thread;
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Constructs a new BackgroundConversion.
+	 *
+	 * @param plugin the plugin
+	 * @param name the name of the conversion thread
+	 * @param task the conversion
+	 */
+	BackgroundConversion(@NotNull Regionerator plugin, @NotNull String name, @NotNull Task task) {
+		this.plugin = plugin;
+		this.task = task;
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Gets a future completed once conversion finishes successfully. If conversion fails, the future completes
+	 * exceptionally. If conversion is cancelled, the future is never completed.
+	 *
+	 * @return the future
+	 */
+	@NotNull CompletableFuture<Void> getFuture() {
+		return future;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Stops conversion after the current batch and waits for it to stop.
+	 */
+	void cancel() {
+		cancelled = true;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		try {
+			task.convert();
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception converting stored flags! Deletion is paused until conversion resumes on next startup.", e);
+			future.completeExceptionally(e);
+			return;
+		}
+
+		if (!cancelled) {
+			future.complete(null);
+		}
+	}
+
+	/**
+	 * A conversion of stored flags.
+	 */
+	@FunctionalInterface
+	interface Task {
+
+		void convert() throws Exception;
+
+	}
+
+}
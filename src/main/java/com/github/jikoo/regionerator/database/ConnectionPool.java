@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Connections to an SQLite database in write-ahead logging mode.
+ *
+ * <p>A single writer connection is shared by all writes and must be synchronized on. Reads use a pool of separate
+ * connections so that they only see committed data and are never blocked by a write in progress.
+ */
+class ConnectionPool {
+
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+	/** Free pages released per incremental vacuum transaction. */
+	private static final int VACUUM_STEP_PAGES = 1024;
+
+	private final PooledConnection writer;
+	private final BlockingQueue<PooledConnection> readers;
+	private volatile boolean closed = false;
+
+	ConnectionPool(@NotNull String url, @NotNull Config config) throws SQLException {
+		writer = new PooledConnection(DriverManager.getConnection(url), config);
+		try (Statement st = writer.connection.createStatement()) {
+			if (getSize(writer.connection) == 0) {
+				// Only applies immediately to new databases. Existing databases keep their mode until rebuilt.
+				st.execute("PRAGMA auto_vacuum=INCREMENTAL");
+			}
+			// Journal mode is persistent, it only needs to be set by one connection.
+			st.execute("PRAGMA journal_mode=WAL");
+		}
+
+		int readerCount = config.getDatabaseReadConnections();
+		readers = new ArrayBlockingQueue<>(readerCount);
+		for (int i = 0; i < readerCount; ++i) {
+			readers.add(new PooledConnection(DriverManager.getConnection(url), config));
+		}
+
+		writer.connection.setAutoCommit(false);
+	}
+
+	/**
+	 * Gets the writer connection. Callers must synchronize on the connection for the duration of their use.
+	 *
+	 * @return the writer connection
+	 */
+	@NotNull PooledConnection getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Runs a function using a reader connection.
+	 *
+	 * @param function the function
+	 * @param <T> the type of value returned
+	 * @param <E> the type of additional exception thrown by the function
+	 * @return the value returned by the function
+	 * @throws SQLException if the pool is closed or an error occurs reading the database
+	 * @throws E if the function throws an exception
+	 */
+	<T, E extends Exception> T read(@NotNull SQLFunction<T, E> function) throws SQLException, E {
+		PooledConnection reader = null;
+		try {
+			while (reader == null) {
+				if (closed) {
+					throw new SQLException("Connection pool is closed");
+				}
+				reader = readers.poll(1, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted awaiting a connection", e);
+		}
+
+		try {
+			return function.apply(reader);
+		} finally {
+			readers.add(reader);
+			if (closed) {
+				closeReaders();
+			}
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns free pages to the file system and refreshes query planner statistics.
+	 *
+	 * <p>Free pages are released in small steps so that writes are not blocked for long. Databases created without
+	 * incremental vacuum keep their free pages for reuse until {@link #rebuild() rebuilt}.
+	 *
+	 * @return the number of bytes reclaimed
+	 * @throws SQLException if an error occurs vacuuming the database
+	 */
+	long vacuum() throws SQLException {
+		long sizeBefore;
+		boolean incremental;
+		synchronized (writer) {
+			sizeBefore = getSize(writer.connection);
+			try (Statement st = writer.connection.createStatement();
+					ResultSet rs = st.executeQuery("PRAGMA auto_vacuum")) {
+				incremental = rs.next() && rs.getInt(1) == AUTO_VACUUM_INCREMENTAL;
+			}
+		}
+
+		while (incremental && !closed) {
+			synchronized (writer) {
+				try (Statement st = writer.connection.createStatement()) {
+					try (ResultSet rs = st.executeQuery("PRAGMA freelist_count")) {
+						if (!rs.next() || rs.getLong(1) == 0) {
+							break;
+						}
+					}
+					st.execute("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+				}
+				writer.connection.commit();
+			}
+		}
+
+		synchronized (writer) {
+			try (Statement st = writer.connection.createStatement()) {
+				st.executeUpdate("ANALYZE");
+			}
+			writer.connection.commit();
+			return sizeBefore - getSize(writer.connection);
+		}
+	}
+
+	/**
+	 * Rebuilds the database, returning all free pages to the file system and enabling incremental vacuum so that
+	 * later maintenance can release space in small steps. Writes are blocked until the rebuild completes, which may take
+	 * several minutes for large databases.
+	 *
+	 * @return the number of bytes reclaimed
+	 * @throws SQLException if an error occurs rebuilding the database
+	 */
+	long rebuild() throws SQLException {
+		synchronized (writer) {
+			long sizeBefore = getSize(writer.connection);
+			// Full vacuum cannot run inside a transaction.
+			writer.connection.commit();
+			writer.connection.setAutoCommit(true);
+			try (Statement st = writer.connection.createStatement()) {
+				st.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+				st.executeUpdate("VACUUM");
+			} finally {
+				writer.connection.setAutoCommit(false);
+			}
+			return sizeBefore - getSize(writer.connection);
+		}
+	}
+
+	private static long getSize(@NotNull Connection connection) throws SQLException {
+		try (Statement st = connection.createStatement()) {
+			long pageCount;
+			try (ResultSet rs = st.executeQuery("PRAGMA page_count")) {
+				pageCount = rs.next() ? rs.getLong(1) : 0;
+			}
+			try (ResultSet rs = st.executeQuery("PRAGMA page_size")) {
+				return rs.next() ? pageCount * rs.getLong(1) : 0;
+			}
+		}
+	}
+
+	/**
+	 * Commits pending writes and closes all connections.
+	 *
+	 * @throws SQLException if an error occurs committing or closing the writer connection
+	 */
+	void close() throws SQLException {
+		closed = true;
+		closeReaders();
+		synchronized (writer) {
+			try {
+				writer.connection.commit();
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private void closeReaders() {
+		PooledConnection reader;
+		while ((reader = readers.poll()) != null) {
+			try {
+				reader.close();
+			} catch (SQLException ignored) {
+				// Readers hold no pending changes.
+			}
+		}
+	}
+
+	/**
+	 * A connection caching its prepared statements.
+	 *
+	 * <p>Cached statements are reused and must not be closed by callers.
+	 */
+	static final class PooledConnection {
+
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+		private PooledConnection(@NotNull Connection connection, @NotNull Config config) throws SQLException {
+			this.connection = connection;
+			try (Statement st = connection.createStatement()) {
+				st.execute("PRAGMA synchronous=" + config.getDatabaseSynchronous());
+				st.execute("PRAGMA cache_size=" + config.getDatabaseCacheSize());
+				st.execute("PRAGMA mmap_size=" + config.getDatabaseMmapSize());
+			}
+		}
+
+		/**
+		 * Gets the underlying connection.
+		 *
+		 * @return the connection
+		 */
+		@NotNull Connection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Gets a cached prepared statement, preparing it if necessary.
+		 *
+		 * @param sql the SQL of the statement
+		 * @return the prepared statement
+		 * @throws SQLException if an error occurs preparing the statement
+		 */
+		@NotNull PreparedStatement prepare(@NotNull String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			return statement;
+		}
+
+		/**
+		 * Gets whether a table exists.
+		 *
+		 * @param name the name of the table
+		 * @return true if the table exists
+		 * @throws SQLException if an error occurs reading the schema
+		 */
+		boolean hasTable(@NotNull String name) throws SQLException {
+			PreparedStatement statement = prepare("SELECT name FROM sqlite_master WHERE type='table' AND name=?");
+			statement.setString(1, name);
+			try (ResultSet rs = statement.executeQuery()) {
+				return rs.next();
+			}
+		}
+
+		private void close() throws SQLException {
+			for (PreparedStatement statement : statements.values()) {
+				statement.close();
+			}
+			statements.clear();
+			connection.close();
+		}
+
+	}
+
+	/**
+	 * A function using a database connection.
+	 *
+	 * @param <T> the type of value returned
+	 * @param <E> the type of additional exception thrown, usually inferred as {@link RuntimeException}
+	 */
+	@FunctionalInterface
+	interface SQLFunction<T, E extends Exception> {
+
+		T apply(@NotNull PooledConnection connection) throws SQLException, E;
+
+	}
+
+}
@@ -12,10 +12,13 @@ package com.github.jikoo.regionerator.database;
 
 import com.github.jikoo.regionerator.ChunkFlagger;
 import com.github.jikoo.regionerator.Regionerator;
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -27,22 +30,277 @@ public interface DatabaseAdapter {
 
 	void close();
 
-	void update(@NotNull Collection<ChunkFlagger.FlagData> flags) throws Exception;
+	void update(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) throws Exception;
 
-	long get(@NotNull String identifier) throws Exception;
+	/**
+	 * Stores several batches of flags. Batches are applied in order and, if supported, in a single transaction.
+	 *
+	 * @param batches the batches of flags
+	 * @throws Exception if an error occurs writing the database
+	 */
+	default void updateAll(@NotNull List<FlagBatch> batches) throws Exception {
+		for (FlagBatch batch : batches) {
+			update(batch.getWorldName(), batch.getFlags());
+		}
+	}
 
-	static @NotNull DatabaseAdapter getAdapter(@NotNull Regionerator plugin) throws Exception {
-		Class.forName("org.sqlite.JDBC");
+	/**
+	 * Stores values as of deletion, keeping the higher of the stored and new values. Current flags are not affected.
+	 *
+	 * @param worldName the world name
+	 * @param values the values as of deletion
+	 * @throws Exception if an error occurs writing the database
+	 */
+	void updateHistory(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> values) throws Exception;
+
+	long get(@NotNull String worldName, long chunkKey) throws Exception;
+
+	long getOnDelete(@NotNull String worldName, long chunkKey) throws Exception;
+
+	/**
+	 * Gets the flags of several chunks at once.
+	 *
+	 * @param worldName the world name
+	 * @param chunkKeys the {@link ChunkKey ChunkKeys} of the chunks
+	 * @return the chunk flags, in the same order as the keys
+	 * @throws Exception if an error occurs reading the database
+	 */
+	default @NotNull long[] getAll(@NotNull String worldName, @NotNull long[] chunkKeys) throws Exception {
+		long[] flags = new long[chunkKeys.length];
+		for (int i = 0; i < chunkKeys.length; ++i) {
+			flags[i] = get(worldName, chunkKeys[i]);
+		}
+		return flags;
+	}
+
+	/**
+	 * Gets the flags of all chunks in a region, ordered by {@link ChunkKey#getRegionIndex(long)}.
+	 *
+	 * @param worldName the world name
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return the chunk flags
+	 * @throws Exception if an error occurs reading the database
+	 */
+	default @NotNull long[] getRegion(@NotNull String worldName, int regionX, int regionZ) throws Exception {
+		long[] chunkKeys = new long[ChunkKey.CHUNKS_PER_REGION];
+		for (int index = 0; index < chunkKeys.length; ++index) {
+			chunkKeys[index] = ChunkKey.ofRegionIndex(regionX, regionZ, index);
+		}
+		return getAll(worldName, chunkKeys);
+	}
 
-		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + plugin.getDataFolder().getAbsolutePath() + "/data.db");
-		DatabaseMetaData metaData = connection.getMetaData();
+	/**
+	 * Gets whether the adapter stores regions as single records. If true, {@link #getRegion(String, int, int)} costs
+	 * the same as a single {@link #get(String, long)}.
+	 *
+	 * @return true if entire regions are read at once
+	 */
+	default boolean isRegionGranular() {
+		return false;
+	}
 
-		if (metaData.getDatabaseMajorVersion() < 3 || metaData.getDatabaseMajorVersion() == 3 && metaData.getDatabaseMinorVersion() < 24) {
-			// Terrible SQLite
-			return new SQLeadenAdapter(plugin, connection);
+	/**
+	 * Visits the stored flags of all chunks in a rectangle of regions. Chunks without flags are not visited.
+	 *
+	 * @param worldName the world name
+	 * @param minRegionX the lowest region X coordinate, inclusive
+	 * @param minRegionZ the lowest region Z coordinate, inclusive
+	 * @param maxRegionX the highest region X coordinate, inclusive
+	 * @param maxRegionZ the highest region Z coordinate, inclusive
+	 * @param visitor the visitor
+	 * @throws Exception if an error occurs reading the database or the visitor throws an exception
+	 */
+	default void forEachFlag(@NotNull String worldName, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ,
+			@NotNull FlagVisitor visitor) throws Exception {
+		for (int regionX = minRegionX; regionX <= maxRegionX; ++regionX) {
+			for (int regionZ = minRegionZ; regionZ <= maxRegionZ; ++regionZ) {
+				long[] flags = getRegion(worldName, regionX, regionZ);
+				for (int index = 0; index < flags.length; ++index) {
+					if (flags[index] != Config.FLAG_DEFAULT) {
+						visitor.visit(worldName, ChunkKey.ofRegionIndex(regionX, regionZ, index), flags[index]);
+					}
+				}
+			}
 		}
+	}
+
+	/**
+	 * Visits every stored flag.
+	 *
+	 * @param onDelete whether to visit values as of deletion instead of current flags
+	 * @param visitor the visitor
+	 * @throws Exception if an error occurs reading the database or the visitor throws an exception
+	 */
+	void forEachFlag(boolean onDelete, @NotNull FlagVisitor visitor) throws Exception;
+
+	/**
+	 * Visits a bitmap of the chunks with stored flags for every region in a world with any stored flags. Bits are
+	 * ordered by {@link ChunkKey#getRegionIndex(long)}.
+	 *
+	 * @param worldName the world name
+	 * @param visitor the visitor
+	 * @throws Exception if an error occurs reading the database or the visitor throws an exception
+	 */
+	default void forEachRegionBitmap(@NotNull String worldName, @NotNull BitmapVisitor visitor) throws Exception {
+		Map<Long, long[]> bitmaps = new HashMap<>();
+		forEachFlag(false, (flagWorld, chunkKey, lastVisit) -> {
+			if (flagWorld.equals(worldName)) {
+				long regionKey = ChunkKey.of(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5);
+				int index = ChunkKey.getRegionIndex(chunkKey);
+				bitmaps.computeIfAbsent(regionKey, key -> new long[ChunkKey.REGION_BITMAP_LONGS])[index >> 6] |= 1L << index;
+			}
+		});
+
+		for (Map.Entry<Long, long[]> entry : bitmaps.entrySet()) {
+			visitor.visit(ChunkKey.getX(entry.getKey()), ChunkKey.getZ(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Gets the names of all worlds with stored flags.
+	 *
+	 * @return the world names
+	 * @throws Exception if an error occurs reading the database
+	 */
+	@NotNull Collection<String> getWorldNames() throws Exception;
+
+	/**
+	 * Removes stored values that no longer have any effect. Values are removed in small batches so that other writes
+	 * are not blocked for long.
+	 *
+	 * @param worldName the world name
+	 * @param visitCutoff the time before which flags are removed
+	 * @param historyCutoff the time before which values as of deletion are removed
+	 * @return the number of values removed
+	 * @throws Exception if an error occurs writing the database
+	 */
+	default long prune(@NotNull String worldName, long visitCutoff, long historyCutoff) throws Exception {
+		return 0;
+	}
+
+	/**
+	 * Removes all stored flags and values as of deletion of a world. Values are removed in small batches so that other
+	 * writes are not blocked for long.
+	 *
+	 * @param worldName the world name
+	 * @throws Exception if an error occurs writing the database
+	 */
+	void dropWorld(@NotNull String worldName) throws Exception;
+
+	/**
+	 * Releases storage space no longer used by removed values.
+	 *
+	 * @return the number of bytes reclaimed
+	 * @throws Exception if an error occurs compacting the database
+	 */
+	default long compact() throws Exception {
+		return 0;
+	}
+
+	/**
+	 * Rebuilds storage, returning all unused space to the file system. Writes wait for the rebuild to complete.
+	 *
+	 * @return the number of bytes reclaimed
+	 * @throws Exception if an error occurs rebuilding storage
+	 */
+	default long rebuild() throws Exception {
+		return 0;
+	}
+
+	/**
+	 * Gets a future completed once flags stored in older formats have been converted in the background. Stored flags
+	 * may be incomplete until then. If conversion fails, the future completes exceptionally and conversion resumes on
+	 * the next startup.
+	 *
+	 * @return the conversion future
+	 */
+	default @NotNull CompletableFuture<Void> getConversion() {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Opens the adapter for the configured {@link StorageMode}, converting existing flags if supported.
+	 *
+	 * <p>If the configured storage is empty but another storage mode's flags are present, the adapter is not opened.
+	 * Starting from empty storage would make every chunk appear unvisited. Flags must be copied with
+	 * {@link ChunkFlagger#migrate(StorageMode) migrate} first, or empty storage must be explicitly confirmed.
+	 *
+	 * @param plugin the plugin
+	 * @return the adapter
+	 * @throws Exception if an error occurs opening the adapter
+	 */
+	static @NotNull DatabaseAdapter getAdapter(@NotNull Regionerator plugin) throws Exception {
+		StorageMode storageMode = plugin.config().getStorageMode();
+		if (storageMode == null) {
+			throw new IllegalStateException("Invalid storage mode configured");
+		}
+
+		DatabaseAdapter adapter = storageMode.open(plugin, true);
+		try {
+			String otherStorage = storageMode.findOtherStorage(plugin.getDataFolder());
+			if (otherStorage != null && storageMode != plugin.getMiscData().getMigratedStorage()
+					&& !plugin.config().isConfirmEmptyStorage() && isEmpty(adapter)) {
+				plugin.getLogger().severe(String.format("%s storage is empty, but flags are stored in %s! Use /regionerator migrate to copy flags before changing storage mode or set database.confirm-empty-storage to true to start over.",
+						storageMode.name(), otherStorage));
+				throw new IllegalStateException(storageMode.name() + " storage is empty, flags are stored in " + otherStorage);
+			}
+		} catch (Exception e) {
+			adapter.close();
+			throw e;
+		}
+		return adapter;
+	}
+
+	/**
+	 * Gets whether an adapter has no stored flags. Flags being converted count as stored.
+	 *
+	 * @param adapter the adapter
+	 * @return true if no flags are stored
+	 * @throws Exception if an error occurs reading the database
+	 */
+	static boolean isEmpty(@NotNull DatabaseAdapter adapter) throws Exception {
+		CompletableFuture<Void> conversion = adapter.getConversion();
+		return conversion.isDone() && !conversion.isCompletedExceptionally() && adapter.getWorldNames().isEmpty();
+	}
+
+	/**
+	 * Copies all flags from one adapter to another. Copied values are merged with any values already in the target.
+	 *
+	 * @param source the adapter to copy from
+	 * @param target the adapter to copy to
+	 * @return the number of values copied
+	 * @throws Exception if an error occurs reading or writing flags
+	 */
+	static long copyFlags(@NotNull DatabaseAdapter source, @NotNull DatabaseAdapter target) throws Exception {
+		FlagCopier history = new FlagCopier(target, true);
+		source.forEachFlag(true, history::add);
+		history.flush();
+
+		FlagCopier visits = new FlagCopier(target, false);
+		source.forEachFlag(false, visits::add);
+		visits.flush();
+
+		return history.getCopied() + visits.getCopied();
+	}
+
+	/**
+	 * A visitor of region bitmaps.
+	 */
+	@FunctionalInterface
+	interface BitmapVisitor {
+
+		void visit(int regionX, int regionZ, @NotNull long[] bitmap) throws Exception;
+
+	}
+
+	/**
+	 * A visitor of stored flags.
+	 */
+	@FunctionalInterface
+	interface FlagVisitor {
 
-		return new SQLiteAdapter(plugin, connection);
+		void visit(@NotNull String worldName, long chunkKey, long lastVisit) throws Exception;
 
 	}
 
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import java.util.Collection;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A collection of flags to store for a single world.
+ */
+public final class FlagBatch {
+
+	private final String worldName;
+	private final Collection<ChunkFlagger.FlagData> flags;
+
+	public FlagBatch(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) {
+		this.worldName = worldName;
+		this.flags = flags;
+	}
+
+	public @NotNull String getWorldName() {
+		return worldName;
+	}
+
+	public @NotNull Collection<ChunkFlagger.FlagData> getFlags() {
+		return flags;
+	}
+
+}
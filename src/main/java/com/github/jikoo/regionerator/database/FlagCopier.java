@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes flags visited from one adapter to another in batches.
+ *
+ * @see DatabaseAdapter#copyFlags(DatabaseAdapter, DatabaseAdapter)
+ */
+final class FlagCopier {
+
+	private static final int BATCH_SIZE = 16384;
+
+	private final DatabaseAdapter target;
+	private final boolean onDelete;
+	private final Map<String, List<ChunkFlagger.FlagData>> pending = new HashMap<>();
+	private int pendingCount = 0;
+	private long copied = 0;
+
+	/**
+	 * Constructs a new FlagCopier.
+	 *
+	 * @param target the adapter to copy to
+	 * @param onDelete whether copied values are values as of deletion
+	 */
+	FlagCopier(@NotNull DatabaseAdapter target, boolean onDelete) {
+		this.target = target;
+		this.onDelete = onDelete;
+	}
+
+	void add(@NotNull String worldName, long chunkKey, long value) throws Exception {
+		pending.computeIfAbsent(worldName, key -> new ArrayList<>()).add(new ChunkFlagger.FlagData(chunkKey, value));
+		++copied;
+		if (++pendingCount >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	void flush() throws Exception {
+		if (pendingCount == 0) {
+			return;
+		}
+
+		if (onDelete) {
+			for (Map.Entry<String, List<ChunkFlagger.FlagData>> entry : pending.entrySet()) {
+				target.updateHistory(entry.getKey(), entry.getValue());
+			}
+		} else {
+			List<FlagBatch> batches = new ArrayList<>();
+			for (Map.Entry<String, List<ChunkFlagger.FlagData>> entry : pending.entrySet()) {
+				batches.add(new FlagBatch(entry.getKey(), entry.getValue()));
+			}
+			target.updateAll(batches);
+		}
+		pending.clear();
+		pendingCount = 0;
+	}
+
+	long getCopied() {
+		return copied;
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A compact binary file containing every stored flag.
+ *
+ * <p>The file starts with a magic number and the format version followed by any number of blocks. Each block starts
+ * with its kind, the world name, and the number of flags it contains. Flags in a block are sorted by
+ * {@link ChunkKey#toMorton(long) Morton code} so that nearby chunks are adjacent. Each flag is stored as the variable
+ * length difference from the previous Morton code followed by the zigzag encoded variable length difference from the
+ * previous value. The file ends with an end marker and a CRC32 of everything before it.
+ */
+public final class FlagSnapshot {
+
+	private static final int MAGIC = 0x52474E53;
+	private static final int VERSION = 1;
+	private static final byte BLOCK_END = 0;
+	private static final byte BLOCK_VISITS = 1;
+	private static final byte BLOCK_HISTORY = 2;
+	/** Maximum flags per block. Larger blocks encode smaller differences but must be buffered while writing. */
+	private static final int BLOCK_SIZE = 65536;
+	/** Maximum flags written to the database per batch when importing. */
+	private static final int BATCH_SIZE = 16384;
+	/** Maximum chunks waiting to be written when importing. */
+	private static final int MAX_QUEUED = 4 * BATCH_SIZE;
+
+	private FlagSnapshot() {}
+
+	/**
+	 * Writes all stored flags to a snapshot. Queued flags are written to the database first. The snapshot is written to
+	 * a temporary file and moved into place once complete so that a partial snapshot never replaces a complete one.
+	 *
+	 * @param adapter the adapter to read flags from
+	 * @param file the snapshot file
+	 * @return the number of values written
+	 * @throws Exception if an error occurs reading flags or writing the file
+	 */
+	public static long export(@NotNull QueuedWriteAdapter adapter, @NotNull Path file) throws Exception {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		long written;
+		CRC32 checksum = new CRC32();
+		try (OutputStream fileStream = Files.newOutputStream(temp);
+				DataOutputStream stream = new DataOutputStream(new CheckedOutputStream(
+						new BufferedOutputStream(fileStream, 1 << 16), checksum))) {
+			stream.writeInt(MAGIC);
+			stream.writeInt(VERSION);
+
+			written = exportFlags(adapter, stream, false) + exportFlags(adapter, stream, true);
+
+			stream.writeByte(BLOCK_END);
+			stream.flush();
+			// The checksum is not part of itself, write it around the checked stream.
+			new DataOutputStream(fileStream).writeLong(checksum.getValue());
+		} catch (Exception e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return written;
+	}
+
+	private static long exportFlags(@NotNull QueuedWriteAdapter adapter, @NotNull DataOutputStream stream,
+			boolean onDelete) throws Exception {
+		byte kind = onDelete ? BLOCK_HISTORY : BLOCK_VISITS;
+		Map<String, Block> blocks = new HashMap<>();
+		long[] written = new long[1];
+
+		adapter.forEachFlag(onDelete, (worldName, chunkKey, lastVisit) -> {
+			Block block = blocks.computeIfAbsent(worldName, key -> new Block());
+			block.add(ChunkKey.toMorton(chunkKey), lastVisit);
+			if (block.size == BLOCK_SIZE) {
+				written[0] += block.write(stream, kind, worldName);
+			}
+		});
+
+		for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+			written[0] += entry.getValue().write(stream, kind, entry.getKey());
+		}
+
+		return written[0];
+	}
+
+	/**
+	 * Reads a snapshot and stores its flags. Stored flags are merged with imported flags, keeping the later of the two.
+	 *
+	 * <p>The whole snapshot is decoded and its checksum verified before any flags are written, so a corrupt or
+	 * truncated snapshot changes nothing. The snapshot is then decoded again while previous batches are being written
+	 * by the adapter's writer.
+	 *
+	 * @param file the snapshot file
+	 * @param adapter the adapter to write flags to
+	 * @return the number of values read
+	 * @throws Exception if an error occurs reading the file or writing flags
+	 */
+	public static long importFlags(@NotNull Path file, @NotNull QueuedWriteAdapter adapter) throws Exception {
+		read(file, null);
+		long read = read(file, adapter);
+		adapter.flush();
+		return read;
+	}
+
+	/**
+	 * Reads a snapshot and verifies its checksum.
+	 *
+	 * @param file the snapshot file
+	 * @param adapter the adapter to write flags to, or null to only verify the snapshot
+	 * @return the number of values read
+	 * @throws Exception if an error occurs reading the file or writing flags
+	 */
+	private static long read(@NotNull Path file, @Nullable QueuedWriteAdapter adapter) throws Exception {
+		long read = 0;
+		CRC32 checksum = new CRC32();
+		try (InputStream fileStream = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+				DataInputStream stream = new DataInputStream(new CheckedInputStream(fileStream, checksum))) {
+			if (stream.readInt() != MAGIC) {
+				throw new IOException("Not a flag snapshot: " + file);
+			}
+			int version = stream.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported flag snapshot version " + version + ": " + file);
+			}
+
+			byte kind;
+			while ((kind = stream.readByte()) != BLOCK_END) {
+				if (kind != BLOCK_VISITS && kind != BLOCK_HISTORY) {
+					throw new IOException("Unknown block type " + kind + ": " + file);
+				}
+				read += readBlock(stream, adapter, kind == BLOCK_HISTORY);
+			}
+
+			long expected = checksum.getValue();
+			if (new DataInputStream(fileStream).readLong() != expected) {
+				throw new IOException("Flag snapshot checksum does not match: " + file);
+			}
+		}
+
+		return read;
+	}
+
+	private static int readBlock(@NotNull DataInputStream stream, @Nullable QueuedWriteAdapter adapter,
+			boolean onDelete) throws Exception {
+		String worldName = stream.readUTF();
+		int size = readVarInt(stream);
+		if (size < 0 || size > BLOCK_SIZE) {
+			throw new IOException("Invalid flag snapshot block size " + size);
+		}
+
+		if (adapter == null) {
+			for (int i = 0; i < size; ++i) {
+				readVarLong(stream);
+				readVarLong(stream);
+			}
+			return size;
+		}
+
+		long morton = 0;
+		long lastVisit = 0;
+
+		List<ChunkFlagger.FlagData> batch = new ArrayList<>(Math.min(size, BATCH_SIZE));
+		for (int i = 0; i < size; ++i) {
+			morton += readVarLong(stream);
+			lastVisit += zigzagDecode(readVarLong(stream));
+			batch.add(new ChunkFlagger.FlagData(ChunkKey.fromMorton(morton), lastVisit));
+
+			if (batch.size() == BATCH_SIZE || i == size - 1) {
+				if (onDelete) {
+					adapter.updateHistory(worldName, batch);
+				} else {
+					adapter.update(worldName, batch);
+					adapter.awaitQueuedWrites(MAX_QUEUED);
+				}
+				batch = new ArrayList<>(Math.min(size - i - 1, BATCH_SIZE));
+			}
+		}
+
+		return size;
+	}
+
+	private static void writeVarLong(@NotNull DataOutputStream stream, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			stream.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		stream.writeByte((int) value);
+	}
+
+	private static long readVarLong(@NotNull DataInputStream stream) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += 7) {
+			byte b = stream.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length value");
+	}
+
+	private static int readVarInt(@NotNull DataInputStream stream) throws IOException {
+		long value = readVarLong(stream);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IOException("Malformed variable length value");
+		}
+		return (int) value;
+	}
+
+	private static long zigzagEncode(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long zigzagDecode(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * A buffer of flags for a single world.
+	 */
+	private static final class Block {
+
+		private final long[] mortons = new long[BLOCK_SIZE];
+		private final long[] values = new long[BLOCK_SIZE];
+		private int size = 0;
+
+		private void add(long morton, long value) {
+			mortons[size] = morton;
+			values[size] = value;
+			++size;
+		}
+
+		/**
+		 * Writes buffered flags sorted by Morton code and empties the buffer.
+		 *
+		 * @param stream the stream to write to
+		 * @param kind the block kind
+		 * @param worldName the world name
+		 * @return the number of flags written
+		 * @throws IOException if an error occurs writing the stream
+		 */
+		private int write(@NotNull DataOutputStream stream, byte kind, @NotNull String worldName) throws IOException {
+			if (size == 0) {
+				return 0;
+			}
+
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; ++i) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(mortons[a], mortons[b]));
+
+			stream.writeByte(kind);
+			stream.writeUTF(worldName);
+			writeVarLong(stream, size);
+
+			// Codes are sorted, so differences are always positive when treated as unsigned.
+			long previousMorton = 0;
+			long previousValue = 0;
+			for (int index : order) {
+				writeVarLong(stream, mortons[index] - previousMorton);
+				writeVarLong(stream, zigzagEncode(values[index] - previousValue));
+				previousMorton = mortons[index];
+				previousValue = values[index];
+			}
+
+			int written = size;
+			size = 0;
+			return written;
+		}
+
+	}
+
+}
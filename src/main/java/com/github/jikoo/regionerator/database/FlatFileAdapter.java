@@ -0,0 +1,790 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.database.ConnectionPool.PooledConnection;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adapter storing flags in memory-mapped files of region pages, one file per world.
+ *
+ * <p>Lookups read directly from mapped memory. Changed pages are written to a journal and synced before being written
+ * to the flag files, so an interrupted write is completed from the journal on the next startup.
+ */
+public class FlatFileAdapter implements DatabaseAdapter {
+
+	private static final String FLAG_EXTENSION = ".flags";
+	private static final String HISTORY_EXTENSION = ".history";
+	private static final int JOURNAL_MAGIC = 0x524A4E4C;
+	/** Flags converted per transaction so that other writes only wait for one batch at a time. */
+	private static final int CONVERSION_BATCH_FLAGS = 65536;
+	/** Pages pruned per transaction during maintenance. */
+	private static final int MAINTENANCE_BATCH_PAGES = 64;
+
+	private final Regionerator plugin;
+	private final Path folder;
+	private final Path journal;
+	private final Map<Path, PageFile> files = new ConcurrentHashMap<>();
+	private final boolean compact;
+	private final @Nullable BackgroundConversion conversion;
+	private volatile boolean closed = false;
+
+	FlatFileAdapter(@NotNull Regionerator plugin, boolean convert) throws IOException {
+		this.plugin = plugin;
+		this.folder = plugin.getDataFolder().toPath().resolve("flagfiles");
+		this.journal = folder.resolve("journal");
+		this.compact = plugin.config().isCompactTimestamps();
+
+		Files.createDirectories(folder);
+		replayJournal();
+
+		if (convert && Files.exists(plugin.getDataFolder().toPath().resolve("data.db"))) {
+			// Convert in the background. Deletion waits for conversion to finish.
+			conversion = new BackgroundConversion(plugin, "Regionerator Flag File Converter", this::convertDatabase);
+			conversion.start();
+		} else {
+			conversion = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		if (conversion != null) {
+			conversion.cancel();
+		}
+		closed = true;
+		synchronized (journal) {
+			for (PageFile file : files.values()) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					plugin.getLogger().log(Level.SEVERE, "Exception closing flag file " + file.getPath(), e);
+				}
+			}
+			files.clear();
+		}
+	}
+
+	@Override
+	public void update(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) throws IOException {
+		updateAll(Collections.singletonList(new FlagBatch(worldName, flags)));
+	}
+
+	@Override
+	public void updateAll(@NotNull List<FlagBatch> batches) throws IOException {
+		synchronized (journal) {
+			if (closed) {
+				throw new IOException("Flag files are closed");
+			}
+
+			Transaction transaction = new Transaction();
+			for (FlagBatch batch : batches) {
+				for (ChunkFlagger.FlagData data : batch.getFlags()) {
+					transaction.update(batch.getWorldName(), data.getChunkKey(), data.getLastVisit());
+				}
+			}
+			transaction.commit();
+		}
+	}
+
+	@Override
+	public void updateHistory(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> values)
+			throws IOException {
+		synchronized (journal) {
+			if (closed) {
+				throw new IOException("Flag files are closed");
+			}
+
+			Transaction transaction = new Transaction();
+			for (ChunkFlagger.FlagData data : values) {
+				transaction.merge(worldName, true, data.getChunkKey(), data.getLastVisit());
+			}
+			transaction.commit();
+		}
+	}
+
+	@Override
+	public long get(@NotNull String worldName, long chunkKey) throws IOException {
+		return get(worldName, chunkKey, false);
+	}
+
+	@Override
+	public long getOnDelete(@NotNull String worldName, long chunkKey) throws IOException {
+		return get(worldName, chunkKey, true);
+	}
+
+	private long get(@NotNull String worldName, long chunkKey, boolean history) throws IOException {
+		if (closed) {
+			return Config.FLAG_OH_NO;
+		}
+
+		PageFile file = getFile(worldName, history, false);
+		if (file == null) {
+			return Config.FLAG_DEFAULT;
+		}
+		return file.get(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5, ChunkKey.getRegionIndex(chunkKey));
+	}
+
+	@Override
+	public @NotNull long[] getRegion(@NotNull String worldName, int regionX, int regionZ) throws IOException {
+		if (closed) {
+			long[] flags = new long[ChunkKey.CHUNKS_PER_REGION];
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		PageFile file = getFile(worldName, false, false);
+		long[] flags = file == null ? null : file.read(regionX, regionZ);
+		return flags == null ? PageFile.newPage() : flags;
+	}
+
+	@Override
+	public boolean isRegionGranular() {
+		return true;
+	}
+
+	@Override
+	public void forEachFlag(@NotNull String worldName, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ,
+			@NotNull FlagVisitor visitor) throws Exception {
+		if (closed) {
+			throw new IOException("Flag files are closed");
+		}
+
+		PageFile file = getFile(worldName, false, false);
+		if (file == null) {
+			return;
+		}
+
+		for (long regionKey : file.getRegions()) {
+			int regionX = ChunkKey.getX(regionKey);
+			int regionZ = ChunkKey.getZ(regionKey);
+			if (regionX < minRegionX || regionX > maxRegionX || regionZ < minRegionZ || regionZ > maxRegionZ) {
+				continue;
+			}
+			long[] values = file.read(regionX, regionZ);
+			if (values == null) {
+				continue;
+			}
+			for (int index = 0; index < values.length; ++index) {
+				if (values[index] != Config.FLAG_DEFAULT) {
+					visitor.visit(worldName, ChunkKey.ofRegionIndex(regionX, regionZ, index), values[index]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public @NotNull Collection<String> getWorldNames() throws IOException {
+		Set<String> worldNames = new HashSet<>();
+		try (Stream<Path> stream = Files.list(folder)) {
+			stream.map(path -> path.getFileName().toString()).forEach(fileName -> {
+				for (String extension : new String[] { FLAG_EXTENSION, HISTORY_EXTENSION }) {
+					if (fileName.endsWith(extension)) {
+						worldNames.add(fileName.substring(0, fileName.length() - extension.length()));
+					}
+				}
+			});
+		}
+		return worldNames;
+	}
+
+	@Override
+	public long prune(@NotNull String worldName, long visitCutoff, long historyCutoff) throws IOException {
+		return prune(worldName, false, visitCutoff) + prune(worldName, true, historyCutoff);
+	}
+
+	private long prune(@NotNull String worldName, boolean history, long cutoff) throws IOException {
+		PageFile file = getFile(worldName, history, false);
+		if (file == null) {
+			return 0;
+		}
+
+		long[] regions = file.getRegions();
+		long pruned = 0;
+		for (int start = 0; start < regions.length; start += MAINTENANCE_BATCH_PAGES) {
+			synchronized (journal) {
+				if (closed) {
+					break;
+				}
+
+				Transaction transaction = new Transaction();
+				for (int i = start; i < Math.min(regions.length, start + MAINTENANCE_BATCH_PAGES); ++i) {
+					pruned += transaction.prune(worldName, history, ChunkKey.getX(regions[i]), ChunkKey.getZ(regions[i]), cutoff);
+				}
+				transaction.commit();
+			}
+		}
+		return pruned;
+	}
+
+	@Override
+	public void dropWorld(@NotNull String worldName) throws IOException {
+		synchronized (journal) {
+			if (closed) {
+				throw new IOException("Flag files are closed");
+			}
+
+			// Files are only opened while holding the file lock, so a deleted file cannot be reopened.
+			synchronized (files) {
+				for (String extension : new String[] { FLAG_EXTENSION, HISTORY_EXTENSION }) {
+					Path path = folder.resolve(worldName + extension);
+					PageFile file = files.remove(path);
+					if (file != null) {
+						file.close();
+					}
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Void> getConversion() {
+		return conversion == null ? DatabaseAdapter.super.getConversion() : conversion.getFuture();
+	}
+
+	@Override
+	public void forEachRegionBitmap(@NotNull String worldName, @NotNull BitmapVisitor visitor) throws Exception {
+		if (closed) {
+			throw new IOException("Flag files are closed");
+		}
+
+		PageFile file = getFile(worldName, false, false);
+		if (file == null) {
+			return;
+		}
+
+		for (long regionKey : file.getRegions()) {
+			int regionX = ChunkKey.getX(regionKey);
+			int regionZ = ChunkKey.getZ(regionKey);
+			long[] values = file.read(regionX, regionZ);
+			if (values == null) {
+				continue;
+			}
+			long[] bitmap = new long[ChunkKey.REGION_BITMAP_LONGS];
+			for (int index = 0; index < values.length; ++index) {
+				if (values[index] != Config.FLAG_DEFAULT) {
+					bitmap[index >> 6] |= 1L << index;
+				}
+			}
+			visitor.visit(regionX, regionZ, bitmap);
+		}
+	}
+
+	@Override
+	public void forEachFlag(boolean onDelete, @NotNull FlagVisitor visitor) throws Exception {
+		if (closed) {
+			throw new IOException("Flag files are closed");
+		}
+
+		String extension = onDelete ? HISTORY_EXTENSION : FLAG_EXTENSION;
+		List<Path> paths;
+		try (Stream<Path> stream = Files.list(folder)) {
+			paths = stream.filter(path -> path.getFileName().toString().endsWith(extension)).collect(Collectors.toList());
+		}
+
+		for (Path path : paths) {
+			String fileName = path.getFileName().toString();
+			String worldName = fileName.substring(0, fileName.length() - extension.length());
+			PageFile file = getFile(fileName, false);
+			if (file == null) {
+				continue;
+			}
+
+			for (long regionKey : file.getRegions()) {
+				int regionX = ChunkKey.getX(regionKey);
+				int regionZ = ChunkKey.getZ(regionKey);
+				long[] values = file.read(regionX, regionZ);
+				if (values == null) {
+					continue;
+				}
+				for (int index = 0; index < values.length; ++index) {
+					if (values[index] != Config.FLAG_DEFAULT) {
+						visitor.visit(worldName, ChunkKey.ofRegionIndex(regionX, regionZ, index), values[index]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets whether flag files exist.
+	 *
+	 * @param dataFolder the plugin data folder
+	 * @return true if any world has a flag file
+	 * @throws IOException if an error occurs listing flag files
+	 */
+	static boolean hasFlagFiles(@NotNull Path dataFolder) throws IOException {
+		Path flagFolder = dataFolder.resolve("flagfiles");
+		if (!Files.isDirectory(flagFolder)) {
+			return false;
+		}
+		try (Stream<Path> stream = Files.list(flagFolder)) {
+			return stream.map(path -> path.getFileName().toString())
+					.anyMatch(fileName -> fileName.endsWith(FLAG_EXTENSION) || fileName.endsWith(HISTORY_EXTENSION));
+		}
+	}
+
+	/**
+	 * Gets a world's flag file.
+	 *
+	 * @param worldName the world name
+	 * @param history whether to get the file of values as of deletion
+	 * @param create whether to create the file if it does not exist
+	 * @return the file or null if it does not exist and was not created
+	 * @throws IOException if an error occurs opening the file
+	 */
+	private @Nullable PageFile getFile(@NotNull String worldName, boolean history, boolean create) throws IOException {
+		return getFile(worldName + (history ? HISTORY_EXTENSION : FLAG_EXTENSION), create);
+	}
+
+	private @Nullable PageFile getFile(@NotNull String fileName, boolean create) throws IOException {
+		Path path = folder.resolve(fileName);
+		PageFile file = files.get(path);
+		if (file != null || !create && !Files.exists(path)) {
+			return file;
+		}
+
+		synchronized (files) {
+			file = files.get(path);
+			if (file == null) {
+				if (!create && !Files.exists(path)) {
+					// Removed since checking.
+					return null;
+				}
+				file = new PageFile(path, compact);
+				files.put(path, file);
+			}
+			return file;
+		}
+	}
+
+	/**
+	 * Completes writes interrupted after their pages were journaled.
+	 *
+	 * @throws IOException if an error occurs reading the journal or writing pages
+	 */
+	private void replayJournal() throws IOException {
+		if (!Files.exists(journal)) {
+			return;
+		}
+
+		List<JournalEntry> entries = new ArrayList<>();
+		CRC32 checksum = new CRC32();
+		boolean complete;
+		try (DataInputStream input = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(journal)), checksum))) {
+			complete = input.readInt() == JOURNAL_MAGIC;
+			int count = complete ? input.readInt() : 0;
+			for (int i = 0; i < count; ++i) {
+				String fileName = input.readUTF();
+				int page = input.readInt();
+				int regionX = input.readInt();
+				int regionZ = input.readInt();
+				long[] values = new long[ChunkKey.CHUNKS_PER_REGION];
+				for (int index = 0; index < values.length; ++index) {
+					values[index] = input.readLong();
+				}
+				entries.add(new JournalEntry(fileName, page, regionX, regionZ, values));
+			}
+			long expected = checksum.getValue();
+			complete = complete && input.readLong() == expected;
+		} catch (EOFException e) {
+			complete = false;
+		}
+
+		if (!complete) {
+			// The journal was not fully written, so no flag file was modified.
+			Files.delete(journal);
+			return;
+		}
+
+		Set<PageFile> written = new HashSet<>();
+		for (JournalEntry entry : entries) {
+			PageFile file = getFile(entry.fileName, true);
+			file.write(entry.page, entry.regionX, entry.regionZ, entry.values);
+			written.add(file);
+		}
+		for (PageFile file : written) {
+			file.force();
+		}
+		Files.delete(journal);
+
+		plugin.getLogger().info(String.format("Recovered %s flag pages from journal.", entries.size()));
+	}
+
+	/**
+	 * Converts flags stored by the SQLite adapters. The database is renamed to data.db.bak once converted.
+	 *
+	 * <p>Flags are merged into the flag files in batches, so other writes only wait for one batch at a time. Merging
+	 * keeps the later value, so an interrupted conversion is safely restarted on the next startup.
+	 *
+	 * @throws IOException if an error occurs writing flags
+	 * @throws SQLException if an error occurs reading the database
+	 */
+	private void convertDatabase() throws IOException, SQLException {
+		Path database = plugin.getDataFolder().toPath().resolve("data.db");
+
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("SQLite driver is not available", e);
+		}
+
+		plugin.getLogger().info("Beginning converting data.db to flag files. Deletion is paused until conversion completes.");
+
+		List<ConvertedFlag> flags = new ArrayList<>();
+		long converted = 0;
+		ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + database.toAbsolutePath(), plugin.config());
+		try {
+			PooledConnection connection = pool.getWriter();
+			// Tables of newer versions cannot be converted.
+			SQLeadenAdapter.readSchemaVersion(connection);
+
+			if (connection.hasTable("regiondata")) {
+				try (Statement st = connection.getConnection().createStatement();
+						ResultSet rs = st.executeQuery("SELECT world,region_x,region_z,visits,deleted FROM regiondata")) {
+					while (rs.next()) {
+						for (int column = 4; column <= 5; ++column) {
+							long[] values = SQLiteRegionAdapter.decode(rs.getBytes(column));
+							for (int index = 0; index < values.length; ++index) {
+								if (values[index] != Config.FLAG_DEFAULT) {
+									flags.add(new ConvertedFlag(rs.getString(1), column == 5,
+											ChunkKey.ofRegionIndex(rs.getInt(2), rs.getInt(3), index), values[index]));
+									++converted;
+								}
+							}
+						}
+						if (!commitIfFull(flags)) {
+							return;
+						}
+					}
+				}
+			}
+
+			for (String table : new String[] { SQLeadenAdapter.FLAG_TABLE, SQLeadenAdapter.HISTORY_TABLE }) {
+				if (!connection.hasTable(table)) {
+					continue;
+				}
+				try (Statement st = connection.getConnection().createStatement();
+						ResultSet rs = st.executeQuery("SELECT worlds.name,chunk,time FROM " + table + " JOIN worlds USING(world_id)")) {
+					while (rs.next()) {
+						flags.add(new ConvertedFlag(rs.getString(1), table.equals(SQLeadenAdapter.HISTORY_TABLE),
+								ChunkKey.fromMorton(rs.getLong(2)), rs.getLong(3)));
+						++converted;
+						if (!commitIfFull(flags)) {
+							return;
+						}
+					}
+				}
+			}
+
+			if (connection.hasTable(LegacyChunkId.TABLE)) {
+				try (Statement st = connection.getConnection().createStatement();
+						ResultSet rs = st.executeQuery("SELECT chunk_id,time FROM " + LegacyChunkId.TABLE)) {
+					while (rs.next()) {
+						LegacyChunkId chunkId = LegacyChunkId.parse(rs.getString(1));
+						if (chunkId == null) {
+							// Invalid data, skip
+							continue;
+						}
+						flags.add(new ConvertedFlag(chunkId.getWorldName(), chunkId.isOnDelete(), chunkId.getChunkKey(), rs.getLong(2)));
+						++converted;
+						if (!commitIfFull(flags)) {
+							return;
+						}
+					}
+				}
+			}
+		} finally {
+			pool.close();
+		}
+
+		if (!commitConverted(flags)) {
+			return;
+		}
+		Files.move(database, database.resolveSibling("data.db.bak"), StandardCopyOption.REPLACE_EXISTING);
+
+		plugin.getLogger().info(String.format("Finished converting %s flags, renamed data.db to data.db.bak. Delete at convenience if all appears well.", converted));
+	}
+
+	private boolean commitIfFull(@NotNull List<ConvertedFlag> flags) throws IOException {
+		return flags.size() < CONVERSION_BATCH_FLAGS || commitConverted(flags);
+	}
+
+	/**
+	 * Writes a batch of converted flags.
+	 *
+	 * @param flags the converted flags, cleared once written
+	 * @return false if conversion was cancelled
+	 * @throws IOException if an error occurs writing flags
+	 */
+	private boolean commitConverted(@NotNull List<ConvertedFlag> flags) throws IOException {
+		if (conversion != null && conversion.isCancelled()) {
+			plugin.getLogger().info("Stopped converting data.db, conversion will restart on next startup.");
+			return false;
+		}
+
+		// Pages are read and written under the lock so that concurrent updates are not overwritten.
+		synchronized (journal) {
+			Transaction transaction = new Transaction();
+			for (ConvertedFlag flag : flags) {
+				transaction.merge(flag.worldName, flag.history, flag.chunkKey, flag.value);
+			}
+			transaction.commit();
+		}
+		flags.clear();
+		return true;
+	}
+
+	/**
+	 * A set of page changes written to the flag files together.
+	 */
+	private final class Transaction {
+
+		private final Map<String, Page> pages = new LinkedHashMap<>();
+
+		private @NotNull Page getPage(@NotNull String worldName, boolean history, long chunkKey) throws IOException {
+			int regionX = ChunkKey.getX(chunkKey) >> 5;
+			int regionZ = ChunkKey.getZ(chunkKey) >> 5;
+			String fileName = worldName + (history ? HISTORY_EXTENSION : FLAG_EXTENSION);
+			String pageId = fileName + '_' + regionX + '_' + regionZ;
+
+			Page page = pages.get(pageId);
+			if (page == null) {
+				PageFile file = getFile(fileName, true);
+				long[] values = file.read(regionX, regionZ);
+				page = new Page(fileName, file, file.reserve(regionX, regionZ), regionX, regionZ,
+						values == null ? PageFile.newPage() : values);
+				pages.put(pageId, page);
+			}
+			return page;
+		}
+
+		/**
+		 * Stores a flag. Default flags delete the stored flag, keeping the previous value as history.
+		 *
+		 * @param worldName the world name
+		 * @param chunkKey the {@link ChunkKey} of the chunk
+		 * @param value the flag
+		 * @throws IOException if an error occurs reading the flag files
+		 */
+		private void update(@NotNull String worldName, long chunkKey, long value) throws IOException {
+			Page visits = getPage(worldName, false, chunkKey);
+			int index = ChunkKey.getRegionIndex(chunkKey);
+			long current = visits.values[index];
+
+			if (value != Config.FLAG_DEFAULT) {
+				if (value > current) {
+					visits.set(index, value);
+				}
+				return;
+			}
+
+			if (current != Config.FLAG_DEFAULT) {
+				getPage(worldName, true, chunkKey).set(index, current);
+				visits.set(index, Config.FLAG_DEFAULT);
+			}
+		}
+
+		/**
+		 * Removes values lower than a cutoff from a region.
+		 *
+		 * @param worldName the world name
+		 * @param history whether to prune values as of deletion
+		 * @param regionX the region X coordinate
+		 * @param regionZ the region Z coordinate
+		 * @param cutoff the time before which values are removed
+		 * @return the number of values removed
+		 * @throws IOException if an error occurs reading the flag files
+		 */
+		private int prune(@NotNull String worldName, boolean history, int regionX, int regionZ, long cutoff)
+				throws IOException {
+			Page page = getPage(worldName, history, ChunkKey.ofRegionIndex(regionX, regionZ, 0));
+			int pruned = 0;
+			for (int index = 0; index < page.values.length; ++index) {
+				if (page.values[index] != Config.FLAG_DEFAULT && page.values[index] < cutoff) {
+					page.set(index, Config.FLAG_DEFAULT);
+					++pruned;
+				}
+			}
+			return pruned;
+		}
+
+		private void merge(@NotNull String worldName, boolean history, long chunkKey, long value) throws IOException {
+			Page page = getPage(worldName, history, chunkKey);
+			int index = ChunkKey.getRegionIndex(chunkKey);
+			if (value > page.values[index]) {
+				page.set(index, value);
+			}
+		}
+
+		private void commit() throws IOException {
+			List<Page> dirty = new ArrayList<>();
+			for (Page page : pages.values()) {
+				if (page.dirty) {
+					dirty.add(page);
+				}
+			}
+
+			try {
+				if (dirty.isEmpty()) {
+					return;
+				}
+
+				writeJournal(dirty);
+
+				Set<PageFile> written = new HashSet<>();
+				for (Page page : dirty) {
+					page.file.write(page.number, page.regionX, page.regionZ, page.values);
+					written.add(page.file);
+				}
+				for (PageFile file : written) {
+					file.force();
+				}
+
+				Files.delete(journal);
+			} finally {
+				for (Page page : pages.values()) {
+					page.file.releaseReservations();
+				}
+			}
+		}
+
+		private void writeJournal(@NotNull List<Page> dirty) throws IOException {
+			CRC32 checksum = new CRC32();
+			try (FileOutputStream fileOutput = new FileOutputStream(journal.toFile());
+					DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOutput), checksum))) {
+				output.writeInt(JOURNAL_MAGIC);
+				output.writeInt(dirty.size());
+				for (Page page : dirty) {
+					output.writeUTF(page.fileName);
+					output.writeInt(page.number);
+					output.writeInt(page.regionX);
+					output.writeInt(page.regionZ);
+					for (long value : page.values) {
+						output.writeLong(value);
+					}
+				}
+				output.writeLong(checksum.getValue());
+				output.flush();
+				fileOutput.getFD().sync();
+			}
+		}
+
+	}
+
+	/**
+	 * A page being modified by a transaction.
+	 */
+	private static final class Page {
+
+		private final String fileName;
+		private final PageFile file;
+		private final int number;
+		private final int regionX;
+		private final int regionZ;
+		private final long[] values;
+		private boolean dirty = false;
+
+		private Page(@NotNull String fileName, @NotNull PageFile file, int number, int regionX, int regionZ,
+				@NotNull long[] values) {
+			this.fileName = fileName;
+			this.file = file;
+			this.number = number;
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.values = values;
+		}
+
+		private void set(int index, long value) {
+			values[index] = value;
+			dirty = true;
+		}
+
+	}
+
+	/**
+	 * A flag read from the database during conversion.
+	 */
+	private static final class ConvertedFlag {
+
+		private final String worldName;
+		private final boolean history;
+		private final long chunkKey;
+		private final long value;
+
+		private ConvertedFlag(@NotNull String worldName, boolean history, long chunkKey, long value) {
+			this.worldName = worldName;
+			this.history = history;
+			this.chunkKey = chunkKey;
+			this.value = value;
+		}
+
+	}
+
+	/**
+	 * A page read from the journal.
+	 */
+	private static final class JournalEntry {
+
+		private final String fileName;
+		private final int page;
+		private final int regionX;
+		private final int regionZ;
+		private final long[] values;
+
+		private JournalEntry(@NotNull String fileName, int page, int regionX, int regionZ, @NotNull long[] values) {
+			this.fileName = fileName;
+			this.page = page;
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.values = values;
+		}
+
+	}
+
+}
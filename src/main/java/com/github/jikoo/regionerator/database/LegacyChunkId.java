@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A chunk identifier as stored in the legacy {@code chunkdata} table, formatted {@code world_x_z} with an optional
+ * {@code _old} suffix for values as of deletion.
+ */
+final class LegacyChunkId {
+
+	/** The name of the legacy table. */
+	static final String TABLE = "chunkdata";
+
+	private final String worldName;
+	private final long chunkKey;
+	private final boolean onDelete;
+
+	private LegacyChunkId(@NotNull String worldName, long chunkKey, boolean onDelete) {
+		this.worldName = worldName;
+		this.chunkKey = chunkKey;
+		this.onDelete = onDelete;
+	}
+
+	@NotNull String getWorldName() {
+		return worldName;
+	}
+
+	long getChunkKey() {
+		return chunkKey;
+	}
+
+	/**
+	 * Gets whether the identifier refers to the value of a chunk as of its deletion.
+	 *
+	 * @return true if the value was stored by the {@code chunkdataold} trigger
+	 */
+	boolean isOnDelete() {
+		return onDelete;
+	}
+
+	/**
+	 * Parses a legacy chunk identifier.
+	 *
+	 * @param chunkId the identifier
+	 * @return the parsed identifier or null if the identifier is invalid
+	 */
+	static @Nullable LegacyChunkId parse(@Nullable String chunkId) {
+		if (chunkId == null) {
+			return null;
+		}
+
+		boolean onDelete = chunkId.endsWith("_old");
+		if (onDelete) {
+			chunkId = chunkId.substring(0, chunkId.length() - 4);
+		}
+
+		// World names may contain underscores, parse from the end.
+		int zSplit = chunkId.lastIndexOf('_');
+		int xSplit = zSplit > 0 ? chunkId.lastIndexOf('_', zSplit - 1) : -1;
+		if (xSplit < 0) {
+			return null;
+		}
+
+		try {
+			long chunkKey = ChunkKey.of(Integer.parseInt(chunkId.substring(xSplit + 1, zSplit)),
+					Integer.parseInt(chunkId.substring(zSplit + 1)));
+			return new LegacyChunkId(chunkId.substring(0, xSplit), chunkKey, onDelete);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.CompactTimestamp;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A memory-mapped file of pages, each containing the flags of every chunk in one region.
+ *
+ * <p>The file starts with a header containing a magic number, the format version, and the number of pages. Each page
+ * starts with a marker and the coordinates of its region followed by one value per chunk, ordered by
+ * {@link ChunkKey#getRegionIndex(long)}. Version 1 files store each flag as a long. Version 2 files store each flag as
+ * an int {@link CompactTimestamp} code, halving the size of a page. The index of regions to pages is rebuilt from page
+ * headers when the file is opened.
+ *
+ * <p>The file is mapped in segments of whole pages rather than as a single buffer, so its size is not limited by the
+ * maximum size of a buffer. Only the last segment grows.
+ *
+ * <p>Pages are not written atomically. Callers are responsible for journaling pages before writing them.
+ */
+final class PageFile {
+
+	private static final int MAGIC = 0x52474E46;
+	private static final int VERSION_LONG = 1;
+	private static final int VERSION_COMPACT = 2;
+	private static final int PAGE_MARKER = 0x50414745;
+	private static final int HEADER_BYTES = 16;
+	private static final int PAGE_HEADER_BYTES = 16;
+	private static final int INITIAL_CAPACITY = 16;
+	/** Maximum bytes mapped by each segment. */
+	private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Path path;
+	private final FileChannel channel;
+	private final boolean compact;
+	private final int valueBytes;
+	private final int pageBytes;
+	private final int pagesPerSegment;
+	private final Map<Long, Integer> index = new HashMap<>();
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	/** Segments written since they were last forced to storage. */
+	private final BitSet dirtySegments = new BitSet();
+	private final MappedByteBuffer header;
+	private int capacity;
+	private int pageCount;
+	private int nextPage;
+
+	/**
+	 * Opens a page file, creating it if it does not exist.
+	 *
+	 * @param path the file path
+	 * @param compact whether a new file stores flags as {@link CompactTimestamp} codes. Existing files keep their format.
+	 * @throws IOException if the file cannot be opened or is not a page file
+	 */
+	PageFile(@NotNull Path path, boolean compact) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		boolean created = channel.size() < HEADER_BYTES;
+		int version = compact ? VERSION_COMPACT : VERSION_LONG;
+		if (!created) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Flag file is truncated: " + path);
+				}
+			}
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException("Not a flag file: " + path);
+			}
+			version = header.getInt(4);
+			if (version != VERSION_LONG && version != VERSION_COMPACT) {
+				throw new IOException("Unsupported flag file version " + version + ": " + path);
+			}
+		}
+
+		this.compact = version == VERSION_COMPACT;
+		this.valueBytes = this.compact ? Integer.BYTES : Long.BYTES;
+		this.pageBytes = PAGE_HEADER_BYTES + ChunkKey.CHUNKS_PER_REGION * valueBytes;
+		this.pagesPerSegment = SEGMENT_BYTES / pageBytes;
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+
+		if (created) {
+			map(INITIAL_CAPACITY);
+			header.putInt(0, MAGIC);
+			header.putInt(4, version);
+			header.putInt(8, 0);
+			header.force();
+			return;
+		}
+
+		map((int) Math.max(INITIAL_CAPACITY, Math.min(Integer.MAX_VALUE, (channel.size() - HEADER_BYTES) / pageBytes)));
+
+		pageCount = header.getInt(8);
+		if (pageCount > capacity) {
+			throw new IOException("Flag file is truncated: " + path);
+		}
+
+		for (int page = 0; page < pageCount; ++page) {
+			ByteBuffer segment = getSegment(page);
+			int offset = getOffset(page);
+			// Pages reserved but never written are skipped.
+			if (segment.getInt(offset) == PAGE_MARKER) {
+				index.put(ChunkKey.of(segment.getInt(offset + 4), segment.getInt(offset + 8)), page);
+			}
+		}
+		nextPage = pageCount;
+	}
+
+	@NotNull Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Gets the flag of a chunk.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @param regionIndex the index of the chunk within its region
+	 * @return the flag or {@link Config#FLAG_DEFAULT} if the region has no page
+	 */
+	long get(int regionX, int regionZ, int regionIndex) {
+		lock.readLock().lock();
+		try {
+			Integer page = index.get(ChunkKey.of(regionX, regionZ));
+			if (page == null) {
+				return Config.FLAG_DEFAULT;
+			}
+			return getValue(getSegment(page), getOffset(page) + PAGE_HEADER_BYTES, regionIndex);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the flags of every chunk in a region.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return the flags or null if the region has no page
+	 */
+	@Nullable long[] read(int regionX, int regionZ) {
+		lock.readLock().lock();
+		try {
+			Integer page = index.get(ChunkKey.of(regionX, regionZ));
+			if (page == null) {
+				return null;
+			}
+			long[] values = new long[ChunkKey.CHUNKS_PER_REGION];
+			ByteBuffer segment = getSegment(page);
+			int offset = getOffset(page) + PAGE_HEADER_BYTES;
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = getValue(segment, offset, i);
+			}
+			return values;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the keys of all regions with pages. Region keys are packed like {@link ChunkKey ChunkKeys} using region
+	 * coordinates.
+	 *
+	 * @return the region keys
+	 */
+	@NotNull long[] getRegions() {
+		lock.readLock().lock();
+		try {
+			long[] regions = new long[index.size()];
+			int i = 0;
+			for (long regionKey : index.keySet()) {
+				regions[i++] = regionKey;
+			}
+			return regions;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of the page for a region, reserving a new page if the region has none. Reserved pages are not
+	 * visible to readers until written.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return the page number
+	 */
+	int reserve(int regionX, int regionZ) {
+		lock.writeLock().lock();
+		try {
+			Integer page = index.get(ChunkKey.of(regionX, regionZ));
+			return page != null ? page : nextPage++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates a new page containing no flags.
+	 *
+	 * @return the page values
+	 */
+	static @NotNull long[] newPage() {
+		long[] values = new long[ChunkKey.CHUNKS_PER_REGION];
+		Arrays.fill(values, Config.FLAG_DEFAULT);
+		return values;
+	}
+
+	/**
+	 * Writes a page. Changes are not guaranteed to be persisted until {@link #force()} is called.
+	 *
+	 * @param page the page number
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @param values the flags of every chunk in the region
+	 * @throws IOException if the file cannot be extended
+	 */
+	void write(int page, int regionX, int regionZ, @NotNull long[] values) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (page >= capacity) {
+				if (page < 0) {
+					throw new IOException("Flag file is full: " + path);
+				}
+				// Double small files, but grow large files by at most a segment at a time.
+				long grown = Math.min(capacity * 2L, (long) capacity + pagesPerSegment);
+				map((int) Math.min(Integer.MAX_VALUE, Math.max(page + 1L, grown)));
+			}
+
+			ByteBuffer segment = getSegment(page);
+			int offset = getOffset(page);
+			for (int i = 0; i < values.length; ++i) {
+				int valueOffset = offset + PAGE_HEADER_BYTES + i * valueBytes;
+				if (compact) {
+					segment.putInt(valueOffset, CompactTimestamp.encode(values[i]));
+				} else {
+					segment.putLong(valueOffset, values[i]);
+				}
+			}
+			segment.putInt(offset + 4, regionX);
+			segment.putInt(offset + 8, regionZ);
+			segment.putInt(offset, PAGE_MARKER);
+			synchronized (dirtySegments) {
+				dirtySegments.set(page / pagesPerSegment);
+			}
+
+			index.put(ChunkKey.of(regionX, regionZ), page);
+			if (page >= pageCount) {
+				pageCount = page + 1;
+				header.putInt(8, pageCount);
+			}
+			if (page >= nextPage) {
+				nextPage = page + 1;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Discards reservations of pages that were never written.
+	 */
+	void releaseReservations() {
+		lock.writeLock().lock();
+		try {
+			nextPage = pageCount;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces written pages to storage.
+	 */
+	void force() {
+		lock.readLock().lock();
+		try {
+			synchronized (dirtySegments) {
+				for (int segment = dirtySegments.nextSetBit(0); segment >= 0; segment = dirtySegments.nextSetBit(segment + 1)) {
+					segments.get(segment).force();
+				}
+				dirtySegments.clear();
+			}
+			header.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			header.force();
+			channel.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps pages up to a new capacity. The last segment is remapped if it was not full, new segments are mapped after
+	 * it, and full segments are left as they are.
+	 *
+	 * @param pages the new capacity in pages
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private void map(int pages) throws IOException {
+		int first = capacity % pagesPerSegment == 0 ? segments.size() : segments.size() - 1;
+		int last = (int) ((pages + (long) pagesPerSegment - 1) / pagesPerSegment);
+		for (int segment = first; segment < last; ++segment) {
+			long firstPage = (long) segment * pagesPerSegment;
+			long segmentPages = Math.min(pagesPerSegment, pages - firstPage);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_BYTES + firstPage * pageBytes, segmentPages * pageBytes);
+			if (segment < segments.size()) {
+				segments.set(segment, mapped);
+			} else {
+				segments.add(mapped);
+			}
+		}
+		capacity = pages;
+	}
+
+	private @NotNull ByteBuffer getSegment(int page) {
+		return segments.get(page / pagesPerSegment);
+	}
+
+	/**
+	 * Gets the offset of a page within its segment.
+	 *
+	 * @param page the page number
+	 * @return the offset
+	 */
+	private int getOffset(int page) {
+		return (page % pagesPerSegment) * pageBytes;
+	}
+
+	private long getValue(@NotNull ByteBuffer segment, int valuesOffset, int regionIndex) {
+		int offset = valuesOffset + regionIndex * valueBytes;
+		return compact ? CompactTimestamp.decode(segment.getInt(offset)) : segment.getLong(offset);
+	}
+
+}
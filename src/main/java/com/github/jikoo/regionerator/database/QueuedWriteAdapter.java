@@ -0,0 +1,722 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adapter funneling all writes to another adapter through a single writer thread.
+ *
+ * <p>Flags queued for the same chunk are merged, and everything queued while a commit is in progress is written
+ * together in the next transaction. Reads include queued flags so that a value is never missing between leaving the
+ * cache and reaching the database. Failed writes are queued again and retried with increasing delays. A batch that
+ * keeps failing is written in parts to find the flags that cannot be written. Those are set aside and retried
+ * occasionally so that the rest of the queue keeps moving.
+ */
+public class QueuedWriteAdapter implements DatabaseAdapter {
+
+	/** Delay before retrying a failed write. Doubled after each consecutive failure. */
+	private static final long MIN_RETRY_MILLIS = 1_000;
+	private static final long MAX_RETRY_MILLIS = 60_000;
+	/** Consecutive failures of a batch before it is written in parts. */
+	private static final int SPLIT_AFTER_FAILURES = 3;
+	/** Delay before retrying flags that could not be written on their own. */
+	private static final long PARKED_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final Regionerator plugin;
+	private final DatabaseAdapter delegate;
+	private final Object lock = new Object();
+	private final Thread writer;
+	private Map<String, Map<Long, PendingFlag>> queued = new HashMap<>();
+	private Map<String, Map<Long, PendingFlag>> writing = Collections.emptyMap();
+	/** Flags that could not be written on their own, older than anything writing or queued. */
+	private Map<String, Map<Long, PendingFlag>> parked = new HashMap<>();
+	private int queuedCount = 0;
+	private int parkedCount = 0;
+	private long parkedRetryAt = 0;
+	private boolean closed = false;
+	private volatile int lastCommitSize = 0;
+	private volatile long lastCommitNanos = 0;
+
+	public QueuedWriteAdapter(@NotNull Regionerator plugin, @NotNull DatabaseAdapter delegate) {
+		this.plugin = plugin;
+		this.delegate = delegate;
+		this.writer = new Thread(this::run, "Regionerator Database Writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+
+		// Wait for queued flags to be written.
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		delegate.close();
+	}
+
+	@Override
+	public void update(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) throws Exception {
+		synchronized (lock) {
+			if (!closed) {
+				Map<Long, PendingFlag> worldQueue = queued.computeIfAbsent(worldName, key -> new HashMap<>());
+				for (ChunkFlagger.FlagData data : flags) {
+					PendingFlag pending = worldQueue.get(data.getChunkKey());
+					if (pending == null) {
+						pending = new PendingFlag();
+						worldQueue.put(data.getChunkKey(), pending);
+						++queuedCount;
+					}
+					pending.apply(data.getLastVisit());
+				}
+				lock.notifyAll();
+				return;
+			}
+		}
+
+		// Writer is stopped, write directly.
+		delegate.update(worldName, flags);
+	}
+
+	@Override
+	public void updateHistory(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> values)
+			throws Exception {
+		// Values as of deletion are only replaced by later deletions, so they do not need to be ordered with the queue.
+		delegate.updateHistory(worldName, values);
+	}
+
+	@Override
+	public long get(@NotNull String worldName, long chunkKey) throws Exception {
+		PendingFlag pending = getPending(worldName, chunkKey);
+		long stored = delegate.get(worldName, chunkKey);
+		return pending == null ? stored : pending.resolve(stored);
+	}
+
+	@Override
+	public long getOnDelete(@NotNull String worldName, long chunkKey) throws Exception {
+		PendingFlag pending = getPending(worldName, chunkKey);
+		if (pending == null || !pending.deleted) {
+			return delegate.getOnDelete(worldName, chunkKey);
+		}
+		return Math.max(delegate.get(worldName, chunkKey), pending.beforeDelete);
+	}
+
+	@Override
+	public @NotNull long[] getAll(@NotNull String worldName, @NotNull long[] chunkKeys) throws Exception {
+		PendingFlag[] pending = getPending(worldName, chunkKeys);
+		long[] flags = delegate.getAll(worldName, chunkKeys);
+		if (pending != null) {
+			for (int i = 0; i < flags.length; ++i) {
+				if (pending[i] != null) {
+					flags[i] = pending[i].resolve(flags[i]);
+				}
+			}
+		}
+		return flags;
+	}
+
+	@Override
+	public @NotNull long[] getRegion(@NotNull String worldName, int regionX, int regionZ) throws Exception {
+		long[] chunkKeys = new long[ChunkKey.CHUNKS_PER_REGION];
+		for (int index = 0; index < chunkKeys.length; ++index) {
+			chunkKeys[index] = ChunkKey.ofRegionIndex(regionX, regionZ, index);
+		}
+		PendingFlag[] pending = getPending(worldName, chunkKeys);
+		long[] flags = delegate.getRegion(worldName, regionX, regionZ);
+		if (pending != null) {
+			for (int index = 0; index < flags.length; ++index) {
+				if (pending[index] != null) {
+					flags[index] = pending[index].resolve(flags[index]);
+				}
+			}
+		}
+		return flags;
+	}
+
+	@Override
+	public boolean isRegionGranular() {
+		return delegate.isRegionGranular();
+	}
+
+	@Override
+	public void forEachFlag(@NotNull String worldName, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ,
+			@NotNull FlagVisitor visitor) throws Exception {
+		// Copy queued changes in range so that stored values can be adjusted as they are visited.
+		Map<Long, PendingFlag> pending = new HashMap<>();
+		synchronized (lock) {
+			for (Map<String, Map<Long, PendingFlag>> source : Arrays.asList(parked, writing, queued)) {
+				Map<Long, PendingFlag> worldQueue = source.get(worldName);
+				if (worldQueue == null) {
+					continue;
+				}
+				for (long chunkKey : worldQueue.keySet()) {
+					int regionX = ChunkKey.getX(chunkKey) >> 5;
+					int regionZ = ChunkKey.getZ(chunkKey) >> 5;
+					if (regionX >= minRegionX && regionX <= maxRegionX && regionZ >= minRegionZ && regionZ <= maxRegionZ) {
+						pending.put(chunkKey, getPending(pending.get(chunkKey), source, worldName, chunkKey));
+					}
+				}
+			}
+		}
+
+		delegate.forEachFlag(worldName, minRegionX, minRegionZ, maxRegionX, maxRegionZ, (world, chunkKey, lastVisit) -> {
+			PendingFlag flag = pending.remove(chunkKey);
+			long value = flag == null ? lastVisit : flag.resolve(lastVisit);
+			if (value != Config.FLAG_DEFAULT) {
+				visitor.visit(world, chunkKey, value);
+			}
+		});
+
+		// Visit queued chunks without stored flags.
+		for (Map.Entry<Long, PendingFlag> entry : pending.entrySet()) {
+			long value = entry.getValue().resolve(Config.FLAG_DEFAULT);
+			if (value != Config.FLAG_DEFAULT) {
+				visitor.visit(worldName, entry.getKey(), value);
+			}
+		}
+	}
+
+	@Override
+	public @NotNull Collection<String> getWorldNames() throws Exception {
+		Set<String> worldNames = new HashSet<>(delegate.getWorldNames());
+		synchronized (lock) {
+			worldNames.addAll(parked.keySet());
+			worldNames.addAll(writing.keySet());
+			worldNames.addAll(queued.keySet());
+		}
+		return worldNames;
+	}
+
+	@Override
+	public long prune(@NotNull String worldName, long visitCutoff, long historyCutoff) throws Exception {
+		// Values are only removed if still below the cutoff when written, so queued changes are unaffected.
+		return delegate.prune(worldName, visitCutoff, historyCutoff);
+	}
+
+	@Override
+	public void dropWorld(@NotNull String worldName) throws Exception {
+		synchronized (lock) {
+			// A failed write is queued again, so wait for any write in progress before discarding.
+			while (writing.containsKey(worldName) && writer.isAlive()) {
+				lock.wait();
+			}
+			Map<Long, PendingFlag> worldQueue = queued.remove(worldName);
+			if (worldQueue != null) {
+				queuedCount -= worldQueue.size();
+			}
+			Map<Long, PendingFlag> worldParked = parked.remove(worldName);
+			if (worldParked != null) {
+				parkedCount -= worldParked.size();
+			}
+			lock.notifyAll();
+		}
+
+		// Flags queued from here on are written after the world is dropped.
+		delegate.dropWorld(worldName);
+	}
+
+	@Override
+	public long compact() throws Exception {
+		return delegate.compact();
+	}
+
+	@Override
+	public long rebuild() throws Exception {
+		return delegate.rebuild();
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Void> getConversion() {
+		return delegate.getConversion();
+	}
+
+	@Override
+	public void forEachRegionBitmap(@NotNull String worldName, @NotNull BitmapVisitor visitor) throws Exception {
+		flush();
+		delegate.forEachRegionBitmap(worldName, visitor);
+	}
+
+	@Override
+	public void forEachFlag(boolean onDelete, @NotNull FlagVisitor visitor) throws Exception {
+		flush();
+		delegate.forEachFlag(onDelete, visitor);
+	}
+
+	/**
+	 * Waits for all flags queued so far to be written or set aside as unwritable.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if flags could not be written
+	 */
+	public void flush() throws InterruptedException, IOException {
+		synchronized (lock) {
+			while ((queuedCount > 0 || !writing.isEmpty()) && writer.isAlive()) {
+				lock.wait();
+			}
+			if (parkedCount > 0) {
+				throw new IOException(String.format("Unable to write flags for %s chunks, see earlier errors.", parkedCount));
+			}
+		}
+	}
+
+	/**
+	 * Waits until no more than the specified number of chunks have flags waiting to be written. Used to keep bulk
+	 * writers from queueing faster than the database can keep up.
+	 *
+	 * @param maxQueued the maximum number of queued chunks
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitQueuedWrites(int maxQueued) throws InterruptedException {
+		synchronized (lock) {
+			while (queuedCount > maxQueued && writer.isAlive()) {
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of chunks with flags waiting to be written.
+	 *
+	 * @return the number of queued chunks
+	 */
+	public int getQueuedWrites() {
+		synchronized (lock) {
+			return queuedCount;
+		}
+	}
+
+	/**
+	 * Gets the number of flags written by the most recent commit.
+	 *
+	 * @return the size of the last commit
+	 */
+	public int getLastCommitSize() {
+		return lastCommitSize;
+	}
+
+	/**
+	 * Gets the time taken by the most recent commit.
+	 *
+	 * @return the duration of the last commit in milliseconds
+	 */
+	public long getLastCommitLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(lastCommitNanos);
+	}
+
+	private void run() {
+		long retryMillis = MIN_RETRY_MILLIS;
+		int failures = 0;
+		boolean finalAttempt = false;
+		while (true) {
+			Map<String, Map<Long, PendingFlag>> batch;
+			synchronized (lock) {
+				while (true) {
+					if (closed && !finalAttempt) {
+						// Give flags set aside a final attempt.
+						finalAttempt = true;
+						unpark();
+					} else if (!closed && parkedCount > 0 && System.currentTimeMillis() >= parkedRetryAt) {
+						unpark();
+					}
+					if (queuedCount > 0 || closed) {
+						break;
+					}
+					try {
+						if (parkedCount > 0) {
+							lock.wait(Math.max(1, parkedRetryAt - System.currentTimeMillis()));
+						} else {
+							lock.wait();
+						}
+					} catch (InterruptedException ignored) {
+						// Only closing stops the writer.
+					}
+				}
+
+				if (queuedCount == 0) {
+					if (parkedCount > 0) {
+						plugin.getLogger().severe(String.format("Unable to write flags for %s chunks before closing, changes are lost.",
+								parkedCount));
+					}
+					return;
+				}
+
+				batch = queued;
+				writing = batch;
+				queued = new HashMap<>();
+				queuedCount = 0;
+			}
+
+			Exception failure = write(batch);
+
+			if (failure != null) {
+				plugin.getLogger().log(Level.SEVERE, "Exception updating chunk flags, retrying later", failure);
+				if (closed || ++failures >= SPLIT_AFTER_FAILURES) {
+					// Write what can be written and set aside the rest so that the queue keeps moving.
+					Map<String, Map<Long, PendingFlag>> failed = isolate(batch);
+					synchronized (lock) {
+						writing = Collections.emptyMap();
+						park(failed);
+						lock.notifyAll();
+					}
+					failures = 0;
+					retryMillis = MIN_RETRY_MILLIS;
+					continue;
+				}
+			}
+
+			synchronized (lock) {
+				writing = Collections.emptyMap();
+				if (failure == null) {
+					failures = 0;
+					retryMillis = MIN_RETRY_MILLIS;
+				} else {
+					requeue(batch);
+				}
+				lock.notifyAll();
+
+				if (failure == null) {
+					continue;
+				}
+
+				// Wait before retrying, only closing ends the wait early.
+				long retryAt = System.currentTimeMillis() + retryMillis;
+				long remaining;
+				while (!closed && (remaining = retryAt - System.currentTimeMillis()) > 0) {
+					try {
+						lock.wait(remaining);
+					} catch (InterruptedException ignored) {
+						// Only closing stops the writer.
+					}
+				}
+				retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+			}
+		}
+	}
+
+	/**
+	 * Returns a batch that failed to write to the queue. Changes queued since are applied on top of it. Must be called
+	 * while holding the lock.
+	 *
+	 * @param batch the failed batch
+	 */
+	private void requeue(@NotNull Map<String, Map<Long, PendingFlag>> batch) {
+		for (Map.Entry<String, Map<Long, PendingFlag>> worldEntry : queued.entrySet()) {
+			Map<Long, PendingFlag> worldBatch = batch.computeIfAbsent(worldEntry.getKey(), key -> new HashMap<>());
+			for (Map.Entry<Long, PendingFlag> entry : worldEntry.getValue().entrySet()) {
+				PendingFlag earlier = worldBatch.get(entry.getKey());
+				if (earlier == null) {
+					worldBatch.put(entry.getKey(), entry.getValue());
+				} else {
+					earlier.apply(entry.getValue());
+				}
+			}
+		}
+
+		queued = batch;
+		queuedCount = count(batch);
+	}
+
+	/**
+	 * Sets aside flags that could not be written. They are retried after a delay. Must be called while holding the
+	 * lock.
+	 *
+	 * @param failed the flags that could not be written
+	 */
+	private void park(@NotNull Map<String, Map<Long, PendingFlag>> failed) {
+		if (failed.isEmpty()) {
+			return;
+		}
+
+		for (Map.Entry<String, Map<Long, PendingFlag>> worldEntry : failed.entrySet()) {
+			Map<Long, PendingFlag> worldParked = parked.computeIfAbsent(worldEntry.getKey(), key -> new HashMap<>());
+			for (Map.Entry<Long, PendingFlag> entry : worldEntry.getValue().entrySet()) {
+				PendingFlag earlier = worldParked.get(entry.getKey());
+				if (earlier == null) {
+					worldParked.put(entry.getKey(), entry.getValue());
+				} else {
+					earlier.apply(entry.getValue());
+				}
+			}
+		}
+
+		parkedCount = count(parked);
+		parkedRetryAt = System.currentTimeMillis() + PARKED_RETRY_MILLIS;
+	}
+
+	/**
+	 * Returns flags set aside to the queue. Must be called while holding the lock.
+	 */
+	private void unpark() {
+		if (parkedCount == 0) {
+			return;
+		}
+		requeue(parked);
+		parked = new HashMap<>();
+		parkedCount = 0;
+	}
+
+	private static int count(@NotNull Map<String, Map<Long, PendingFlag>> batch) {
+		int count = 0;
+		for (Map<Long, PendingFlag> worldQueue : batch.values()) {
+			count += worldQueue.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a batch that failed as a whole in parts. Each world is written separately, and the regions of a world
+	 * that fails are split in halves until the regions that cannot be written are found.
+	 *
+	 * @param batch the failed batch
+	 * @return the flags that could not be written
+	 */
+	private @NotNull Map<String, Map<Long, PendingFlag>> isolate(@NotNull Map<String, Map<Long, PendingFlag>> batch) {
+		Map<String, Map<Long, PendingFlag>> failed = new HashMap<>();
+		Exception firstFailure = null;
+		int failedRegions = 0;
+
+		for (Map.Entry<String, Map<Long, PendingFlag>> worldEntry : batch.entrySet()) {
+			Map<Long, Map<Long, PendingFlag>> regions = new HashMap<>();
+			for (Map.Entry<Long, PendingFlag> entry : worldEntry.getValue().entrySet()) {
+				long chunkKey = entry.getKey();
+				long regionKey = ChunkKey.of(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5);
+				regions.computeIfAbsent(regionKey, key -> new HashMap<>()).put(chunkKey, entry.getValue());
+			}
+
+			List<Map<Long, PendingFlag>> failedParts = new ArrayList<>();
+			Exception failure = isolate(worldEntry.getKey(), new ArrayList<>(regions.values()), failedParts);
+			if (failure == null) {
+				continue;
+			}
+			if (firstFailure == null) {
+				firstFailure = failure;
+			}
+
+			Map<Long, PendingFlag> worldFailed = new HashMap<>();
+			for (Map<Long, PendingFlag> region : failedParts) {
+				worldFailed.putAll(region);
+			}
+			failed.put(worldEntry.getKey(), worldFailed);
+			failedRegions += failedParts.size();
+		}
+
+		if (firstFailure != null) {
+			plugin.getLogger().log(Level.SEVERE, String.format("Unable to write flags for %s chunks in %s regions, setting them aside. They will be retried in %s minutes.",
+					count(failed), failedRegions, TimeUnit.MILLISECONDS.toMinutes(PARKED_RETRY_MILLIS)), firstFailure);
+		}
+
+		return failed;
+	}
+
+	/**
+	 * Writes regions of a world, splitting them in halves on failure.
+	 *
+	 * @param worldName the world name
+	 * @param regions the queued flags of each region
+	 * @param failed the list to add regions that could not be written to
+	 * @return the first exception encountered or null if all regions were written
+	 */
+	private @Nullable Exception isolate(@NotNull String worldName, @NotNull List<Map<Long, PendingFlag>> regions,
+			@NotNull List<Map<Long, PendingFlag>> failed) {
+		Map<Long, PendingFlag> part = new HashMap<>();
+		for (Map<Long, PendingFlag> region : regions) {
+			part.putAll(region);
+		}
+
+		Exception failure = write(Collections.singletonMap(worldName, part));
+		if (failure == null) {
+			return null;
+		}
+
+		if (regions.size() == 1) {
+			failed.add(part);
+			return failure;
+		}
+
+		int half = regions.size() / 2;
+		Exception first = isolate(worldName, regions.subList(0, half), failed);
+		Exception second = isolate(worldName, regions.subList(half, regions.size()), failed);
+		return first != null ? first : second;
+	}
+
+	/**
+	 * Writes a batch of queued changes.
+	 *
+	 * @param batch the batch
+	 * @return null if the batch was written, otherwise the exception that prevented writing it
+	 */
+	private @Nullable Exception write(@NotNull Map<String, Map<Long, PendingFlag>> batch) {
+		// Values preceding a deletion must be stored before the deletion copies them to history.
+		List<FlagBatch> batches = new ArrayList<>();
+		List<FlagBatch> afterDelete = new ArrayList<>();
+		int size = 0;
+
+		for (Map.Entry<String, Map<Long, PendingFlag>> worldEntry : batch.entrySet()) {
+			List<ChunkFlagger.FlagData> beforeDelete = new ArrayList<>();
+			List<ChunkFlagger.FlagData> flags = new ArrayList<>(worldEntry.getValue().size());
+			for (Map.Entry<Long, PendingFlag> entry : worldEntry.getValue().entrySet()) {
+				long chunkKey = entry.getKey();
+				PendingFlag pending = entry.getValue();
+				if (!pending.deleted) {
+					flags.add(new ChunkFlagger.FlagData(chunkKey, pending.beforeDelete));
+					continue;
+				}
+				if (pending.beforeDelete != Config.FLAG_DEFAULT) {
+					beforeDelete.add(new ChunkFlagger.FlagData(chunkKey, pending.beforeDelete));
+				}
+				flags.add(new ChunkFlagger.FlagData(chunkKey, Config.FLAG_DEFAULT));
+				if (pending.afterDelete != Config.FLAG_DEFAULT) {
+					flags.add(new ChunkFlagger.FlagData(chunkKey, pending.afterDelete));
+				}
+			}
+
+			if (!beforeDelete.isEmpty()) {
+				batches.add(new FlagBatch(worldEntry.getKey(), beforeDelete));
+				size += beforeDelete.size();
+			}
+			afterDelete.add(new FlagBatch(worldEntry.getKey(), flags));
+			size += flags.size();
+		}
+
+		batches.addAll(afterDelete);
+
+		long start = System.nanoTime();
+		try {
+			delegate.updateAll(batches);
+		} catch (Exception e) {
+			return e;
+		}
+		lastCommitNanos = System.nanoTime() - start;
+		lastCommitSize = size;
+		return null;
+	}
+
+	private @Nullable PendingFlag getPending(@NotNull String worldName, long chunkKey) {
+		synchronized (lock) {
+			PendingFlag pending = getPending(null, parked, worldName, chunkKey);
+			return getPending(getPending(pending, writing, worldName, chunkKey), queued, worldName, chunkKey);
+		}
+	}
+
+	private @Nullable PendingFlag[] getPending(@NotNull String worldName, @NotNull long[] chunkKeys) {
+		synchronized (lock) {
+			if (!parked.containsKey(worldName) && !writing.containsKey(worldName) && !queued.containsKey(worldName)) {
+				return null;
+			}
+
+			PendingFlag[] pending = new PendingFlag[chunkKeys.length];
+			for (int i = 0; i < chunkKeys.length; ++i) {
+				pending[i] = getPending(getPending(getPending(null, parked, worldName, chunkKeys[i]), writing,
+						worldName, chunkKeys[i]), queued, worldName, chunkKeys[i]);
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Combines a chunk's queued changes with any earlier changes. Must be called while holding the lock.
+	 *
+	 * @param earlier a copy of earlier changes or null if none
+	 * @param source the queue to read
+	 * @param worldName the world name
+	 * @param chunkKey the {@link ChunkKey} of the chunk
+	 * @return a copy of the combined changes or null if none
+	 */
+	private static @Nullable PendingFlag getPending(@Nullable PendingFlag earlier,
+			@NotNull Map<String, Map<Long, PendingFlag>> source, @NotNull String worldName, long chunkKey) {
+		Map<Long, PendingFlag> worldQueue = source.get(worldName);
+		PendingFlag later = worldQueue == null ? null : worldQueue.get(chunkKey);
+		if (later == null) {
+			return earlier;
+		}
+		PendingFlag combined = earlier == null ? new PendingFlag() : earlier;
+		combined.apply(later);
+		return combined;
+	}
+
+	/**
+	 * Queued changes to a chunk's flag.
+	 *
+	 * <p>Stored flags only increase unless reset by deletion, so any run of changes collapses into the highest value
+	 * before deletion, whether the chunk is deleted, and the highest value after deletion.
+	 */
+	private static final class PendingFlag {
+
+		private long beforeDelete = Config.FLAG_DEFAULT;
+		private boolean deleted = false;
+		private long afterDelete = Config.FLAG_DEFAULT;
+
+		private void apply(long value) {
+			if (value == Config.FLAG_DEFAULT) {
+				if (deleted) {
+					// Repeat deletions record the later value in history.
+					beforeDelete = Math.max(beforeDelete, afterDelete);
+					afterDelete = Config.FLAG_DEFAULT;
+				}
+				deleted = true;
+			} else if (deleted) {
+				afterDelete = Math.max(afterDelete, value);
+			} else {
+				beforeDelete = Math.max(beforeDelete, value);
+			}
+		}
+
+		private void apply(@NotNull PendingFlag later) {
+			if (later.beforeDelete != Config.FLAG_DEFAULT) {
+				apply(later.beforeDelete);
+			}
+			if (later.deleted) {
+				apply(Config.FLAG_DEFAULT);
+			}
+			if (later.afterDelete != Config.FLAG_DEFAULT) {
+				apply(later.afterDelete);
+			}
+		}
+
+		private long resolve(long stored) {
+			return deleted ? afterDelete : Math.max(stored, beforeDelete);
+		}
+
+	}
+
+}
@@ -12,89 +12,756 @@ package com.github.jikoo.regionerator.database;
 
 import com.github.jikoo.regionerator.ChunkFlagger;
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.database.ConnectionPool.PooledConnection;
+import com.github.jikoo.regionerator.util.ChunkKey;
 import com.github.jikoo.regionerator.util.yaml.Config;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Adapter for old versions of SQLite.
+ *
+ * <p>Flags are keyed by an integer world ID and the Morton code of the chunk so that the chunks of a region are
+ * stored contiguously and can be read with a single range scan.
  */
 public class SQLeadenAdapter implements DatabaseAdapter {
 
+	/** Maximum chunks per query. Old SQLite versions limit statements to 999 parameters. */
+	private static final int MAX_IDS_PER_QUERY = 256;
+	/** Minimum chunks requested from a region for the whole region to be read with a range scan. */
+	private static final int MIN_CHUNKS_PER_RANGE = 64;
+	/** Rows converted from the legacy table per transaction. */
+	private static final int CONVERSION_BATCH_ROWS = 4096;
+	/** Rows removed per transaction during maintenance. */
+	private static final int MAINTENANCE_BATCH_ROWS = 4096;
+	/** The schema version, stored as the database's user_version. */
+	static final int SCHEMA_VERSION = 1;
+	static final String FLAG_TABLE = "chunkflags";
+	static final String HISTORY_TABLE = "chunkhistory";
+
 	private final Regionerator plugin;
-	final Connection database;
+	final ConnectionPool database;
+	private final Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+	private final @Nullable BackgroundConversion conversion;
 
-	SQLeadenAdapter(@NotNull Regionerator plugin, @NotNull Connection database) throws SQLException {
+	SQLeadenAdapter(@NotNull Regionerator plugin, @NotNull ConnectionPool database) throws SQLException {
 		this.plugin = plugin;
 		this.database = database;
 
 		// Set up database
-		try (Statement st = database.createStatement()) {
-			st.executeUpdate("CREATE TABLE IF NOT EXISTS `chunkdata`(`chunk_id` TEXT NOT NULL UNIQUE, `time` BIGINT NOT NULL)");
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			int version = readSchemaVersion(writer);
+			// Version 0 stored flags in the legacy table. Later versions only have it if an older version wrote to it.
+			boolean legacy = writer.hasTable(LegacyChunkId.TABLE);
+
+			try (Statement st = writer.getConnection().createStatement()) {
+				st.executeUpdate("CREATE TABLE IF NOT EXISTS `worlds`(`world_id` INTEGER PRIMARY KEY, `name` TEXT NOT NULL UNIQUE)");
+				st.executeUpdate("CREATE TABLE IF NOT EXISTS `" + FLAG_TABLE + "`(`world_id` INTEGER NOT NULL, `chunk` INTEGER NOT NULL, `time` BIGINT NOT NULL, PRIMARY KEY(`world_id`,`chunk`)) WITHOUT ROWID");
+				st.executeUpdate("CREATE TABLE IF NOT EXISTS `" + HISTORY_TABLE + "`(`world_id` INTEGER NOT NULL, `chunk` INTEGER NOT NULL, `time` BIGINT NOT NULL, PRIMARY KEY(`world_id`,`chunk`)) WITHOUT ROWID");
+				// History is now written with deletions.
+				st.executeUpdate("DROP TRIGGER IF EXISTS chunkflagshistory");
+				if (!legacy && version < SCHEMA_VERSION) {
+					// Nothing to convert, the version is stored once legacy flags are converted otherwise.
+					st.executeUpdate("PRAGMA user_version=" + SCHEMA_VERSION);
+				}
+			}
+			writer.getConnection().commit();
+
+			if (legacy) {
+				if (version >= SCHEMA_VERSION) {
+					plugin.getLogger().warning("Flags were written to data.db by an older version of Regionerator since it was converted. They will be converted again.");
+				}
+				// Convert in the background. Deletion waits for conversion to finish.
+				conversion = new BackgroundConversion(plugin, "Regionerator Chunk Flag Converter", this::convertLegacyChunkData);
+			} else {
+				conversion = null;
+			}
+		}
+
+		if (conversion != null) {
+			conversion.start();
 		}
+	}
 
-		database.setAutoCommit(false);
+	/**
+	 * Reads the schema version stored in a database. Databases written by newer versions are refused rather than
+	 * risking misreading or damaging tables this version does not know about.
+	 *
+	 * @param connection the connection to use
+	 * @return the stored schema version, 0 if none was stored
+	 * @throws SQLException if the version cannot be read or is newer than {@link #SCHEMA_VERSION}
+	 */
+	static int readSchemaVersion(@NotNull PooledConnection connection) throws SQLException {
+		int version;
+		try (Statement st = connection.getConnection().createStatement();
+				ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+			version = rs.next() ? rs.getInt(1) : 0;
+		}
+		if (version > SCHEMA_VERSION) {
+			throw new SQLException(String.format("data.db uses schema version %s, but this version of Regionerator only supports up to %s. Update Regionerator to use it.",
+					version, SCHEMA_VERSION));
+		}
+		return version;
 	}
 
 	@Override
 	public void close() {
-		synchronized (database) {
+		if (conversion != null) {
+			conversion.cancel();
+		}
+		try {
+			database.close();
+		} catch (SQLException e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception committing to and closing DB connection", e);
+		}
+	}
+
+	@Override
+	public void update(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) throws SQLException {
+		updateAll(Collections.singletonList(new FlagBatch(worldName, flags)));
+	}
+
+	@Override
+	public void updateAll(@NotNull List<FlagBatch> batches) throws SQLException {
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			// Creating world IDs commits, resolve them before writing anything.
+			int[] worldIds = new int[batches.size()];
+			for (int i = 0; i < worldIds.length; ++i) {
+				worldIds[i] = getWorldId(writer, batches.get(i).getWorldName(), true);
+			}
+
 			try {
-				database.commit();
-				database.close();
+				for (int i = 0; i < worldIds.length; ++i) {
+					write(writer, worldIds[i], batches.get(i).getFlags());
+				}
+				writer.getConnection().commit();
 			} catch (SQLException e) {
-				plugin.getLogger().log(Level.SEVERE, "Exception committing to and closing DB connection", e);
+				writer.getConnection().rollback();
+				throw e;
 			}
 		}
 	}
 
+	private void write(@NotNull PooledConnection writer, int worldId, @NotNull Collection<ChunkFlagger.FlagData> flags)
+			throws SQLException {
+		PreparedStatement upsert = prepareUpsert(writer);
+		// Values as of deletion are copied to history in the same transaction as the deletion.
+		PreparedStatement history = writer.prepare("INSERT OR REPLACE INTO " + HISTORY_TABLE + "(world_id,chunk,time) SELECT world_id,chunk,time FROM " + FLAG_TABLE + " WHERE world_id=? AND chunk=?");
+		PreparedStatement deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace = writer.prepare("DELETE FROM " + FLAG_TABLE + " WHERE world_id=? AND chunk=?");
+		try {
+			for (ChunkFlagger.FlagData data : flags) {
+				long chunk = ChunkKey.toMorton(data.getChunkKey());
+				if (data.getLastVisit() == Config.FLAG_DEFAULT) {
+					history.setInt(1, worldId);
+					history.setLong(2, chunk);
+					history.addBatch();
+					deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.setInt(1, worldId);
+					deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.setLong(2, chunk);
+					deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.addBatch();
+				} else {
+					addUpsert(upsert, worldId, chunk, data.getLastVisit());
+				}
+			}
+			history.executeBatch();
+			deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.executeBatch();
+			upsert.executeBatch();
+		} catch (SQLException e) {
+			// Statements are reused, discard the failed batch.
+			history.clearBatch();
+			deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.clearBatch();
+			upsert.clearBatch();
+			throw e;
+		}
+	}
+
+	/**
+	 * Prepares the statement used to store flags, keeping the later of the stored and new values.
+	 *
+	 * @param writer the writer connection
+	 * @return the prepared statement
+	 * @throws SQLException if an error occurs preparing the statement
+	 */
+	@NotNull PreparedStatement prepareUpsert(@NotNull PooledConnection writer) throws SQLException {
+		return writer.prepare(getMaxUpsert(FLAG_TABLE));
+	}
+
+	/**
+	 * Adds a flag to the batch of a statement from {@link #prepareUpsert(PooledConnection)}.
+	 *
+	 * @param upsert the prepared statement
+	 * @param worldId the world ID
+	 * @param chunk the Morton code of the chunk
+	 * @param time the flag
+	 * @throws SQLException if an error occurs setting parameters
+	 */
+	void addUpsert(@NotNull PreparedStatement upsert, int worldId, long chunk, long time) throws SQLException {
+		addMaxUpsert(upsert, worldId, chunk, time);
+	}
+
 	@Override
-	public void update(@NotNull Collection<ChunkFlagger.FlagData> flags) throws SQLException {
-		synchronized (database) {
-			try (PreparedStatement boyIWishThisWasAnUpsert = database.prepareStatement("INSERT OR REPLACE INTO chunkdata(chunk_id,time) VALUES (?, MAX(COALESCE((SELECT time FROM chunkdata WHERE chunk_id=?),0),?))");
-				PreparedStatement deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace = database.prepareStatement("DELETE FROM chunkdata WHERE chunk_id=?")) {
-				for (ChunkFlagger.FlagData data : flags) {
-					if (data.getLastVisit() == Config.FLAG_DEFAULT) {
-						deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.setString(1, data.getChunkId());
-						deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.addBatch();
-					} else {
-						boyIWishThisWasAnUpsert.setString(1, data.getChunkId());
-						boyIWishThisWasAnUpsert.setString(2, data.getChunkId());
-						boyIWishThisWasAnUpsert.setLong(3, data.getLastVisit());
-						boyIWishThisWasAnUpsert.addBatch();
+	public void updateHistory(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> values)
+			throws SQLException {
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			int worldId = getWorldId(writer, worldName, true);
+			PreparedStatement upsert = writer.prepare(getMaxUpsert(HISTORY_TABLE));
+			try {
+				for (ChunkFlagger.FlagData data : values) {
+					if (data.getLastVisit() != Config.FLAG_DEFAULT) {
+						addMaxUpsert(upsert, worldId, ChunkKey.toMorton(data.getChunkKey()), data.getLastVisit());
 					}
 				}
-				deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.executeBatch();
-				boyIWishThisWasAnUpsert.executeBatch();
-				this.database.commit();
+				upsert.executeBatch();
+				writer.getConnection().commit();
+			} catch (SQLException e) {
+				upsert.clearBatch();
+				writer.getConnection().rollback();
+				throw e;
 			}
 		}
 	}
 
 	@Override
-	public long get(@NotNull String identifier) throws SQLException {
-		synchronized (database) {
-			if (database.isClosed()) {
-				return Config.FLAG_OH_NO;
+	public long get(@NotNull String worldName, long chunkKey) throws SQLException {
+		return get(FLAG_TABLE, worldName, chunkKey);
+	}
+
+	@Override
+	public long getOnDelete(@NotNull String worldName, long chunkKey) throws SQLException {
+		return get(HISTORY_TABLE, worldName, chunkKey);
+	}
+
+	@Override
+	public @NotNull long[] getAll(@NotNull String worldName, @NotNull long[] chunkKeys) throws SQLException {
+		long[] flags = new long[chunkKeys.length];
+
+		if (database.isClosed()) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		return database.read(reader -> {
+			int worldId = getWorldId(reader, worldName, false);
+			if (worldId < 0) {
+				Arrays.fill(flags, Config.FLAG_DEFAULT);
+				return flags;
+			}
+
+			// Sorted codes group chunks by region and allow looking up results without boxing.
+			long[] chunks = new long[chunkKeys.length];
+			for (int i = 0; i < chunkKeys.length; ++i) {
+				chunks[i] = ChunkKey.toMorton(chunkKeys[i]);
+			}
+			Arrays.sort(chunks);
+			long[] stored = new long[chunks.length];
+			Arrays.fill(stored, Config.FLAG_DEFAULT);
+
+			long[] listed = new long[chunks.length];
+			int listedCount = 0;
+			for (int start = 0, end; start < chunks.length; start = end) {
+				long regionStart = chunks[start] & ~(ChunkKey.CHUNKS_PER_REGION - 1L);
+				end = start + 1;
+				while (end < chunks.length && (chunks[end] & ~(ChunkKey.CHUNKS_PER_REGION - 1L)) == regionStart) {
+					++end;
+				}
+
+				if (end - start < MIN_CHUNKS_PER_RANGE) {
+					System.arraycopy(chunks, start, listed, listedCount, end - start);
+					listedCount += end - start;
+					continue;
+				}
+
+				// Densely requested regions are cheaper to read whole than to list.
+				PreparedStatement st = prepareRangeScan(reader, worldId, regionStart);
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						int index = Arrays.binarySearch(chunks, rs.getLong(1));
+						if (index >= 0) {
+							stored[index] = rs.getLong(2);
+						}
+					}
+				}
 			}
 
-			try (PreparedStatement st = database.prepareStatement("SELECT time FROM chunkdata WHERE chunk_id=?")) {
-				st.setString(1, identifier);
+			for (int start = 0; start < listedCount; start += MAX_IDS_PER_QUERY) {
+				int count = Math.min(MAX_IDS_PER_QUERY, listedCount - start);
+				StringBuilder query = new StringBuilder("SELECT chunk,time FROM " + FLAG_TABLE + " WHERE world_id=? AND chunk IN (?");
+				for (int i = 1; i < count; ++i) {
+					query.append(",?");
+				}
+				query.append(')');
+
+				PreparedStatement st = reader.prepare(query.toString());
+				st.setInt(1, worldId);
+				for (int i = 0; i < count; ++i) {
+					st.setLong(i + 2, listed[start + i]);
+				}
 				try (ResultSet rs = st.executeQuery()) {
-					if (rs.next()) {
-						return rs.getLong(1);
-					} else {
-						return Config.FLAG_DEFAULT;
+					while (rs.next()) {
+						stored[Arrays.binarySearch(chunks, rs.getLong(1))] = rs.getLong(2);
 					}
 				}
 			}
+
+			for (int i = 0; i < chunkKeys.length; ++i) {
+				flags[i] = stored[Arrays.binarySearch(chunks, ChunkKey.toMorton(chunkKeys[i]))];
+			}
+			return flags;
+		});
+	}
+
+	@Override
+	public @NotNull long[] getRegion(@NotNull String worldName, int regionX, int regionZ) throws SQLException {
+		long[] flags = new long[ChunkKey.CHUNKS_PER_REGION];
+
+		if (database.isClosed()) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		Arrays.fill(flags, Config.FLAG_DEFAULT);
+
+		return database.read(reader -> {
+			int worldId = getWorldId(reader, worldName, false);
+			if (worldId < 0) {
+				return flags;
+			}
+
+			PreparedStatement st = prepareRangeScan(reader, worldId, ChunkKey.getMortonRegionStart(regionX, regionZ));
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					flags[ChunkKey.getRegionIndex(ChunkKey.fromMorton(rs.getLong(1)))] = rs.getLong(2);
+				}
+			}
+			return flags;
+		});
+	}
+
+	@Override
+	public void forEachFlag(@NotNull String worldName, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ,
+			@NotNull FlagVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
 		}
+
+		database.read(reader -> {
+			int worldId = getWorldId(reader, worldName, false);
+			if (worldId < 0) {
+				return null;
+			}
+
+			for (int regionX = minRegionX; regionX <= maxRegionX; ++regionX) {
+				for (int regionZ = minRegionZ; regionZ <= maxRegionZ; ++regionZ) {
+					PreparedStatement st = prepareRangeScan(reader, worldId, ChunkKey.getMortonRegionStart(regionX, regionZ));
+					try (ResultSet rs = st.executeQuery()) {
+						while (rs.next()) {
+							visitor.visit(worldName, ChunkKey.fromMorton(rs.getLong(1)), rs.getLong(2));
+						}
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public void forEachRegionBitmap(@NotNull String worldName, @NotNull BitmapVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
+		}
+
+		database.read(reader -> {
+			int worldId = getWorldId(reader, worldName, false);
+			if (worldId < 0) {
+				return null;
+			}
+
+			// Chunks are ordered by Morton code, so each region's chunks are read consecutively.
+			PreparedStatement st = reader.prepare("SELECT chunk FROM " + FLAG_TABLE + " WHERE world_id=? ORDER BY chunk");
+			st.setInt(1, worldId);
+			try (ResultSet rs = st.executeQuery()) {
+				long regionStart = 0;
+				long[] bitmap = null;
+				long chunkKey = 0;
+				while (rs.next()) {
+					long chunk = rs.getLong(1);
+					if (bitmap != null && (chunk & ~(ChunkKey.CHUNKS_PER_REGION - 1L)) != regionStart) {
+						visitor.visit(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5, bitmap);
+						bitmap = null;
+					}
+					if (bitmap == null) {
+						regionStart = chunk & ~(ChunkKey.CHUNKS_PER_REGION - 1L);
+						bitmap = new long[ChunkKey.REGION_BITMAP_LONGS];
+					}
+					chunkKey = ChunkKey.fromMorton(chunk);
+					int index = ChunkKey.getRegionIndex(chunkKey);
+					bitmap[index >> 6] |= 1L << index;
+				}
+				if (bitmap != null) {
+					visitor.visit(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5, bitmap);
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public @NotNull Collection<String> getWorldNames() throws SQLException {
+		return database.read(reader -> {
+			List<String> worldNames = new ArrayList<>();
+			try (Statement st = reader.getConnection().createStatement();
+					// Dropped worlds keep their ID so that cached IDs remain valid.
+					ResultSet rs = st.executeQuery("SELECT name FROM worlds WHERE EXISTS(SELECT 1 FROM " + FLAG_TABLE + " WHERE " + FLAG_TABLE + ".world_id=worlds.world_id) OR EXISTS(SELECT 1 FROM " + HISTORY_TABLE + " WHERE " + HISTORY_TABLE + ".world_id=worlds.world_id)")) {
+				while (rs.next()) {
+					worldNames.add(rs.getString(1));
+				}
+			}
+			return worldNames;
+		});
+	}
+
+	@Override
+	public long prune(@NotNull String worldName, long visitCutoff, long historyCutoff) throws SQLException {
+		if (database.isClosed()) {
+			return 0;
+		}
+
+		int worldId = database.read(reader -> getWorldId(reader, worldName, false));
+		if (worldId < 0) {
+			return 0;
+		}
+
+		return prune(worldId, FLAG_TABLE, visitCutoff) + prune(worldId, HISTORY_TABLE, historyCutoff);
+	}
+
+	private long prune(int worldId, @NotNull String table, long cutoff) throws SQLException {
+		long pruned = 0;
+		long next = Long.MIN_VALUE;
+
+		while (!database.isClosed()) {
+			// Walk the primary key rather than rescanning the table for every batch.
+			long from = next;
+			long[] chunks = database.read(reader -> {
+				PreparedStatement select = reader.prepare("SELECT chunk FROM " + table + " WHERE world_id=? AND chunk>=? AND time<? ORDER BY chunk LIMIT " + MAINTENANCE_BATCH_ROWS);
+				select.setInt(1, worldId);
+				select.setLong(2, from);
+				select.setLong(3, cutoff);
+				long[] selected = new long[MAINTENANCE_BATCH_ROWS];
+				int count = 0;
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						selected[count++] = rs.getLong(1);
+					}
+				}
+				return Arrays.copyOf(selected, count);
+			});
+
+			if (chunks.length == 0) {
+				break;
+			}
+
+			PooledConnection writer = database.getWriter();
+			synchronized (writer) {
+				// Values may have been raised since they were selected.
+				PreparedStatement delete = writer.prepare("DELETE FROM " + table + " WHERE world_id=? AND chunk=? AND time<?");
+				try {
+					for (long chunk : chunks) {
+						delete.setInt(1, worldId);
+						delete.setLong(2, chunk);
+						delete.setLong(3, cutoff);
+						delete.addBatch();
+					}
+					for (int count : delete.executeBatch()) {
+						pruned += Math.max(0, count);
+					}
+					writer.getConnection().commit();
+				} catch (SQLException e) {
+					delete.clearBatch();
+					writer.getConnection().rollback();
+					throw e;
+				}
+			}
+
+			long last = chunks[chunks.length - 1];
+			if (chunks.length < MAINTENANCE_BATCH_ROWS || last == Long.MAX_VALUE) {
+				break;
+			}
+			next = last + 1;
+		}
+
+		return pruned;
+	}
+
+	@Override
+	public void dropWorld(@NotNull String worldName) throws SQLException {
+		if (database.isClosed()) {
+			return;
+		}
+
+		int worldId = database.read(reader -> getWorldId(reader, worldName, false));
+		if (worldId < 0) {
+			return;
+		}
+
+		dropWorld(worldId, FLAG_TABLE);
+		dropWorld(worldId, HISTORY_TABLE);
+	}
+
+	private void dropWorld(int worldId, @NotNull String table) throws SQLException {
+		while (!database.isClosed()) {
+			PooledConnection writer = database.getWriter();
+			synchronized (writer) {
+				PreparedStatement delete = writer.prepare("DELETE FROM " + table + " WHERE world_id=? AND chunk IN (SELECT chunk FROM " + table + " WHERE world_id=? LIMIT " + MAINTENANCE_BATCH_ROWS + ")");
+				int deleted;
+				try {
+					delete.setInt(1, worldId);
+					delete.setInt(2, worldId);
+					deleted = delete.executeUpdate();
+					writer.getConnection().commit();
+				} catch (SQLException e) {
+					writer.getConnection().rollback();
+					throw e;
+				}
+				if (deleted < MAINTENANCE_BATCH_ROWS) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public long compact() throws SQLException {
+		return database.isClosed() ? 0 : database.vacuum();
+	}
+
+	@Override
+	public long rebuild() throws SQLException {
+		return database.isClosed() ? 0 : database.rebuild();
+	}
+
+	/**
+	 * Prepares a statement selecting the chunks and flags of a region.
+	 *
+	 * @param reader the connection
+	 * @param worldId the world ID
+	 * @param regionStart the lowest Morton code in the region
+	 * @return the prepared statement
+	 * @throws SQLException if a database access error occurs
+	 */
+	private static @NotNull PreparedStatement prepareRangeScan(@NotNull PooledConnection reader, int worldId,
+			long regionStart) throws SQLException {
+		PreparedStatement st = reader.prepare("SELECT chunk,time FROM " + FLAG_TABLE + " WHERE world_id=? AND chunk BETWEEN ? AND ?");
+		st.setInt(1, worldId);
+		st.setLong(2, regionStart);
+		st.setLong(3, regionStart + ChunkKey.CHUNKS_PER_REGION - 1);
+		return st;
+	}
+
+	@Override
+	public void forEachFlag(boolean onDelete, @NotNull FlagVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
+		}
+
+		String table = onDelete ? HISTORY_TABLE : FLAG_TABLE;
+		database.read(reader -> {
+			try (Statement st = reader.getConnection().createStatement();
+					ResultSet rs = st.executeQuery("SELECT worlds.name,chunk,time FROM " + table + " JOIN worlds USING(world_id)")) {
+				while (rs.next()) {
+					visitor.visit(rs.getString(1), ChunkKey.fromMorton(rs.getLong(2)), rs.getLong(3));
+				}
+			}
+			return null;
+		});
+	}
+
+	private long get(@NotNull String table, @NotNull String worldName, long chunkKey) throws SQLException {
+		if (database.isClosed()) {
+			return Config.FLAG_OH_NO;
+		}
+
+		return database.read(reader -> {
+			int worldId = getWorldId(reader, worldName, false);
+			if (worldId < 0) {
+				return Config.FLAG_DEFAULT;
+			}
+
+			PreparedStatement st = reader.prepare("SELECT time FROM " + table + " WHERE world_id=? AND chunk=?");
+			st.setInt(1, worldId);
+			st.setLong(2, ChunkKey.toMorton(chunkKey));
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next()) {
+					return rs.getLong(1);
+				} else {
+					return Config.FLAG_DEFAULT;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the ID of a world as stored in the database.
+	 *
+	 * <p>Creating an ID requires the writer connection and commits immediately so that the ID is visible to readers
+	 * before any flags using it.
+	 *
+	 * @param connection the connection to use
+	 * @param worldName the world name
+	 * @param create whether to create an ID if the world does not have one
+	 * @return the world ID or -1 if the world does not have one
+	 * @throws SQLException if an error occurs reading or creating the ID
+	 */
+	int getWorldId(@NotNull PooledConnection connection, @NotNull String worldName, boolean create) throws SQLException {
+		Integer worldId = worldIds.get(worldName);
+		if (worldId != null) {
+			return worldId;
+		}
+
+		PreparedStatement select = connection.prepare("SELECT world_id FROM worlds WHERE name=?");
+		select.setString(1, worldName);
+		try (ResultSet rs = select.executeQuery()) {
+			if (rs.next()) {
+				worldId = rs.getInt(1);
+				worldIds.put(worldName, worldId);
+				return worldId;
+			}
+		}
+
+		if (!create) {
+			return -1;
+		}
+
+		PreparedStatement insert = connection.prepare("INSERT INTO worlds(name) VALUES (?)");
+		insert.setString(1, worldName);
+		insert.executeUpdate();
+		connection.getConnection().commit();
+
+		return getWorldId(connection, worldName, false);
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Void> getConversion() {
+		return conversion == null ? DatabaseAdapter.super.getConversion() : conversion.getFuture();
+	}
+
+	/**
+	 * Converts flags stored in the legacy text-keyed table.
+	 *
+	 * <p>Rows are converted in small transactions and removed from the legacy table as they go, so conversion of a
+	 * large database does not double its size, other writes only wait for one batch at a time, and an interrupted
+	 * conversion resumes where it left off.
+	 *
+	 * @throws SQLException if an error occurs converting flags
+	 */
+	private void convertLegacyChunkData() throws SQLException {
+		plugin.getLogger().info("Beginning converting flags to integer-keyed schema. Deletion is paused until conversion completes.");
+
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			try (Statement st = writer.getConnection().createStatement()) {
+				// Converted rows are deleted, the old trigger would copy them back as history.
+				st.executeUpdate("DROP TRIGGER IF EXISTS chunkdataold");
+			}
+			writer.getConnection().commit();
+		}
+
+		String[] chunkIds = new String[CONVERSION_BATCH_ROWS];
+		long[] times = new long[CONVERSION_BATCH_ROWS];
+		int converted = 0;
+
+		while (true) {
+			if (conversion != null && conversion.isCancelled()) {
+				plugin.getLogger().info("Stopped converting flags, conversion will resume on next startup.");
+				return;
+			}
+
+			synchronized (writer) {
+				PreparedStatement select = writer.prepare("SELECT rowid,chunk_id,time FROM " + LegacyChunkId.TABLE + " ORDER BY rowid LIMIT " + CONVERSION_BATCH_ROWS);
+				int rows = 0;
+				long lastRow = 0;
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						lastRow = rs.getLong(1);
+						chunkIds[rows] = rs.getString(2);
+						times[rows] = rs.getLong(3);
+						++rows;
+					}
+				}
+
+				if (rows == 0) {
+					break;
+				}
+
+				Connection connection = writer.getConnection();
+				PreparedStatement deleteConverted = writer.prepare("DELETE FROM " + LegacyChunkId.TABLE + " WHERE rowid<=?");
+				PreparedStatement flagUpsert = writer.prepare(getMaxUpsert(FLAG_TABLE));
+				PreparedStatement historyUpsert = writer.prepare(getMaxUpsert(HISTORY_TABLE));
+				try {
+					for (int i = 0; i < rows; ++i) {
+						LegacyChunkId chunkId = LegacyChunkId.parse(chunkIds[i]);
+						if (chunkId == null) {
+							// Invalid data, skip
+							continue;
+						}
+						int worldId = getWorldId(writer, chunkId.getWorldName(), true);
+						addMaxUpsert(chunkId.isOnDelete() ? historyUpsert : flagUpsert, worldId,
+								ChunkKey.toMorton(chunkId.getChunkKey()), times[i]);
+						++converted;
+					}
+					flagUpsert.executeBatch();
+					historyUpsert.executeBatch();
+					deleteConverted.setLong(1, lastRow);
+					deleteConverted.executeUpdate();
+					connection.commit();
+				} catch (SQLException e) {
+					flagUpsert.clearBatch();
+					historyUpsert.clearBatch();
+					connection.rollback();
+					throw e;
+				}
+			}
+		}
+
+		synchronized (writer) {
+			try (Statement st = writer.getConnection().createStatement()) {
+				st.executeUpdate("DROP TABLE " + LegacyChunkId.TABLE);
+				st.executeUpdate("PRAGMA user_version=" + SCHEMA_VERSION);
+			}
+			writer.getConnection().commit();
+		}
+
+		plugin.getLogger().info(String.format("Finished converting %s flags to integer-keyed schema.", converted));
+	}
+
+	private static @NotNull String getMaxUpsert(@NotNull String table) {
+		return "INSERT OR REPLACE INTO " + table + "(world_id,chunk,time) VALUES (?,?,MAX(COALESCE((SELECT time FROM "
+				+ table + " WHERE world_id=? AND chunk=?),0),?))";
+	}
+
+	private static void addMaxUpsert(@NotNull PreparedStatement upsert, int worldId, long chunk, long time)
+			throws SQLException {
+		upsert.setInt(1, worldId);
+		upsert.setLong(2, chunk);
+		upsert.setInt(3, worldId);
+		upsert.setLong(4, chunk);
+		upsert.setLong(5, time);
+		upsert.addBatch();
 	}
 
 }
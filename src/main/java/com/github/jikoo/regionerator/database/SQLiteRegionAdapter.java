@@ -0,0 +1,819 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.ChunkFlagger;
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.database.ConnectionPool.PooledConnection;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.CompactTimestamp;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adapter for SQLite storing all flags of a region in a single row.
+ *
+ * <p>Flags are stored as a bitmap of chunks with a value followed by the value of each of those chunks, so regions
+ * cost 128 bytes plus 8 bytes per flagged chunk. Values as of deletion are stored alongside in the same format.
+ */
+public class SQLiteRegionAdapter implements DatabaseAdapter {
+
+	private static final int BITMAP_LONGS = ChunkKey.REGION_BITMAP_LONGS;
+	private static final int BITMAP_BYTES = BITMAP_LONGS * Long.BYTES;
+	/** Per-chunk rows converted per transaction. */
+	private static final int CONVERSION_BATCH_ROWS = 16384;
+	/** Regions pruned per transaction during maintenance. */
+	private static final int MAINTENANCE_BATCH_REGIONS = 64;
+	private static final String SELECT_REGION = "SELECT visits,deleted FROM regiondata WHERE world=? AND region_x=? AND region_z=?";
+	private static final String SELECT_REGION_RANGE = "SELECT region_x,region_z,visits FROM regiondata WHERE world=? AND region_x BETWEEN ? AND ? AND region_z BETWEEN ? AND ?";
+	private static final String SELECT_REGION_BITMAPS = "SELECT region_x,region_z,substr(visits,1," + BITMAP_BYTES + ") FROM regiondata WHERE world=? AND visits IS NOT NULL";
+	private static final String UPSERT_REGION = "INSERT OR REPLACE INTO regiondata(world,region_x,region_z,visits,deleted) VALUES (?,?,?,?,?)";
+	private static final String DELETE_REGION = "DELETE FROM regiondata WHERE world=? AND region_x=? AND region_z=?";
+
+	private final Regionerator plugin;
+	private final ConnectionPool database;
+	private final boolean compact;
+	private final @Nullable BackgroundConversion conversion;
+
+	SQLiteRegionAdapter(@NotNull Regionerator plugin, @NotNull ConnectionPool database, boolean convert)
+			throws SQLException {
+		this.plugin = plugin;
+		this.database = database;
+		this.compact = plugin.config().isCompactTimestamps();
+
+		// Set up database
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			// Per-chunk tables of newer versions cannot be converted.
+			SQLeadenAdapter.readSchemaVersion(writer);
+
+			try (Statement st = writer.getConnection().createStatement()) {
+				st.executeUpdate("CREATE TABLE IF NOT EXISTS `regiondata`(`world` TEXT NOT NULL, `region_x` INTEGER NOT NULL, `region_z` INTEGER NOT NULL, `visits` BLOB, `deleted` BLOB, PRIMARY KEY(`world`,`region_x`,`region_z`))");
+			}
+			writer.getConnection().commit();
+
+			if (convert && !getChunkTables(writer).isEmpty()) {
+				// Convert in the background. Deletion waits for conversion to finish.
+				conversion = new BackgroundConversion(plugin, "Regionerator Region Flag Converter", this::convertChunkData);
+			} else {
+				conversion = null;
+			}
+		}
+
+		if (conversion != null) {
+			conversion.start();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (conversion != null) {
+			conversion.cancel();
+		}
+		try {
+			database.close();
+		} catch (SQLException e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception committing to and closing DB connection", e);
+		}
+	}
+
+	@Override
+	public void update(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> flags) throws SQLException {
+		updateAll(Collections.singletonList(new FlagBatch(worldName, flags)));
+	}
+
+	@Override
+	public void updateAll(@NotNull List<FlagBatch> batches) throws SQLException {
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			try {
+				for (FlagBatch batch : batches) {
+					write(writer, batch.getWorldName(), batch.getFlags());
+				}
+				writer.getConnection().commit();
+			} catch (SQLException e) {
+				writer.getConnection().rollback();
+				throw e;
+			}
+		}
+	}
+
+	private void write(@NotNull PooledConnection writer, @NotNull String worldName,
+			@NotNull Collection<ChunkFlagger.FlagData> flags) throws SQLException {
+		// Group flags so that each region is only read and written once.
+		Map<Long, List<ChunkFlagger.FlagData>> regions = new HashMap<>();
+		for (ChunkFlagger.FlagData data : flags) {
+			regions.computeIfAbsent(getRegionKey(data.getChunkKey()), key -> new ArrayList<>()).add(data);
+		}
+
+		for (Map.Entry<Long, List<ChunkFlagger.FlagData>> entry : regions.entrySet()) {
+			int regionX = ChunkKey.getX(entry.getKey());
+			int regionZ = ChunkKey.getZ(entry.getKey());
+			RegionRecord record = read(writer, worldName, regionX, regionZ);
+			for (ChunkFlagger.FlagData data : entry.getValue()) {
+				record.update(ChunkKey.getRegionIndex(data.getChunkKey()), data.getLastVisit());
+			}
+			write(writer, worldName, regionX, regionZ, record);
+		}
+	}
+
+	@Override
+	public void updateHistory(@NotNull String worldName, @NotNull Collection<ChunkFlagger.FlagData> values)
+			throws SQLException {
+		Map<Long, List<ChunkFlagger.FlagData>> regions = new HashMap<>();
+		for (ChunkFlagger.FlagData data : values) {
+			regions.computeIfAbsent(getRegionKey(data.getChunkKey()), key -> new ArrayList<>()).add(data);
+		}
+
+		PooledConnection writer = database.getWriter();
+		synchronized (writer) {
+			try {
+				for (Map.Entry<Long, List<ChunkFlagger.FlagData>> entry : regions.entrySet()) {
+					int regionX = ChunkKey.getX(entry.getKey());
+					int regionZ = ChunkKey.getZ(entry.getKey());
+					RegionRecord record = read(writer, worldName, regionX, regionZ);
+					for (ChunkFlagger.FlagData data : entry.getValue()) {
+						int index = ChunkKey.getRegionIndex(data.getChunkKey());
+						record.deleted[index] = Math.max(record.deleted[index], data.getLastVisit());
+					}
+					write(writer, worldName, regionX, regionZ, record);
+				}
+				writer.getConnection().commit();
+			} catch (SQLException e) {
+				writer.getConnection().rollback();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public long get(@NotNull String worldName, long chunkKey) throws SQLException {
+		return get(worldName, chunkKey, false);
+	}
+
+	@Override
+	public long getOnDelete(@NotNull String worldName, long chunkKey) throws SQLException {
+		return get(worldName, chunkKey, true);
+	}
+
+	private long get(@NotNull String worldName, long chunkKey, boolean onDelete) throws SQLException {
+		if (database.isClosed()) {
+			return Config.FLAG_OH_NO;
+		}
+
+		return database.read(reader -> {
+			PreparedStatement select = reader.prepare(SELECT_REGION);
+			long regionKey = getRegionKey(chunkKey);
+			setRegion(select, worldName, ChunkKey.getX(regionKey), ChunkKey.getZ(regionKey));
+			try (ResultSet rs = select.executeQuery()) {
+				if (rs.next()) {
+					return getValue(rs.getBytes(onDelete ? 2 : 1), ChunkKey.getRegionIndex(chunkKey));
+				} else {
+					return Config.FLAG_DEFAULT;
+				}
+			}
+		});
+	}
+
+	@Override
+	public @NotNull long[] getAll(@NotNull String worldName, @NotNull long[] chunkKeys) throws SQLException {
+		long[] flags = new long[chunkKeys.length];
+		Map<Long, long[]> regions = new HashMap<>();
+
+		if (database.isClosed()) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		return database.read(reader -> {
+			for (int i = 0; i < chunkKeys.length; ++i) {
+				long regionKey = getRegionKey(chunkKeys[i]);
+				long[] region = regions.get(regionKey);
+				if (region == null) {
+					region = read(reader, worldName, ChunkKey.getX(regionKey), ChunkKey.getZ(regionKey)).visits;
+					regions.put(regionKey, region);
+				}
+				flags[i] = region[ChunkKey.getRegionIndex(chunkKeys[i])];
+			}
+			return flags;
+		});
+	}
+
+	@Override
+	public @NotNull long[] getRegion(@NotNull String worldName, int regionX, int regionZ) throws SQLException {
+		if (database.isClosed()) {
+			long[] flags = new long[ChunkKey.CHUNKS_PER_REGION];
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		return database.read(reader -> read(reader, worldName, regionX, regionZ).visits);
+	}
+
+	@Override
+	public boolean isRegionGranular() {
+		return true;
+	}
+
+	@Override
+	public void forEachFlag(@NotNull String worldName, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ,
+			@NotNull FlagVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
+		}
+
+		database.read(reader -> {
+			PreparedStatement st = reader.prepare(SELECT_REGION_RANGE);
+			st.setString(1, worldName);
+			st.setInt(2, minRegionX);
+			st.setInt(3, maxRegionX);
+			st.setInt(4, minRegionZ);
+			st.setInt(5, maxRegionZ);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					long[] values = decode(rs.getBytes(3));
+					for (int index = 0; index < values.length; ++index) {
+						if (values[index] != Config.FLAG_DEFAULT) {
+							visitor.visit(worldName, ChunkKey.ofRegionIndex(rs.getInt(1), rs.getInt(2), index), values[index]);
+						}
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public @NotNull Collection<String> getWorldNames() throws SQLException {
+		return database.read(reader -> {
+			List<String> worldNames = new ArrayList<>();
+			try (Statement st = reader.getConnection().createStatement();
+					ResultSet rs = st.executeQuery("SELECT DISTINCT world FROM regiondata")) {
+				while (rs.next()) {
+					worldNames.add(rs.getString(1));
+				}
+			}
+			return worldNames;
+		});
+	}
+
+	@Override
+	public long prune(@NotNull String worldName, long visitCutoff, long historyCutoff) throws SQLException {
+		if (database.isClosed()) {
+			return 0;
+		}
+
+		List<Long> regions = database.read(reader -> {
+			List<Long> regionKeys = new ArrayList<>();
+			PreparedStatement select = reader.prepare("SELECT region_x,region_z FROM regiondata WHERE world=?");
+			select.setString(1, worldName);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					regionKeys.add(ChunkKey.of(rs.getInt(1), rs.getInt(2)));
+				}
+			}
+			return regionKeys;
+		});
+
+		long pruned = 0;
+		for (int start = 0; start < regions.size() && !database.isClosed(); start += MAINTENANCE_BATCH_REGIONS) {
+			PooledConnection writer = database.getWriter();
+			synchronized (writer) {
+				try {
+					for (long regionKey : regions.subList(start, Math.min(regions.size(), start + MAINTENANCE_BATCH_REGIONS))) {
+						int regionX = ChunkKey.getX(regionKey);
+						int regionZ = ChunkKey.getZ(regionKey);
+						RegionRecord record = read(writer, worldName, regionX, regionZ);
+						int removed = record.prune(visitCutoff, historyCutoff);
+						if (removed > 0) {
+							write(writer, worldName, regionX, regionZ, record);
+							pruned += removed;
+						}
+					}
+					writer.getConnection().commit();
+				} catch (SQLException e) {
+					writer.getConnection().rollback();
+					throw e;
+				}
+			}
+		}
+
+		return pruned;
+	}
+
+	@Override
+	public void dropWorld(@NotNull String worldName) throws SQLException {
+		while (!database.isClosed()) {
+			PooledConnection writer = database.getWriter();
+			synchronized (writer) {
+				PreparedStatement delete = writer.prepare("DELETE FROM regiondata WHERE rowid IN (SELECT rowid FROM regiondata WHERE world=? LIMIT " + MAINTENANCE_BATCH_REGIONS + ")");
+				int deleted;
+				try {
+					delete.setString(1, worldName);
+					deleted = delete.executeUpdate();
+					writer.getConnection().commit();
+				} catch (SQLException e) {
+					writer.getConnection().rollback();
+					throw e;
+				}
+				if (deleted < MAINTENANCE_BATCH_REGIONS) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public long compact() throws SQLException {
+		return database.isClosed() ? 0 : database.vacuum();
+	}
+
+	@Override
+	public long rebuild() throws SQLException {
+		return database.isClosed() ? 0 : database.rebuild();
+	}
+
+	@Override
+	public void forEachFlag(boolean onDelete, @NotNull FlagVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
+		}
+
+		database.read(reader -> {
+			try (Statement st = reader.getConnection().createStatement();
+					ResultSet rs = st.executeQuery("SELECT world,region_x,region_z," + (onDelete ? "deleted" : "visits") + " FROM regiondata")) {
+				while (rs.next()) {
+					long[] values = decode(rs.getBytes(4));
+					for (int index = 0; index < values.length; ++index) {
+						if (values[index] != Config.FLAG_DEFAULT) {
+							visitor.visit(rs.getString(1), ChunkKey.ofRegionIndex(rs.getInt(2), rs.getInt(3), index), values[index]);
+						}
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public void forEachRegionBitmap(@NotNull String worldName, @NotNull BitmapVisitor visitor) throws Exception {
+		if (database.isClosed()) {
+			throw new SQLException("Database is closed");
+		}
+
+		// Records start with their bitmap, the flags themselves are not needed.
+		database.read(reader -> {
+			PreparedStatement st = reader.prepare(SELECT_REGION_BITMAPS);
+			st.setString(1, worldName);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					ByteBuffer buffer = ByteBuffer.wrap(rs.getBytes(3));
+					long[] bitmap = new long[BITMAP_LONGS];
+					for (int word = 0; word < BITMAP_LONGS; ++word) {
+						bitmap[word] = buffer.getLong();
+					}
+					visitor.visit(rs.getInt(1), rs.getInt(2), bitmap);
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Void> getConversion() {
+		return conversion == null ? DatabaseAdapter.super.getConversion() : conversion.getFuture();
+	}
+
+	/**
+	 * Gets the tables of per-chunk flags stored by the other SQLite adapters.
+	 *
+	 * @param writer the writer connection
+	 * @return the names of the tables present
+	 * @throws SQLException if an error occurs reading the database
+	 */
+	private static @NotNull List<String> getChunkTables(@NotNull PooledConnection writer) throws SQLException {
+		List<String> tables = new ArrayList<>();
+		for (String table : new String[] { LegacyChunkId.TABLE, SQLeadenAdapter.FLAG_TABLE, SQLeadenAdapter.HISTORY_TABLE }) {
+			if (writer.hasTable(table)) {
+				tables.add(table);
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Converts per-chunk flags stored by the other SQLite adapters.
+	 *
+	 * <p>Rows are converted in batches, each merged into stored regions and removed from its table in a single
+	 * transaction. Conversion of a large database does not double its size, other writes only wait for one batch at a
+	 * time, and an interrupted conversion resumes where it left off. Tables are dropped once empty.
+	 *
+	 * @throws SQLException if an error occurs converting flags
+	 */
+	private void convertChunkData() throws SQLException {
+		PooledConnection writer = database.getWriter();
+		List<String> tables;
+		synchronized (writer) {
+			tables = getChunkTables(writer);
+		}
+
+		plugin.getLogger().info("Beginning converting per-chunk flags to per-region flags. Deletion is paused until conversion completes.");
+
+		int converted = 0;
+		for (String table : tables) {
+			if (table.equals(LegacyChunkId.TABLE)) {
+				synchronized (writer) {
+					try (Statement st = writer.getConnection().createStatement()) {
+						// Converted rows are deleted, the old trigger would copy them back as history.
+						st.executeUpdate("DROP TRIGGER IF EXISTS chunkdataold");
+					}
+					writer.getConnection().commit();
+				}
+			}
+
+			int batch;
+			do {
+				if (conversion != null && conversion.isCancelled()) {
+					plugin.getLogger().info("Stopped converting per-chunk flags, conversion will resume on next startup.");
+					return;
+				}
+				synchronized (writer) {
+					batch = convertChunkBatch(writer, table);
+				}
+				converted += batch;
+			} while (batch > 0);
+
+			synchronized (writer) {
+				try (Statement st = writer.getConnection().createStatement()) {
+					st.executeUpdate("DROP TABLE " + table);
+				}
+				writer.getConnection().commit();
+			}
+		}
+
+		plugin.getLogger().info(String.format("Finished converting %s per-chunk flags, dropped tables %s.", converted, tables));
+	}
+
+	/**
+	 * Converts and removes the first rows of a table of per-chunk flags. Must be called while holding the writer's
+	 * lock.
+	 *
+	 * @param writer the writer connection
+	 * @param table the table
+	 * @return the number of rows removed
+	 * @throws SQLException if an error occurs converting flags
+	 */
+	private int convertChunkBatch(@NotNull PooledConnection writer, @NotNull String table) throws SQLException {
+		RegionConversion conversion = new RegionConversion();
+		int rows = 0;
+		PreparedStatement delete;
+
+		if (table.equals(LegacyChunkId.TABLE)) {
+			long lastRow = 0;
+			PreparedStatement select = writer.prepare("SELECT rowid,chunk_id,time FROM " + table + " ORDER BY rowid LIMIT " + CONVERSION_BATCH_ROWS);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					++rows;
+					lastRow = rs.getLong(1);
+					LegacyChunkId chunkId = LegacyChunkId.parse(rs.getString(2));
+					if (chunkId == null) {
+						// Invalid data, skip
+						continue;
+					}
+					conversion.add(chunkId.getWorldName(), chunkId.getChunkKey(), chunkId.isOnDelete(), rs.getLong(3));
+				}
+			}
+			delete = writer.prepare("DELETE FROM " + table + " WHERE rowid<=?");
+			delete.setLong(1, lastRow);
+		} else {
+			boolean onDelete = table.equals(SQLeadenAdapter.HISTORY_TABLE);
+			int lastWorld = 0;
+			long lastChunk = 0;
+			// Rows of worlds without a name are removed without being converted.
+			PreparedStatement select = writer.prepare("SELECT " + table + ".world_id,chunk,time,name FROM " + table
+					+ " LEFT JOIN worlds USING(world_id) ORDER BY " + table + ".world_id,chunk LIMIT " + CONVERSION_BATCH_ROWS);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					++rows;
+					lastWorld = rs.getInt(1);
+					lastChunk = rs.getLong(2);
+					String worldName = rs.getString(4);
+					if (worldName != null) {
+						conversion.add(worldName, ChunkKey.fromMorton(lastChunk), onDelete, rs.getLong(3));
+					}
+				}
+			}
+			delete = writer.prepare("DELETE FROM " + table + " WHERE world_id<? OR world_id=? AND chunk<=?");
+			delete.setInt(1, lastWorld);
+			delete.setInt(2, lastWorld);
+			delete.setLong(3, lastChunk);
+		}
+
+		if (rows == 0) {
+			return 0;
+		}
+
+		try {
+			writeConverted(writer, conversion.pending);
+			delete.executeUpdate();
+			writer.getConnection().commit();
+		} catch (SQLException e) {
+			writer.getConnection().rollback();
+			throw e;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Merges converted regions into stored regions.
+	 *
+	 * @param writer the writer connection
+	 * @param converted the converted regions, mapped by world name and region key
+	 * @throws SQLException if an error occurs writing regions
+	 */
+	private void writeConverted(@NotNull PooledConnection writer,
+			@NotNull Map<String, Map<Long, RegionRecord>> converted) throws SQLException {
+		for (Map.Entry<String, Map<Long, RegionRecord>> worldEntry : converted.entrySet()) {
+			for (Map.Entry<Long, RegionRecord> regionEntry : worldEntry.getValue().entrySet()) {
+				int regionX = ChunkKey.getX(regionEntry.getKey());
+				int regionZ = ChunkKey.getZ(regionEntry.getKey());
+				RegionRecord record = read(writer, worldEntry.getKey(), regionX, regionZ);
+				record.merge(regionEntry.getValue());
+				write(writer, worldEntry.getKey(), regionX, regionZ, record);
+			}
+		}
+	}
+
+	private @NotNull RegionRecord read(@NotNull PooledConnection connection, @NotNull String worldName, int regionX,
+			int regionZ) throws SQLException {
+		PreparedStatement select = connection.prepare(SELECT_REGION);
+		setRegion(select, worldName, regionX, regionZ);
+		try (ResultSet rs = select.executeQuery()) {
+			if (rs.next()) {
+				return new RegionRecord(rs.getBytes(1), rs.getBytes(2));
+			}
+			return new RegionRecord(null, null);
+		}
+	}
+
+	private void write(@NotNull PooledConnection writer, @NotNull String worldName, int regionX, int regionZ,
+			@NotNull RegionRecord record) throws SQLException {
+		byte[] visits = encode(record.visits, compact);
+		byte[] deleted = encode(record.deleted, compact);
+
+		if (visits == null && deleted == null) {
+			PreparedStatement delete = writer.prepare(DELETE_REGION);
+			setRegion(delete, worldName, regionX, regionZ);
+			delete.executeUpdate();
+			return;
+		}
+
+		PreparedStatement upsert = writer.prepare(UPSERT_REGION);
+		setRegion(upsert, worldName, regionX, regionZ);
+		upsert.setBytes(4, visits);
+		upsert.setBytes(5, deleted);
+		upsert.executeUpdate();
+	}
+
+	private static void setRegion(@NotNull PreparedStatement statement, @NotNull String worldName, int regionX,
+			int regionZ) throws SQLException {
+		statement.setString(1, worldName);
+		statement.setInt(2, regionX);
+		statement.setInt(3, regionZ);
+	}
+
+	/**
+	 * Gets the key of the region containing a chunk. Region keys are packed like {@link ChunkKey ChunkKeys} using
+	 * region coordinates.
+	 *
+	 * @param chunkKey the {@link ChunkKey} of the chunk
+	 * @return the region key
+	 */
+	static long getRegionKey(long chunkKey) {
+		return ChunkKey.of(ChunkKey.getX(chunkKey) >> 5, ChunkKey.getZ(chunkKey) >> 5);
+	}
+
+	/**
+	 * Encodes the flags of a region. Encoded flags start with a bitmap of flagged chunks followed by the flag of each
+	 * flagged chunk, either as a long or as an int {@link CompactTimestamp} code. The width of flags is implied by the
+	 * length of the data.
+	 *
+	 * @param values the flags, ordered by {@link ChunkKey#getRegionIndex(long)}
+	 * @param compact whether to store flags as {@link CompactTimestamp} codes
+	 * @return the encoded flags or null if no chunk is flagged
+	 */
+	static @Nullable byte[] encode(@NotNull long[] values, boolean compact) {
+		long[] bitmap = new long[BITMAP_LONGS];
+		int count = 0;
+		for (int index = 0; index < values.length; ++index) {
+			if (values[index] != Config.FLAG_DEFAULT) {
+				bitmap[index >> 6] |= 1L << index;
+				++count;
+			}
+		}
+
+		if (count == 0) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(BITMAP_BYTES + count * (compact ? Integer.BYTES : Long.BYTES));
+		for (long word : bitmap) {
+			buffer.putLong(word);
+		}
+		for (long value : values) {
+			if (value == Config.FLAG_DEFAULT) {
+				continue;
+			}
+			if (compact) {
+				buffer.putInt(CompactTimestamp.encode(value));
+			} else {
+				buffer.putLong(value);
+			}
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * Decodes the flags of a region.
+	 *
+	 * @param data the encoded flags or null if no chunk is flagged
+	 * @return the flags, ordered by {@link ChunkKey#getRegionIndex(long)}
+	 */
+	static @NotNull long[] decode(@Nullable byte[] data) {
+		long[] values = new long[ChunkKey.CHUNKS_PER_REGION];
+		Arrays.fill(values, Config.FLAG_DEFAULT);
+
+		if (data == null) {
+			return values;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		boolean compact = isCompact(buffer);
+		int offset = BITMAP_BYTES;
+		for (int word = 0; word < BITMAP_LONGS; ++word) {
+			long bits = buffer.getLong(word * Long.BYTES);
+			while (bits != 0) {
+				int index = word << 6 | Long.numberOfTrailingZeros(bits);
+				if (compact) {
+					values[index] = CompactTimestamp.decode(buffer.getInt(offset));
+					offset += Integer.BYTES;
+				} else {
+					values[index] = buffer.getLong(offset);
+					offset += Long.BYTES;
+				}
+				bits &= bits - 1;
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Gets the flag of a single chunk from encoded region flags.
+	 *
+	 * @param data the encoded flags or null if no chunk is flagged
+	 * @param index the index of the chunk within the region
+	 * @return the chunk's flag
+	 */
+	private static long getValue(@Nullable byte[] data, int index) {
+		if (data == null) {
+			return Config.FLAG_DEFAULT;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int word = index >> 6;
+		long bits = buffer.getLong(word * Long.BYTES);
+		if ((bits & 1L << index) == 0) {
+			return Config.FLAG_DEFAULT;
+		}
+
+		// Skip values of all preceding flagged chunks.
+		int preceding = Long.bitCount(bits & (1L << index) - 1);
+		for (int i = 0; i < word; ++i) {
+			preceding += Long.bitCount(buffer.getLong(i * Long.BYTES));
+		}
+
+		if (isCompact(buffer)) {
+			return CompactTimestamp.decode(buffer.getInt(BITMAP_BYTES + preceding * Integer.BYTES));
+		}
+		return buffer.getLong(BITMAP_BYTES + preceding * Long.BYTES);
+	}
+
+	/**
+	 * Gets whether encoded flags are stored as {@link CompactTimestamp} codes.
+	 *
+	 * @param buffer the encoded flags
+	 * @return true if flags are stored as ints
+	 */
+	private static boolean isCompact(@NotNull ByteBuffer buffer) {
+		int count = 0;
+		for (int word = 0; word < BITMAP_LONGS; ++word) {
+			count += Long.bitCount(buffer.getLong(word * Long.BYTES));
+		}
+		return buffer.capacity() == BITMAP_BYTES + count * Integer.BYTES;
+	}
+
+	/**
+	 * A batch of per-chunk flags being converted, grouped by region.
+	 */
+	private static final class RegionConversion {
+
+		private final Map<String, Map<Long, RegionRecord>> pending = new HashMap<>();
+
+		private void add(@NotNull String worldName, long chunkKey, boolean onDelete, long time) {
+			RegionRecord record = pending.computeIfAbsent(worldName, key -> new HashMap<>())
+					.computeIfAbsent(getRegionKey(chunkKey), key -> new RegionRecord(null, null));
+			long[] values = onDelete ? record.deleted : record.visits;
+			int index = ChunkKey.getRegionIndex(chunkKey);
+			values[index] = Math.max(values[index], time);
+		}
+
+	}
+
+	/**
+	 * The decoded flags of a region.
+	 */
+	private static final class RegionRecord {
+
+		private final long[] visits;
+		private final long[] deleted;
+
+		private RegionRecord(@Nullable byte[] visits, @Nullable byte[] deleted) {
+			this.visits = decode(visits);
+			this.deleted = decode(deleted);
+		}
+
+		/**
+		 * Updates a chunk's flag. Visits only move forwards, and a visit is recorded as of deletion when it is removed.
+		 *
+		 * @param index the index of the chunk within the region
+		 * @param lastVisit the chunk's new flag
+		 */
+		private void update(int index, long lastVisit) {
+			if (lastVisit == Config.FLAG_DEFAULT) {
+				if (visits[index] != Config.FLAG_DEFAULT) {
+					deleted[index] = visits[index];
+				}
+				visits[index] = Config.FLAG_DEFAULT;
+			} else {
+				visits[index] = Math.max(visits[index], lastVisit);
+			}
+		}
+
+		/**
+		 * Removes values lower than the cutoffs.
+		 *
+		 * @param visitCutoff the time before which visits are removed
+		 * @param historyCutoff the time before which values as of deletion are removed
+		 * @return the number of values removed
+		 */
+		private int prune(long visitCutoff, long historyCutoff) {
+			return prune(visits, visitCutoff) + prune(deleted, historyCutoff);
+		}
+
+		private static int prune(@NotNull long[] values, long cutoff) {
+			int pruned = 0;
+			for (int index = 0; index < values.length; ++index) {
+				if (values[index] != Config.FLAG_DEFAULT && values[index] < cutoff) {
+					values[index] = Config.FLAG_DEFAULT;
+					++pruned;
+				}
+			}
+			return pruned;
+		}
+
+		private void merge(@NotNull RegionRecord other) {
+			for (int index = 0; index < ChunkKey.CHUNKS_PER_REGION; ++index) {
+				visits[index] = Math.max(visits[index], other.visits[index]);
+				deleted[index] = Math.max(deleted[index], other.deleted[index]);
+			}
+		}
+
+	}
+
+}
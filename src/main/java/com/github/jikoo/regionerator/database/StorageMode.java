@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.Regionerator;
+import java.io.File;
+import java.io.IOException;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Locale;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Available storage backends for flags.
+ */
+public enum StorageMode {
+
+	/** One record per chunk. */
+	CHUNK((plugin, convert) -> openDatabase(plugin, connections -> {
+		DatabaseMetaData metaData = connections.getWriter().getConnection().getMetaData();
+
+		if (metaData.getDatabaseMajorVersion() < 3 || metaData.getDatabaseMajorVersion() == 3 && metaData.getDatabaseMinorVersion() < 24) {
+			// Terrible SQLite
+			return new SQLeadenAdapter(plugin, connections);
+		}
+
+		return new SQLiteAdapter(plugin, connections);
+	})),
+	/** One record per region containing all of its chunks. */
+	REGION((plugin, convert) -> openDatabase(plugin, connections -> new SQLiteRegionAdapter(plugin, connections, convert))),
+	/** One memory-mapped file of region pages per world instead of a database. */
+	FILE(FlatFileAdapter::new);
+
+	private final AdapterFactory factory;
+
+	StorageMode(@NotNull AdapterFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Opens an adapter for the backend.
+	 *
+	 * @param plugin the plugin
+	 * @param convert whether to convert flags stored by other backends
+	 * @return the adapter
+	 * @throws Exception if an error occurs opening the adapter
+	 */
+	public @NotNull DatabaseAdapter open(@NotNull Regionerator plugin, boolean convert) throws Exception {
+		return factory.open(plugin, convert);
+	}
+
+	/**
+	 * Gets a storage mode by name.
+	 *
+	 * @param value the name of the storage mode
+	 * @return the storage mode, or null if the name does not match a storage mode
+	 */
+	public static @Nullable StorageMode of(@Nullable String value) {
+		if (value == null) return null;
+
+		try {
+			return valueOf(value.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Finds flags stored by another storage mode that are not converted when this storage mode is opened.
+	 *
+	 * @param dataFolder the plugin data folder
+	 * @return a description of the stored flags, or null if there are none
+	 * @throws IOException if an error occurs checking for flags
+	 */
+	@Nullable String findOtherStorage(@NotNull File dataFolder) throws IOException {
+		if (this != FILE && FlatFileAdapter.hasFlagFiles(dataFolder.toPath())) {
+			return "flagfiles";
+		}
+		if (new File(dataFolder, "data.db.bak").exists()) {
+			return "data.db.bak";
+		}
+		return null;
+	}
+
+	private static @NotNull DatabaseAdapter openDatabase(@NotNull Regionerator plugin,
+			@NotNull DatabaseFactory factory) throws Exception {
+		Class.forName("org.sqlite.JDBC");
+
+		ConnectionPool connections = new ConnectionPool("jdbc:sqlite:" + plugin.getDataFolder().getAbsolutePath() + "/data.db", plugin.config());
+		try {
+			return factory.open(connections);
+		} catch (SQLException e) {
+			try {
+				connections.close();
+			} catch (SQLException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+	}
+
+	@FunctionalInterface
+	private interface AdapterFactory {
+
+		@NotNull DatabaseAdapter open(@NotNull Regionerator plugin, boolean convert) throws Exception;
+
+	}
+
+	@FunctionalInterface
+	private interface DatabaseFactory {
+
+		@NotNull DatabaseAdapter open(@NotNull ConnectionPool connections) throws SQLException;
+
+	}
+
+}
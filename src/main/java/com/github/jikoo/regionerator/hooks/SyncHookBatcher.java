@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.hooks;
+
+import com.github.jikoo.regionerator.DebugLevel;
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.world.ChunkInfo;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Queries {@link Hook Hooks} that are not {@link Hook#isAsyncCapable() async capable} for many chunks at once.
+ *
+ * <p>Instead of a main thread task per chunk, queued chunks are checked in groups once per tick until the configured
+ * time per tick is used. Results are kept until released so that {@link ChunkInfo#getVisitStatus()} can use them
+ * rather than returning to the main thread.
+ */
+public class SyncHookBatcher extends BukkitRunnable {
+
+	private final Regionerator plugin;
+	private final Queue<Query> queries = new ConcurrentLinkedQueue<>();
+	private final Map<String, Map<Long, Boolean>> results = new ConcurrentHashMap<>();
+
+	public SyncHookBatcher(@NotNull Regionerator plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Queues chunks to be checked by main thread hooks.
+	 *
+	 * @param world the world containing the chunks
+	 * @param chunks the chunks
+	 * @return a future completed once all chunks are checked
+	 */
+	public @NotNull CompletableFuture<Void> prefetch(@NotNull World world, @NotNull Collection<ChunkInfo> chunks) {
+		List<Hook> syncHooks = plugin.getProtectionHooks().stream().filter(hook -> !hook.isAsyncCapable())
+				.collect(Collectors.toList());
+		if (syncHooks.isEmpty() || chunks.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		CompletableFuture<?>[] futures = new CompletableFuture[chunks.size()];
+		int index = 0;
+		for (ChunkInfo chunk : chunks) {
+			Query query = new Query(world, chunk.getChunkX(), chunk.getChunkZ(), syncHooks);
+			queries.add(query);
+			futures[index++] = query.future;
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	/**
+	 * Gets whether a checked chunk is protected by a main thread hook.
+	 *
+	 * @param world the world containing the chunk
+	 * @param chunkX the chunk X coordinate
+	 * @param chunkZ the chunk Z coordinate
+	 * @return whether the chunk is protected, or null if the chunk has not been checked
+	 */
+	public @Nullable Boolean getProtection(@NotNull World world, int chunkX, int chunkZ) {
+		Map<Long, Boolean> worldResults = results.get(world.getName());
+		return worldResults == null ? null : worldResults.get(ChunkKey.of(chunkX, chunkZ));
+	}
+
+	/**
+	 * Discards results for chunks.
+	 *
+	 * @param world the world containing the chunks
+	 * @param chunks the chunks
+	 */
+	public void release(@NotNull World world, @NotNull Collection<ChunkInfo> chunks) {
+		Map<Long, Boolean> worldResults = results.get(world.getName());
+		if (worldResults == null) {
+			return;
+		}
+		for (ChunkInfo chunk : chunks) {
+			worldResults.remove(ChunkKey.of(chunk.getChunkX(), chunk.getChunkZ()));
+		}
+	}
+
+	/**
+	 * Gets the number of chunks waiting to be checked.
+	 *
+	 * @return the number of chunks
+	 */
+	public int getQueued() {
+		return queries.size();
+	}
+
+	@Override
+	public void run() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(plugin.config().getHookMillisPerTick());
+		Query query;
+		while (System.nanoTime() < deadline && (query = queries.poll()) != null) {
+			boolean isProtected = false;
+			try {
+				for (Hook hook : query.hooks) {
+					if (hook.isChunkProtected(query.world, query.chunkX, query.chunkZ)) {
+						Query protectedQuery = query;
+						plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s_%s_%s contains protections by %s",
+								protectedQuery.world.getName(), protectedQuery.chunkX, protectedQuery.chunkZ,
+								hook.getProtectionName()));
+						isProtected = true;
+						break;
+					}
+				}
+			} catch (RuntimeException e) {
+				// Leave the chunk unchecked, it will be queried individually.
+				query.future.completeExceptionally(e);
+				continue;
+			}
+
+			results.computeIfAbsent(query.world.getName(), key -> new ConcurrentHashMap<>())
+					.put(ChunkKey.of(query.chunkX, query.chunkZ), isProtected);
+			query.future.complete(null);
+		}
+	}
+
+	/**
+	 * A chunk waiting to be checked.
+	 */
+	private static class Query {
+
+		private final World world;
+		private final int chunkX, chunkZ;
+		private final Collection<Hook> hooks;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		private Query(@NotNull World world, int chunkX, int chunkZ, @NotNull Collection<Hook> hooks) {
+			this.world = world;
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+			this.hooks = hooks;
+		}
+
+	}
+
+}
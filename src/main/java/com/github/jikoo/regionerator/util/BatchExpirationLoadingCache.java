@@ -11,33 +11,88 @@
 package com.github.jikoo.regionerator.util;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
  * A cache system designed to load values automatically and minimize write operations by expiring values in batches.
  *
- * @param <K> the key type
- * @param <V> the value stored
+ * <p>Keys are primitive longs. Values are primitive longs within the range of an int, such as
+ * {@link CompactTimestamp} codes, and are stored as ints. Entries are stored in open-addressed arrays split into
+ * independently locked stripes. Each slot costs {@value #BYTES_PER_SLOT} bytes: the key, the value, and a metadata word
+ * containing the expiration timestamp and state bits. Stripes double when 3/4 full, so a settled stripe costs between
+ * 27 and 54 bytes per entry. Stripes halve once under 1/8 full to release memory after large expirations.
+ * See {@link #getMemoryUsage()}.
+ *
+ * <p>Expiration is tracked by a timing wheel with one bucket per expiration check. Using an entry only updates its
+ * expiration timestamp. Entries are refiled when their bucket comes due if they have been used since, so each check
+ * only visits entries that were due to expire. Each entry records the bucket it is filed in, so an entry is only ever
+ * filed once and filings left behind by removed entries are discarded rather than refiled. The wheel costs roughly one
+ * additional long per entry.
  */
-public class BatchExpirationLoadingCache<K, V> {
+public class BatchExpirationLoadingCache {
+
+	/** Value returned by lookups when a key is not present in the cache. */
+	public static final long ABSENT = Long.MIN_VALUE;
+	/** Bytes used per table slot: key, value, and metadata. */
+	public static final int BYTES_PER_SLOT = 2 * Long.BYTES + Integer.BYTES;
 
-	private final Map<K, V> internal = new ConcurrentHashMap<>();
-	private final Collection<K> expired = Collections.synchronizedSet(new LinkedHashSet<>());
+	private static final long DIRTY = 1L;
+	private static final long QUEUED = 2L;
+	private static final long TRACKED = 4L;
+	private static final long FILED = 8L;
+	private static final int MAX_WHEEL_BUCKETS = 4096;
+	private static final int BUCKET_SHIFT = 4;
+	private static final long BUCKET = (MAX_WHEEL_BUCKETS - 1L) << BUCKET_SHIFT;
+	private static final int EXPIRY_SHIFT = BUCKET_SHIFT + Integer.numberOfTrailingZeros(MAX_WHEEL_BUCKETS);
+	private static final long STATE = (1L << EXPIRY_SHIFT) - 1;
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final AtomicInteger size;
+	private final KeyQueue expired = new KeyQueue();
+	private final KeyQueue dirty = new KeyQueue();
+	private final AtomicBoolean checkpointQueued = new AtomicBoolean();
+	private final TimingWheel wheel;
 	private final AtomicBoolean expirationQueued = new AtomicBoolean();
-	private final ExpirationMap<K> expirationMap;
-	private final Function<K, V> load;
-	private final Consumer<Collection<V>> expirationConsumer;
+	private final AtomicLong lastExpiration = new AtomicLong();
+	private final LongUnaryOperator load;
+	private final Function<long[], long[]> bulkLoad;
+	private final Executor loadExecutor;
+	private final Executor flushExecutor;
+	private final @Nullable ExecutorService ownedLoadExecutor;
+	private final @Nullable ExecutorService ownedFlushExecutor;
+	private final ScheduledExecutorService delayExecutor;
+	private final @Nullable ScheduledExecutorService ownedDelayExecutor;
+	private final Consumer<Batch> expirationConsumer;
+	private final Logger logger;
+	private final long retention;
+	private final int maxSize;
+	private final long frequency;
 	private final int maxBatchSize;
 	private final long batchDelay;
 
@@ -45,11 +100,11 @@ public class BatchExpirationLoadingCache<K, V> {
 	 * Constructs a new BatchExpirationLoadingCache using the default max batch size and delay.
 	 *
 	 * @param retention the cache retention duration
-	 * @param load the {@link Function} used to load values into the cache
-	 * @param expirationConsumer the {@link Consumer} accepting batches of expired values
+	 * @param load the {@link LongUnaryOperator} used to load values into the cache
+	 * @param expirationConsumer the {@link Consumer} accepting batches of expired dirty values
 	 */
-	public BatchExpirationLoadingCache(final long retention, @NotNull final Function<K, V> load,
-		@NotNull final Consumer<Collection<V>> expirationConsumer) {
+	public BatchExpirationLoadingCache(final long retention, @NotNull final LongUnaryOperator load,
+			@NotNull final Consumer<Batch> expirationConsumer) {
 		this(retention, load, expirationConsumer, 1024, 5000);
 	}
 
@@ -57,120 +112,411 @@ public class BatchExpirationLoadingCache<K, V> {
 	 * Constructs a new BatchExpirationLoadingCache.
 	 *
 	 * @param retention the cache retention duration
-	 * @param load the {@link Function} used to load values into the cache
-	 * @param expirationConsumer the {@link Consumer} accepting batches of expired values
+	 * @param load the {@link LongUnaryOperator} used to load values into the cache
+	 * @param expirationConsumer the {@link Consumer} accepting batches of expired dirty values
 	 * @param maxBatchSize the maximum batch size to expire simultaneously
 	 * @param batchDelay the delay to await a full batch for expiration
 	 */
-	public BatchExpirationLoadingCache(final long retention, @NotNull final Function<K, V> load,
-			@NotNull final Consumer<Collection<V>> expirationConsumer, int maxBatchSize, long batchDelay) {
-		this(new ExpirationMap<>(retention), load, expirationConsumer, maxBatchSize, batchDelay);
+	public BatchExpirationLoadingCache(final long retention, @NotNull final LongUnaryOperator load,
+			@NotNull final Consumer<Batch> expirationConsumer, int maxBatchSize, long batchDelay) {
+		this(new Builder().setRetention(retention).setCacheMax(-1).setBatchMax(maxBatchSize).setBatchDelay(batchDelay),
+				load, null, expirationConsumer);
 	}
 
 	/**
 	 * Construct a new {@link BatchExpirationLoadingCache}. For builder use.
 	 *
-	 * @param expirationMap the {@link ExpirationMap} backing the cache
+	 * @param builder the {@link Builder} containing settings
 	 * @param load the loading function
-	 * @param expirationConsumer a consumer for expired values
-	 * @param maxBatchSize the maximum batch size to expire simultaneously
-	 * @param batchDelay the delay between batches expiring
+	 * @param bulkLoad the loading function for multiple keys or null to load keys individually
+	 * @param expirationConsumer a consumer for expired dirty values
 	 */
 	private BatchExpirationLoadingCache(
-			@NotNull final ExpirationMap<K> expirationMap,
-			@NotNull final Function<K, V> load,
-			@NotNull final Consumer<Collection<V>> expirationConsumer,
-			int maxBatchSize,
-			long batchDelay) {
-
-		this.expirationMap = expirationMap;
-
-		// Wrap load function to update expiration when used
-		this.load = key -> {
-			V value = load.apply(key);
-			if (value != null) {
-				// Only update expiration when loading yields a result.
-				expirationMap.add(key);
-			}
-			checkExpiration();
-			return value;
-		};
+			@NotNull final Builder builder,
+			@NotNull final LongUnaryOperator load,
+			@Nullable final Function<long[], long[]> bulkLoad,
+			@NotNull final Consumer<Batch> expirationConsumer) {
+		if (builder.batchMax < 1) {
+			throw new IllegalArgumentException("Max batch size cannot be smaller than 1");
+		}
+
+		int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(builder.concurrency, 1 << 16)));
+		this.size = builder.sizeCounter != null ? builder.sizeCounter : new AtomicInteger();
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; ++i) {
+			this.stripes[i] = new Stripe(size);
+		}
+		this.stripeMask = stripeCount - 1;
 
+		this.load = load;
+		this.bulkLoad = bulkLoad != null ? bulkLoad : keys -> {
+			long[] values = new long[keys.length];
+			for (int i = 0; i < keys.length; ++i) {
+				values[i] = load.applyAsLong(keys[i]);
+			}
+			return values;
+		};
 		this.expirationConsumer = expirationConsumer;
-		if (maxBatchSize < 1) {
-			throw new IllegalArgumentException("Max batch size cannot be smaller than 1");
+		this.logger = builder.logger != null ? builder.logger : Logger.getLogger(BatchExpirationLoadingCache.class.getName());
+		this.retention = builder.retention;
+		this.maxSize = builder.cacheMax;
+		this.frequency = builder.frequency;
+		this.maxBatchSize = builder.batchMax;
+		this.batchDelay = builder.batchDelay;
+		this.wheel = new TimingWheel(Math.max(1, frequency), retention);
+
+		if (builder.loadExecutor != null) {
+			this.loadExecutor = builder.loadExecutor;
+			this.ownedLoadExecutor = null;
+		} else {
+			this.ownedLoadExecutor = newLoadExecutor("BatchLoad", 2, 1024, () -> true);
+			this.loadExecutor = ownedLoadExecutor;
+		}
+
+		if (builder.flushExecutor != null) {
+			this.flushExecutor = builder.flushExecutor;
+			this.ownedFlushExecutor = null;
+		} else {
+			this.ownedFlushExecutor = newFlushExecutor("BatchExpiration");
+			this.flushExecutor = ownedFlushExecutor;
+		}
+
+		if (builder.delayExecutor != null) {
+			this.delayExecutor = builder.delayExecutor;
+			this.ownedDelayExecutor = null;
+		} else {
+			this.ownedDelayExecutor = newDelayExecutor("BatchExpirationDelay");
+			this.delayExecutor = ownedDelayExecutor;
 		}
-		this.maxBatchSize = maxBatchSize;
-		this.batchDelay = batchDelay;
 	}
 
 	/**
 	 * Gets a {@link CompletableFuture} which either gets or loads a value for the specified key as necessary.
 	 *
+	 * <p>Only one load runs per key at a time. Concurrent requests for a loading key share the same future.
+	 *
 	 * @param key the key
 	 * @return a {@link CompletableFuture} providing the requested value
 	 */
 	@NotNull
-	public CompletableFuture<V> get(@NotNull K key) {
-		V value = getIfPresent(key);
-		if (value != null) {
+	public CompletableFuture<Long> get(long key) {
+		long value = getIfPresent(key);
+		if (value != ABSENT) {
 			return CompletableFuture.completedFuture(value);
 		}
-		return CompletableFuture.supplyAsync(() -> load.apply(key));
+
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		Loading loading;
+		synchronized (stripe) {
+			// Value may have been inserted or a load started since checking.
+			int slot = stripe.find(key, hash);
+			if (slot >= 0) {
+				return CompletableFuture.completedFuture((long) stripe.values[slot]);
+			}
+			loading = stripe.loading.get(key);
+			if (loading != null) {
+				return loading.future;
+			}
+			loading = new Loading();
+			stripe.loading.put(key, loading);
+		}
+
+		Loading started = loading;
+		try {
+			loadExecutor.execute(() -> {
+				long loaded;
+				try {
+					loaded = load.applyAsLong(key);
+				} catch (RuntimeException e) {
+					fail(key, started, e);
+					return;
+				}
+				complete(key, started, loaded);
+			});
+		} catch (RejectedExecutionException e) {
+			fail(key, started, e);
+		}
+
+		return started.future;
+	}
+
+	/**
+	 * Gets a {@link CompletableFuture} which either gets or loads values for all specified keys as necessary. Missing
+	 * values are loaded together in a single call to the bulk loading function. Keys which are already loading are
+	 * not loaded again.
+	 *
+	 * @param keys the keys
+	 * @return a {@link CompletableFuture} providing the requested values in the same order as the keys
+	 */
+	@NotNull
+	public CompletableFuture<long[]> getAll(@NotNull long[] keys) {
+		long[] values = new long[keys.length];
+		List<CompletableFuture<Void>> waiting = new ArrayList<>();
+		long[] loadKeys = new long[keys.length];
+		Loading[] loadings = new Loading[keys.length];
+		int loadCount = 0;
+
+		for (int i = 0; i < keys.length; ++i) {
+			long key = keys[i];
+			long hash = hash(key);
+			Stripe stripe = getStripe(hash);
+			synchronized (stripe) {
+				int slot = stripe.find(key, hash);
+				if (slot >= 0) {
+					stripe.touch(slot, getExpiry());
+					values[i] = stripe.values[slot];
+					continue;
+				}
+				Loading loading = stripe.loading.get(key);
+				if (loading == null) {
+					loading = new Loading();
+					stripe.loading.put(key, loading);
+					loadKeys[loadCount] = key;
+					loadings[loadCount] = loading;
+					++loadCount;
+				}
+				int index = i;
+				waiting.add(loading.future.thenAccept(value -> values[index] = value));
+			}
+		}
+
+		checkExpiration();
+
+		if (loadCount > 0) {
+			long[] batchKeys = Arrays.copyOf(loadKeys, loadCount);
+			Loading[] batchLoadings = Arrays.copyOf(loadings, loadCount);
+			try {
+				loadExecutor.execute(() -> {
+					long[] loaded;
+					try {
+						loaded = bulkLoad.apply(batchKeys);
+					} catch (RuntimeException e) {
+						for (int i = 0; i < batchKeys.length; ++i) {
+							fail(batchKeys[i], batchLoadings[i], e);
+						}
+						return;
+					}
+					for (int i = 0; i < batchKeys.length; ++i) {
+						complete(batchKeys[i], batchLoadings[i], loaded[i]);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				for (int i = 0; i < batchKeys.length; ++i) {
+					fail(batchKeys[i], batchLoadings[i], e);
+				}
+			}
+		}
+
+		if (waiting.isEmpty()) {
+			return CompletableFuture.completedFuture(values);
+		}
+
+		return CompletableFuture.allOf(waiting.toArray(new CompletableFuture[0])).thenApply(ignored -> values);
 	}
 
 	/**
-	 * Gets a value for the specified key or {@code null} if it is not present in the cache.
+	 * Insert a loaded value and complete its load. Changes made while loading are applied to the loaded value.
 	 *
 	 * @param key the key
-	 * @return the loaded value or {@code null}
+	 * @param loading the in-progress load
+	 * @param loaded the loaded value
 	 */
-	@Nullable
-	public V getIfPresent(@NotNull K key) {
-		V value = internal.get(key);
-		if (value != null) {
-			expirationMap.add(key);
+	private void complete(long key, @NotNull Loading loading, long loaded) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		long result;
+		synchronized (stripe) {
+			stripe.loading.remove(key, loading);
+			int slot = stripe.find(key, hash);
+			if (slot >= 0) {
+				// If the key was inserted while loading, the inserted value wins.
+				long current = stripe.values[slot];
+				result = loading.pending == null ? current : loading.pending.applyAsLong(current);
+				if (result != current) {
+					stripe.values[slot] = Math.toIntExact(result);
+					markDirty(stripe, slot);
+				}
+			} else if (loading.stale && loading.pending == null) {
+				// Invalidated while loading, the loaded value may predate the invalidation.
+				result = loaded;
+			} else {
+				result = loading.pending == null ? loaded : loading.pending.applyAsLong(loaded);
+				long expiry = getExpiry();
+				int inserted = stripe.insert(~slot, key, hash, result, expiry);
+				if (result != loaded) {
+					markDirty(stripe, inserted);
+				}
+				file(stripe, inserted);
+			}
 		}
+
+		loading.future.complete(result);
 		checkExpiration();
-		return value;
 	}
 
 	/**
-	 * Gets a value for the specified key or computes it and adds it to the cache if not present.
+	 * Fail a load. Changes made while loading are inserted as if no value had been loaded.
+	 *
+	 * @param key the key
+	 * @param loading the in-progress load
+	 * @param cause the reason the load failed
+	 */
+	private void fail(long key, @NotNull Loading loading, @NotNull Throwable cause) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			stripe.loading.remove(key, loading);
+			if (loading.pending != null) {
+				int slot = stripe.find(key, hash);
+				if (slot < 0) {
+					int inserted = stripe.insert(~slot, key, hash, loading.unloaded, getExpiry());
+					markDirty(stripe, inserted);
+					file(stripe, inserted);
+				}
+			}
+		}
+
+		loading.future.completeExceptionally(cause);
+	}
+
+	/**
+	 * Gets a value for the specified key or {@link #ABSENT} if it is not present in the cache.
 	 *
 	 * @param key the key
-	 * @return the loaded value or {@code null}
+	 * @return the cached value or {@link #ABSENT}
 	 */
-	public @NotNull V computeIfAbsent(@NotNull K key, Function<K, V> supplier) {
-		V value = getIfPresent(key);
-		if (value != null) {
-			return value;
+	public long getIfPresent(long key) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		long value = ABSENT;
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot >= 0) {
+				stripe.touch(slot, getExpiry());
+				value = stripe.values[slot];
+			}
 		}
-		value = supplier.apply(key);
-		put(key, value);
+		checkExpiration();
 		return value;
 	}
 
 	/**
-	 * Insert a value into the cache.
+	 * Insert a value into the cache. The value is marked for saving if it differs from the current value.
 	 *
 	 * @param key the key associated with the value
 	 * @param value the value to be inserted
+	 * @throws ArithmeticException if the value is outside the range of an int
+	 */
+	public void put(long key, long value) {
+		merge(key, value, (current, next) -> next);
+	}
+
+	/**
+	 * Insert a value into the cache or combine it with the existing value. The value is marked for saving if the
+	 * result differs from the current value.
+	 *
+	 * <p>If the key is loading, the combination is applied to the loaded value once the load completes and the
+	 * provided value is returned.
+	 *
+	 * @param key the key associated with the value
+	 * @param value the value to be inserted if absent or combined with the existing value
+	 * @param remapping the function combining the existing value and the new value
+	 * @return the resulting value
+	 * @throws ArithmeticException if the value or result is outside the range of an int
+	 */
+	public long merge(long key, long value, @NotNull LongBinaryOperator remapping) {
+		long result = mergeInternal(key, value, remapping);
+		checkExpiration();
+		return result;
+	}
+
+	private long mergeInternal(long key, long value, @NotNull LongBinaryOperator remapping) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot < 0) {
+				Loading loading = stripe.loading.get(key);
+				if (loading != null) {
+					// Apply to the loaded value once available rather than discarding either.
+					loading.defer(value, remapping);
+					return value;
+				}
+				int inserted = stripe.insert(~slot, key, hash, value, getExpiry());
+				markDirty(stripe, inserted);
+				file(stripe, inserted);
+				return value;
+			}
+			long current = stripe.values[slot];
+			long result = remapping.applyAsLong(current, value);
+			stripe.touch(slot, getExpiry());
+			if (result != current) {
+				stripe.values[slot] = Math.toIntExact(result);
+				markDirty(stripe, slot);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Insert a loaded value into the cache if no value is present. The value is not marked for saving.
+	 *
+	 * <p>This allows values loaded alongside a requested value to be cached without loading them again.
+	 *
+	 * @param key the key associated with the value
+	 * @param value the loaded value
+	 */
+	public void prime(long key, long value) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot < 0) {
+				file(stripe, stripe.insert(~slot, key, hash, value, getExpiry()));
+			}
+		}
+	}
+
+	/**
+	 * Compute a new value for a key only if it is present in the cache. The value is marked for saving if the result
+	 * differs from the current value.
+	 *
+	 * @param key the key
+	 * @param remapping the function computing the new value
+	 * @return the resulting value or {@link #ABSENT}
 	 */
-	public void put(@NotNull K key, @NotNull V value) {
-		internal.put(key, value);
-		expirationMap.add(key);
+	public long computeIfPresent(long key, @NotNull LongUnaryOperator remapping) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot < 0) {
+				return ABSENT;
+			}
+			long current = stripe.values[slot];
+			long result = remapping.applyAsLong(current);
+			if (result != current) {
+				stripe.values[slot] = Math.toIntExact(result);
+				markDirty(stripe, slot);
+			}
+			return result;
+		}
 	}
 
 	/**
-	 * Remove an existing cached mapping.
+	 * Remove an existing cached mapping. Unsaved changes are discarded.
 	 *
 	 * @param key the key whose mapping is to be removed
 	 */
-	public void remove(@NotNull K key) {
-		if (internal.remove(key) != null) {
-			expirationMap.remove(key);
-			expired.remove(key);
+	public void remove(long key) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot >= 0) {
+				stripe.removeAt(slot);
+			}
 		}
 	}
 
@@ -178,53 +524,426 @@ public class BatchExpirationLoadingCache<K, V> {
 	 * Invalidate all expired keys that are not considered in use.
 	 */
 	private void checkExpiration() {
-		if (!expirationQueued.get()) {
-			expired.addAll(expirationMap.doExpiration());
+		if (lastExpiration.get() >= System.currentTimeMillis() - frequency && expired.isEmpty()) {
+			return;
 		}
 
-		if (expired.isEmpty() || !expirationQueued.compareAndSet(false, true)) {
+		if (!expirationQueued.compareAndSet(false, true)) {
 			return;
 		}
 
-		new Thread(
-				() -> {
-					// If not yet at maximum batch size, wait before
-					if (expired.size() < maxBatchSize) {
-						try {
-							Thread.sleep(batchDelay);
-							expired.addAll(expirationMap.doExpiration());
-						} catch (InterruptedException e) {
-							System.err.println("Encountered exception while attempting to await larger batch:");
-							e.printStackTrace();
+		queueExpiration(true);
+	}
+
+	/**
+	 * Queue a batch expiration on the flush executor. Must only be called by the holder of the expiration flag.
+	 *
+	 * @param awaitBatch whether to wait for a larger batch if the batch is not full
+	 */
+	private void queueExpiration(boolean awaitBatch) {
+		try {
+			flushExecutor.execute(() -> {
+				boolean delayed = false;
+				try {
+					sweep();
+
+					// If not yet at maximum batch size, return later rather than blocking the flush executor.
+					if (awaitBatch && batchDelay > 0 && !expired.isEmpty() && expired.size() < maxBatchSize) {
+						delayed = delayExpiration();
+						if (delayed) {
+							return;
 						}
 					}
 
-					ArrayList<V> expiredValues = new ArrayList<>();
-					Iterator<K> expiredIterator = expired.iterator();
-					while (expiredValues.size() < maxBatchSize && expiredIterator.hasNext()) {
-						K expiredKey = expiredIterator.next();
-						expiredIterator.remove();
-						// Don't remove if still in expiration map - still active.
-						V value = expirationMap.contains(expiredKey) ? internal.get(expiredKey) : internal.remove(expiredKey);
-						if (value != null) {
-							expiredValues.add(value);
+					expireBatch();
+				} finally {
+					if (!delayed) {
+						expirationQueued.set(false);
+					}
+				}
+
+				// Re-run expiration check to queue next batch if necessary
+				if (!expired.isEmpty()) {
+					checkExpiration();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Flush executor is shut down. Remaining values are saved by expireAll.
+			expirationQueued.set(false);
+		}
+	}
+
+	/**
+	 * Queue a batch expiration once the batch delay has passed.
+	 *
+	 * @return true if the expiration was scheduled
+	 */
+	private boolean delayExpiration() {
+		try {
+			delayExecutor.schedule(() -> queueExpiration(false), batchDelay, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// Delay executor is shut down, expire immediately.
+			return false;
+		}
+	}
+
+	/**
+	 * Queue all keys which have expired or which exceed the maximum cache size.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		long last = lastExpiration.get();
+		if (last >= now - frequency || !lastExpiration.compareAndSet(last, now)) {
+			return;
+		}
+
+		long nowTick = wheel.getTick(now);
+		// If the wheel has not turned for a full rotation, every bucket is due once.
+		for (long tick = Math.max(wheel.cursor, nowTick - wheel.mask); tick <= nowTick; ++tick) {
+			for (long key : wheel.drain(tick)) {
+				queueIfExpired(key, tick, now, now);
+			}
+		}
+		// The current bucket may still receive entries expiring before the next tick, so it is revisited.
+		wheel.cursor = nowTick;
+
+		compactWheel();
+
+		if (maxSize < 0) {
+			return;
+		}
+
+		// Evict entries closest to expiration until under maximum size. If the maximum is shared with other caches,
+		// each cache evicts its share of the excess in proportion to its size.
+		int total = size.get();
+		int excess = (int) ((long) (total - maxSize) * getCached() / Math.max(1, total)) - expired.size();
+		for (long tick = nowTick + 1; excess > 0 && tick <= nowTick + wheel.mask; ++tick) {
+			long[] keys = wheel.drain(tick);
+			long bucketEnd = (tick + 1) * wheel.tickLength - 1;
+			int index = 0;
+			for (; index < keys.length && excess > 0; ++index) {
+				if (queueIfExpired(keys[index], tick, bucketEnd, now)) {
+					--excess;
+				}
+			}
+			for (; index < keys.length; ++index) {
+				wheel.add(tick, keys[index]);
+			}
+		}
+	}
+
+	/**
+	 * Discard filings left behind by removed entries once they outnumber cached entries. Stale filings are otherwise
+	 * only discarded when their bucket comes due, so heavy churn could accumulate up to a retention's worth of them.
+	 */
+	private void compactWheel() {
+		if (wheel.size() <= Math.max(MAX_WHEEL_BUCKETS, 2L * getCached())) {
+			return;
+		}
+
+		for (int bucket = 0; bucket <= wheel.mask; ++bucket) {
+			long[] keys = wheel.drain(bucket);
+			// Claim filings before restoring any so that duplicate filings within the bucket are only kept once.
+			int retained = 0;
+			for (long key : keys) {
+				if (claimFiling(key, bucket)) {
+					keys[retained++] = key;
+				}
+			}
+			for (int index = 0; index < retained; ++index) {
+				long key = keys[index];
+				long hash = hash(key);
+				Stripe stripe = getStripe(hash);
+				synchronized (stripe) {
+					int slot = stripe.find(key, hash);
+					if (slot >= 0 && (stripe.meta[slot] & FILED) == 0) {
+						stripe.meta[slot] |= FILED;
+						wheel.add(bucket, key);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Clear the filed state of an entry if it is filed in the specified bucket. The recorded bucket is kept so that the
+	 * filing may be restored.
+	 *
+	 * @param key the key
+	 * @param bucket the index of the bucket
+	 * @return true if the filing belonged to the entry
+	 */
+	private boolean claimFiling(long key, int bucket) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot < 0) {
+				return false;
+			}
+			long meta = stripe.meta[slot];
+			if ((meta & FILED) == 0 || (meta & BUCKET) >>> BUCKET_SHIFT != bucket) {
+				return false;
+			}
+			stripe.meta[slot] = meta & ~FILED;
+			return true;
+		}
+	}
+
+	/**
+	 * Queue a key drained from the wheel for expiration if its entry expires at or before the specified time.
+	 * Otherwise, the entry is refiled according to its current expiration in a later bucket.
+	 *
+	 * <p>Filings that do not match the bucket recorded by the entry were left behind by an entry that was removed and
+	 * are discarded.
+	 *
+	 * @param key the key
+	 * @param tick the tick of the bucket the key was drained from
+	 * @param expireBefore the latest expiration timestamp to queue
+	 * @param now the current time
+	 * @return true if the key was queued
+	 */
+	private boolean queueIfExpired(long key, long tick, long expireBefore, long now) {
+		long hash = hash(key);
+		Stripe stripe = getStripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (slot < 0) {
+				// Removed since filing.
+				return false;
+			}
+			long meta = stripe.meta[slot];
+			if ((meta & FILED) == 0 || (meta & BUCKET) >>> BUCKET_SHIFT != ((int) tick & wheel.mask)) {
+				// Filed by a removed entry, the current entry is filed elsewhere.
+				return false;
+			}
+			meta &= ~(FILED | BUCKET);
+			if ((meta & QUEUED) != 0) {
+				// Already queued, refiled on expiration if still in use.
+				stripe.meta[slot] = meta;
+				return false;
+			}
+			long expiry = meta >>> EXPIRY_SHIFT;
+			if (expiry > expireBefore) {
+				stripe.meta[slot] = meta;
+				file(stripe, slot, tick);
+				return false;
+			}
+			// Entries evicted for size are treated as expired unless used again before removal.
+			stripe.meta[slot] = Math.min(expiry, now) << EXPIRY_SHIFT | meta & (DIRTY | TRACKED) | QUEUED;
+			expired.add(key);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a batch of queued keys from the cache and pass any unsaved values to the expiration consumer.
+	 */
+	private void expireBatch() {
+		Batch batch = new Batch(Math.min(maxBatchSize, Math.max(1, expired.size())));
+		long now = System.currentTimeMillis();
+
+		while (batch.size() < maxBatchSize) {
+			long key;
+			synchronized (expired) {
+				if (expired.isEmpty()) {
+					break;
+				}
+				key = expired.poll();
+			}
+
+			long hash = hash(key);
+			Stripe stripe = getStripe(hash);
+			synchronized (stripe) {
+				int slot = stripe.find(key, hash);
+				if (slot < 0) {
+					continue;
+				}
+				long meta = stripe.meta[slot];
+				if ((meta & DIRTY) != 0) {
+					batch.add(key, stripe.values[slot]);
+				}
+				if (meta >>> EXPIRY_SHIFT > now) {
+					// Don't remove if used since expiration - still active.
+					stripe.meta[slot] = meta & ~(DIRTY | QUEUED);
+					// Entries marked by lazyExpireAll are still filed.
+					file(stripe, slot);
+				} else {
+					stripe.removeAt(slot);
+				}
+			}
+		}
+
+		if (batch.size() > 0) {
+			accept(batch);
+		}
+	}
+
+	/**
+	 * Pass a batch of unsaved values to the expiration consumer. If the consumer fails, the values are marked for saving
+	 * again so that they are retried by the next checkpoint or expiration.
+	 *
+	 * @param batch the batch
+	 * @return true if the batch was accepted
+	 */
+	private boolean accept(@NotNull Batch batch) {
+		try {
+			expirationConsumer.accept(batch);
+			return true;
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Unable to save " + batch.size() + " values, retrying later", e);
+		}
+
+		for (int i = 0; i < batch.size(); ++i) {
+			long key = batch.getKey(i);
+			long hash = hash(key);
+			Stripe stripe = getStripe(hash);
+			synchronized (stripe) {
+				int slot = stripe.find(key, hash);
+				if (slot < 0) {
+					// Removed on expiration, restore the unsaved value.
+					int inserted = stripe.insert(~slot, key, hash, batch.getValue(i), getExpiry());
+					markDirty(stripe, inserted);
+					file(stripe, inserted);
+				} else if ((stripe.meta[slot] & DIRTY) == 0) {
+					// Entries changed since are newer than the batch and are already marked.
+					stripe.values[slot] = Math.toIntExact(batch.getValue(i));
+					markDirty(stripe, slot);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Save all changed values without removing them from the cache. Values are saved in batches by the flush executor.
+	 *
+	 * <p>Only entries changed since they were last saved are visited, so hot entries stay cached and clean entries
+	 * cost nothing.
+	 */
+	public void checkpoint() {
+		if (dirty.isEmpty() || !checkpointQueued.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			flushExecutor.execute(() -> {
+				try {
+					long[] keys = dirty.drain();
+					Batch batch = new Batch(Math.min(maxBatchSize, Math.max(1, keys.length)));
+					for (int index = 0; index < keys.length; ++index) {
+						long key = keys[index];
+						long hash = hash(key);
+						Stripe stripe = getStripe(hash);
+						synchronized (stripe) {
+							int slot = stripe.find(key, hash);
+							if (slot < 0) {
+								// Removed or expired since changing.
+								continue;
+							}
+							long meta = stripe.meta[slot];
+							if ((meta & DIRTY) != 0) {
+								batch.add(key, stripe.values[slot]);
+							}
+							stripe.meta[slot] = meta & ~(DIRTY | TRACKED);
 						}
+						if (batch.size() >= maxBatchSize) {
+							if (!accept(batch)) {
+								// Remaining keys are still marked, keep them queued for the next checkpoint.
+								for (int remaining = index + 1; remaining < keys.length; ++remaining) {
+									dirty.add(keys[remaining]);
+								}
+								return;
+							}
+							batch = new Batch(maxBatchSize);
+						}
+					}
+					if (batch.size() > 0) {
+						accept(batch);
 					}
+				} finally {
+					checkpointQueued.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Flush executor is shut down. Remaining values are saved by expireAll.
+			checkpointQueued.set(false);
+		}
+	}
 
-					expirationConsumer.accept(expiredValues);
-					expirationQueued.set(false);
+	/**
+	 * File an entry in the timing wheel according to its expiration unless it is already filed. Must be called while
+	 * holding the stripe's lock.
+	 *
+	 * @param stripe the stripe containing the entry
+	 * @param slot the slot of the entry
+	 */
+	private void file(@NotNull Stripe stripe, int slot) {
+		file(stripe, slot, Long.MIN_VALUE);
+	}
 
-					// Re-run expiration check to queue next batch if necessary
-					checkExpiration();
-				}, "BatchExpiration"
-		).start();
+	/**
+	 * File an entry in the timing wheel according to its expiration unless it is already filed. Must be called while
+	 * holding the stripe's lock.
+	 *
+	 * @param stripe the stripe containing the entry
+	 * @param slot the slot of the entry
+	 * @param afterTick the tick the entry must be filed after
+	 */
+	private void file(@NotNull Stripe stripe, int slot, long afterTick) {
+		long meta = stripe.meta[slot];
+		if ((meta & FILED) != 0) {
+			return;
+		}
+		long bucket = wheel.file(stripe.keys[slot], meta >>> EXPIRY_SHIFT, afterTick);
+		stripe.meta[slot] = meta & ~BUCKET | bucket << BUCKET_SHIFT | FILED;
+	}
+
+	/**
+	 * Mark an entry for saving. Must be called while holding the stripe's lock.
+	 *
+	 * @param stripe the stripe containing the entry
+	 * @param slot the slot of the entry
+	 */
+	private void markDirty(@NotNull Stripe stripe, int slot) {
+		long meta = stripe.meta[slot];
+		if ((meta & TRACKED) == 0) {
+			dirty.add(stripe.keys[slot]);
+		}
+		stripe.meta[slot] = meta | DIRTY | TRACKED;
+	}
+
+	/**
+	 * Discard all saved values so that they are loaded again when next requested. Unsaved values are kept and saved as
+	 * usual. Loads already in progress complete without caching their possibly outdated values.
+	 */
+	public void invalidateAll() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.retainDirty();
+				for (Loading loading : stripe.loading.values()) {
+					loading.stale = true;
+				}
+			}
+		}
 	}
 
 	/**
 	 * Mark all keys for removal using the internal expiration system.
 	 */
 	public void lazyExpireAll() {
-		expired.addAll(internal.keySet());
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int slot = 0; slot < stripe.meta.length; ++slot) {
+					long meta = stripe.meta[slot];
+					if (meta != 0 && (meta & QUEUED) == 0) {
+						stripe.meta[slot] = meta | QUEUED;
+						expired.add(stripe.keys[slot]);
+					}
+				}
+			}
+		}
 		checkExpiration();
 	}
 
@@ -232,28 +951,49 @@ public class BatchExpirationLoadingCache<K, V> {
 	 * Expire all keys immediately.
 	 */
 	public void expireAll() {
-		expired.clear();
-		if (internal.size() <= maxBatchSize) {
-			expirationConsumer.accept(internal.values());
-			internal.clear();
-		} else {
-			Iterator<V> iterator = internal.values().iterator();
-
-			Collection<Collection<V>> subsets = new ArrayList<>();
-			while (iterator.hasNext()) {
-				ArrayList<V> subset = new ArrayList<>(maxBatchSize);
-				for (int i = 0; i < maxBatchSize && iterator.hasNext(); ++i) {
-					subset.add(iterator.next());
-					iterator.remove();
+		synchronized (expired) {
+			expired.clear();
+		}
+		dirty.clear();
+		// Cleared first so that values restored by a failed save keep their filings.
+		wheel.clear();
+
+		Batch batch = new Batch(maxBatchSize);
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int slot = 0; slot < stripe.meta.length; ++slot) {
+					if ((stripe.meta[slot] & DIRTY) != 0) {
+						batch.add(stripe.keys[slot], stripe.values[slot]);
+					}
 				}
-				subsets.add(subset);
+				stripe.clear();
 			}
-			for (Collection<V> subset : subsets) {
-				expirationConsumer.accept(subset);
+			// Values that fail to save are restored outside the stripe's lock so that clearing does not discard them.
+			if (batch.size() >= maxBatchSize) {
+				accept(batch);
+				batch = new Batch(maxBatchSize);
 			}
 		}
 
-		expirationMap.clear();
+		if (batch.size() > 0) {
+			accept(batch);
+		}
+	}
+
+	/**
+	 * Expire all keys immediately and stop any executors created by the cache. Provided executors are not stopped.
+	 */
+	public void shutdown() {
+		if (ownedDelayExecutor != null) {
+			awaitShutdown(ownedDelayExecutor);
+		}
+		if (ownedFlushExecutor != null) {
+			awaitShutdown(ownedFlushExecutor);
+		}
+		if (ownedLoadExecutor != null) {
+			awaitShutdown(ownedLoadExecutor);
+		}
+		expireAll();
 	}
 
 	/**
@@ -262,7 +1002,13 @@ public class BatchExpirationLoadingCache<K, V> {
 	 * @return the cache size
 	 */
 	public int getCached() {
-		return internal.size();
+		int cached = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				cached += stripe.size;
+			}
+		}
+		return cached;
 	}
 
 	/**
@@ -274,30 +1020,611 @@ public class BatchExpirationLoadingCache<K, V> {
 		return expired.size();
 	}
 
+	/**
+	 * Get the current number of entries awaiting a checkpoint. Entries saved by expiration are counted until the next
+	 * checkpoint.
+	 *
+	 * @return the number of entries awaiting a checkpoint
+	 */
+	public int getDirty() {
+		return dirty.size();
+	}
+
+	/**
+	 * Get the estimated number of bytes used by the cache's tables.
+	 *
+	 * <p>Divide by {@link #getCached()} for the current cost per entry.
+	 *
+	 * @return the estimated memory usage in bytes
+	 */
+	public long getMemoryUsage() {
+		long slots = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				slots += stripe.meta.length;
+			}
+		}
+		// Each stripe holds three arrays, each with a 16 byte header.
+		return slots * BYTES_PER_SLOT + stripes.length * 3L * 16 + wheel.getMemoryUsage()
+				+ (expired.capacity() + dirty.capacity()) * (long) Long.BYTES;
+	}
+
+	/**
+	 * Create an executor for saving expired values. Values are saved by a single thread in the order they expire.
+	 *
+	 * @param name the name of the thread
+	 * @return the executor
+	 */
+	public static @NotNull ExecutorService newFlushExecutor(@NotNull String name) {
+		return Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Create an executor for delaying batch expiration until more values have expired. Delayed expirations are queued
+	 * on the flush executor when due, so the flush executor is never blocked while waiting.
+	 *
+	 * @param name the name of the thread
+	 * @return the executor
+	 */
+	public static @NotNull ScheduledExecutorService newDelayExecutor(@NotNull String name) {
+		return Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Create an executor for loading values. If the queue is full, requesting threads that may wait are blocked until
+	 * there is space, slowing requests to the rate the loaders can sustain. Loads requested by threads that must not
+	 * wait are handed to a separate thread that waits for space instead, so their futures complete later. Loads are
+	 * never run by the requesting thread.
+	 *
+	 * @param name the base name of the threads
+	 * @param threads the maximum number of loading threads
+	 * @param maxQueued the maximum number of queued loads
+	 * @param mayWait whether the requesting thread may wait for space in the queue
+	 * @return the executor
+	 */
+	public static @NotNull ThreadPoolExecutor newLoadExecutor(@NotNull String name, int threads, int maxQueued,
+			@NotNull BooleanSupplier mayWait) {
+		AtomicInteger count = new AtomicInteger();
+		// Hands off loads that cannot wait. The thread stops when idle.
+		ThreadPoolExecutor handoff = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, name + "-handoff");
+					thread.setDaemon(true);
+					return thread;
+				});
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+				runnable -> {
+					Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				(runnable, pool) -> {
+					if (pool.isShutdown()) {
+						throw new RejectedExecutionException("Load executor is shut down");
+					}
+					if (!mayWait.getAsBoolean()) {
+						handoff.execute(() -> awaitQueue(pool, runnable));
+						return;
+					}
+					try {
+						pool.getQueue().put(runnable);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted while waiting to queue load", e);
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Wait for space in an executor's queue and queue a task.
+	 *
+	 * @param pool the executor
+	 * @param runnable the task
+	 */
+	private static void awaitQueue(@NotNull ThreadPoolExecutor pool, @NotNull Runnable runnable) {
+		try {
+			while (!pool.getQueue().offer(runnable, 1, TimeUnit.SECONDS)) {
+				if (pool.isShutdown()) {
+					// Loads are abandoned on shutdown.
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Shut down an executor, allowing queued tasks to complete.
+	 *
+	 * @param executor the executor
+	 */
+	public static void awaitShutdown(@NotNull ExecutorService executor) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long getExpiry() {
+		return System.currentTimeMillis() + retention;
+	}
+
+	private @NotNull Stripe getStripe(long hash) {
+		return stripes[(int) (hash >>> 32) & stripeMask];
+	}
+
+	/**
+	 * Spread a key's bits. Lower bits select a slot, upper bits select a stripe.
+	 *
+	 * @param key the key
+	 * @return the hash
+	 */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		return key ^ key >>> 33;
+	}
+
+	/**
+	 * An open-addressed hash table using linear probing.
+	 *
+	 * <p>A metadata value of 0 denotes an empty slot. Otherwise, the upper bits contain the expiration timestamp and
+	 * the lower bits contain state flags.
+	 */
+	private static final class Stripe {
+
+		private static final int MIN_CAPACITY = 16;
+
+		private long[] keys = new long[MIN_CAPACITY];
+		private int[] values = new int[MIN_CAPACITY];
+		private long[] meta = new long[MIN_CAPACITY];
+		private int mask = MIN_CAPACITY - 1;
+		private int size;
+		private final Map<Long, Loading> loading = new HashMap<>();
+		/** The number of entries in all stripes sharing the maximum size. */
+		private final AtomicInteger counter;
+
+		private Stripe(@NotNull AtomicInteger counter) {
+			this.counter = counter;
+		}
+
+		/**
+		 * Find the slot containing a key.
+		 *
+		 * @param key the key
+		 * @param hash the hash of the key
+		 * @return the slot index, or the bitwise complement of the slot to insert into if the key is absent
+		 */
+		private int find(long key, long hash) {
+			int slot = (int) hash & mask;
+			while (meta[slot] != 0) {
+				if (keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return ~slot;
+		}
+
+		/**
+		 * Insert a clean entry.
+		 *
+		 * @param slot the empty slot found for the key
+		 * @param key the key
+		 * @param hash the hash of the key
+		 * @param value the value
+		 * @param expiry the expiration timestamp
+		 * @return the slot the entry was inserted into
+		 */
+		private int insert(int slot, long key, long hash, long value, long expiry) {
+			int stored = Math.toIntExact(value);
+			if (size + 1 > (meta.length >> 2) * 3) {
+				resize(meta.length << 1);
+				slot = ~find(key, hash);
+			}
+			keys[slot] = key;
+			values[slot] = stored;
+			meta[slot] = expiry << EXPIRY_SHIFT;
+			++size;
+			counter.incrementAndGet();
+			return slot;
+		}
+
+		private void touch(int slot, long expiry) {
+			meta[slot] = expiry << EXPIRY_SHIFT | meta[slot] & STATE;
+		}
+
+		/**
+		 * Remove the entry in a slot, shifting following entries back to fill the gap.
+		 *
+		 * @param slot the slot index
+		 */
+		private void removeAt(int slot) {
+			int gap = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				if (meta[next] == 0) {
+					break;
+				}
+				int ideal = (int) hash(keys[next]) & mask;
+				// Move the entry back if the gap lies between its ideal slot and its current slot.
+				if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+					keys[gap] = keys[next];
+					values[gap] = values[next];
+					meta[gap] = meta[next];
+					gap = next;
+				}
+			}
+			meta[gap] = 0;
+			--size;
+			counter.decrementAndGet();
+
+			if (meta.length > MIN_CAPACITY && size < meta.length >> 3) {
+				resize(meta.length >> 1);
+			}
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			long[] oldMeta = meta;
+
+			keys = new long[capacity];
+			values = new int[capacity];
+			meta = new long[capacity];
+			mask = capacity - 1;
+
+			for (int oldSlot = 0; oldSlot < oldMeta.length; ++oldSlot) {
+				if (oldMeta[oldSlot] == 0) {
+					continue;
+				}
+				int slot = ~find(oldKeys[oldSlot], hash(oldKeys[oldSlot]));
+				keys[slot] = oldKeys[oldSlot];
+				values[slot] = oldValues[oldSlot];
+				meta[slot] = oldMeta[oldSlot];
+			}
+		}
+
+		/**
+		 * Remove all entries not marked for saving.
+		 */
+		private void retainDirty() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			long[] oldMeta = meta;
+
+			int retained = 0;
+			for (long oldEntry : oldMeta) {
+				if ((oldEntry & DIRTY) != 0) {
+					++retained;
+				}
+			}
+			int capacity = MIN_CAPACITY;
+			while (retained > (capacity >> 2) * 3) {
+				capacity <<= 1;
+			}
+
+			keys = new long[capacity];
+			values = new int[capacity];
+			meta = new long[capacity];
+			mask = capacity - 1;
+			counter.addAndGet(retained - size);
+			size = retained;
+
+			for (int oldSlot = 0; oldSlot < oldMeta.length; ++oldSlot) {
+				if ((oldMeta[oldSlot] & DIRTY) == 0) {
+					continue;
+				}
+				int slot = ~find(oldKeys[oldSlot], hash(oldKeys[oldSlot]));
+				keys[slot] = oldKeys[oldSlot];
+				values[slot] = oldValues[oldSlot];
+				meta[slot] = oldMeta[oldSlot];
+			}
+		}
+
+		private void clear() {
+			keys = new long[MIN_CAPACITY];
+			values = new int[MIN_CAPACITY];
+			meta = new long[MIN_CAPACITY];
+			mask = MIN_CAPACITY - 1;
+			counter.addAndGet(-size);
+			size = 0;
+		}
+
+	}
+
+	/**
+	 * An in-progress load of a single key.
+	 */
+	private static final class Loading {
+
+		private final CompletableFuture<Long> future = new CompletableFuture<>();
+		/** Changes made while loading, to be applied to the loaded value. */
+		private @Nullable LongUnaryOperator pending;
+		/** The result of changes made while loading if no value could be loaded. */
+		private long unloaded;
+		/** Whether the cache was invalidated while loading. */
+		private boolean stale;
+
+		private void defer(long value, @NotNull LongBinaryOperator remapping) {
+			LongUnaryOperator change = current -> remapping.applyAsLong(current, value);
+			if (pending == null) {
+				pending = change;
+				unloaded = value;
+			} else {
+				pending = pending.andThen(change);
+				unloaded = remapping.applyAsLong(unloaded, value);
+			}
+		}
+
+	}
+
+	/**
+	 * A growable FIFO queue of primitive keys.
+	 */
+	private static final class KeyQueue {
+
+		private long[] elements = new long[64];
+		private int head;
+		private int size;
+
+		private synchronized void add(long key) {
+			if (size == elements.length) {
+				long[] grown = new long[elements.length << 1];
+				for (int i = 0; i < size; ++i) {
+					grown[i] = elements[(head + i) & (elements.length - 1)];
+				}
+				elements = grown;
+				head = 0;
+			}
+			elements[(head + size) & (elements.length - 1)] = key;
+			++size;
+		}
+
+		private synchronized long poll() {
+			long key = elements[head];
+			head = (head + 1) & (elements.length - 1);
+			--size;
+			return key;
+		}
+
+		private synchronized boolean isEmpty() {
+			return size == 0;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized void clear() {
+			elements = new long[64];
+			head = 0;
+			size = 0;
+		}
+
+		/**
+		 * Remove all keys from the queue.
+		 *
+		 * @return the removed keys in order
+		 */
+		private synchronized @NotNull long[] drain() {
+			long[] drained = new long[size];
+			for (int i = 0; i < size; ++i) {
+				drained[i] = elements[(head + i) & (elements.length - 1)];
+			}
+			clear();
+			return drained;
+		}
+
+		private synchronized int capacity() {
+			return elements.length;
+		}
+
+	}
+
+	/**
+	 * A ring of key buckets, one per expiration tick.
+	 *
+	 * <p>Keys are filed once by expiration tick and are only refiled lazily when their bucket comes due. Keys may remain
+	 * in a bucket after their entry is removed; they are discarded when the bucket is processed, as the entry records
+	 * the bucket it is filed in.
+	 */
+	private static final class TimingWheel {
+
+		private final KeyQueue[] buckets;
+		private final int mask;
+		private final long tickLength;
+		/** The earliest tick that may contain unprocessed keys. */
+		private volatile long cursor;
+
+		private TimingWheel(long tickLength, long horizon) {
+			// Buckets must span the retention duration plus the partially elapsed current tick.
+			long required = Math.min(MAX_WHEEL_BUCKETS, Math.max(2, horizon / tickLength + 2));
+			int size = Integer.highestOneBit((int) required - 1) << 1;
+			this.buckets = new KeyQueue[size];
+			for (int i = 0; i < size; ++i) {
+				this.buckets[i] = new KeyQueue();
+			}
+			this.mask = size - 1;
+			this.tickLength = tickLength;
+			this.cursor = getTick(System.currentTimeMillis());
+		}
+
+		private long getTick(long timestamp) {
+			return timestamp / tickLength;
+		}
+
+		/**
+		 * File a key in the bucket for its expiration. Expirations beyond the wheel's span are filed in the furthest
+		 * bucket to be refiled when it comes due.
+		 *
+		 * <p>Keys refiled while draining a bucket are filed after it so that they are not filed in the bucket being
+		 * drained.
+		 *
+		 * @param key the key
+		 * @param expiry the expiration timestamp
+		 * @param afterTick the tick the key must be filed after
+		 * @return the index of the bucket the key was filed in
+		 */
+		private int file(long key, long expiry, long afterTick) {
+			long current = cursor;
+			long tick = Math.max(current, Math.min(getTick(expiry), current + mask));
+			if (tick <= afterTick) {
+				tick = afterTick + 1;
+			}
+			add(tick, key);
+			return (int) tick & mask;
+		}
+
+		private void add(long tick, long key) {
+			buckets[(int) tick & mask].add(key);
+		}
+
+		private @NotNull long[] drain(long tick) {
+			return buckets[(int) tick & mask].drain();
+		}
+
+		private void clear() {
+			for (KeyQueue bucket : buckets) {
+				bucket.clear();
+			}
+		}
+
+		private long size() {
+			long size = 0;
+			for (KeyQueue bucket : buckets) {
+				size += bucket.size();
+			}
+			return size;
+		}
+
+		private long getMemoryUsage() {
+			long bytes = 0;
+			for (KeyQueue bucket : buckets) {
+				bytes += bucket.capacity() * (long) Long.BYTES + 16;
+			}
+			return bytes;
+		}
+
+	}
+
+	/**
+	 * A batch of keys and their unsaved values.
+	 */
+	public static final class Batch {
+
+		private long[] keys;
+		private long[] values;
+		private int size;
+
+		private Batch(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new long[capacity];
+		}
+
+		private void add(long key, long value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size << 1);
+				values = Arrays.copyOf(values, size << 1);
+			}
+			keys[size] = key;
+			values[size] = value;
+			++size;
+		}
+
+		/**
+		 * Get the number of entries in the batch.
+		 *
+		 * @return the batch size
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Get the key of an entry in the batch.
+		 *
+		 * @param index the index of the entry
+		 * @return the key
+		 */
+		public long getKey(int index) {
+			return keys[index];
+		}
+
+		/**
+		 * Get the value of an entry in the batch.
+		 *
+		 * @param index the index of the entry
+		 * @return the value
+		 */
+		public long getValue(int index) {
+			return values[index];
+		}
+
+	}
+
 	/**
 	 * A builder for a {@link BatchExpirationLoadingCache}.
-	 * @param <K> the type of key
-	 * @param <V> the type of value
 	 */
-	public static class Builder<K, V> {
+	public static class Builder {
 		private long retention = 600_000L;
 		private int cacheMax = 640_000;
 		private long frequency = 10_000L;
 		private int batchMax = 1_024;
 		private long batchDelay = 500L;
+		private int concurrency = 16;
+		private AtomicInteger sizeCounter;
+		private Logger logger;
+		private Executor loadExecutor;
+		private Executor flushExecutor;
+		private ScheduledExecutorService delayExecutor;
 
 		/**
 		 * Construct a {@link BatchExpirationLoadingCache}.
 		 *
 		 * @param load the loading function
-		 * @param expirationConsumer the consumer of expired values
+		 * @param expirationConsumer the consumer of expired dirty values
 		 * @return the constructed cache
 		 */
-		public BatchExpirationLoadingCache<K, V> build(
-				@NotNull final Function<K, V> load,
-				@NotNull final Consumer<Collection<V>> expirationConsumer) {
-			ExpirationMap<K> map = new ExpirationMap<>(retention, cacheMax, frequency);
-			return new BatchExpirationLoadingCache<>(map, load, expirationConsumer, batchMax, batchDelay);
+		public BatchExpirationLoadingCache build(
+				@NotNull final LongUnaryOperator load,
+				@NotNull final Consumer<Batch> expirationConsumer) {
+			return new BatchExpirationLoadingCache(this, load, null, expirationConsumer);
+		}
+
+		/**
+		 * Construct a {@link BatchExpirationLoadingCache} able to load multiple values at once.
+		 *
+		 * @param load the loading function
+		 * @param bulkLoad the loading function for multiple keys, returning values in the same order as the keys
+		 * @param expirationConsumer the consumer of expired dirty values
+		 * @return the constructed cache
+		 */
+		public BatchExpirationLoadingCache build(
+				@NotNull final LongUnaryOperator load,
+				@NotNull final Function<long[], long[]> bulkLoad,
+				@NotNull final Consumer<Batch> expirationConsumer) {
+			return new BatchExpirationLoadingCache(this, load, bulkLoad, expirationConsumer);
 		}
 
 		/**
@@ -308,7 +1635,7 @@ public class BatchExpirationLoadingCache<K, V> {
 		 * @param retention the retention duration
 		 * @return the builder
 		 */
-		public Builder<K, V> setRetention(long retention) {
+		public Builder setRetention(long retention) {
 			this.retention = retention;
 			return this;
 		}
@@ -321,11 +1648,26 @@ public class BatchExpirationLoadingCache<K, V> {
 		 * @param cacheMax the maximum cache size
 		 * @return the builder
 		 */
-		public Builder<K, V> setCacheMax(int cacheMax) {
+		public Builder setCacheMax(int cacheMax) {
 			this.cacheMax = cacheMax;
 			return this;
 		}
 
+		/**
+		 * Set a counter of cached entries shared with other caches. The maximum size then limits the total number of
+		 * entries in all caches sharing the counter rather than the entries in each cache. Caches sharing a counter
+		 * should share a maximum size.
+		 *
+		 * <p>Defaults to a counter owned by the cache.
+		 *
+		 * @param sizeCounter the shared counter
+		 * @return the builder
+		 */
+		public Builder setSizeCounter(@Nullable AtomicInteger sizeCounter) {
+			this.sizeCounter = sizeCounter;
+			return this;
+		}
+
 		/**
 		 * Set the duration between cache expiration checks in milliseconds.
 		 *
@@ -334,7 +1676,7 @@ public class BatchExpirationLoadingCache<K, V> {
 		 * @param frequency the maximum frequency of expiration checks
 		 * @return the builder
 		 */
-		public Builder<K, V> setFrequency(long frequency) {
+		public Builder setFrequency(long frequency) {
 			this.frequency = frequency;
 			return this;
 		}
@@ -347,7 +1689,7 @@ public class BatchExpirationLoadingCache<K, V> {
 		 * @param batchMax the maximum batch size
 		 * @return the builder
 		 */
-		public Builder<K, V> setBatchMax(int batchMax) {
+		public Builder setBatchMax(int batchMax) {
 			this.batchMax = batchMax;
 			return this;
 		}
@@ -358,10 +1700,78 @@ public class BatchExpirationLoadingCache<K, V> {
 		 * @param batchDelay the delay between batches
 		 * @return the builder
 		 */
-		public Builder<K, V> setBatchDelay(long batchDelay) {
+		public Builder setBatchDelay(long batchDelay) {
 			this.batchDelay = batchDelay;
 			return this;
 		}
+
+		/**
+		 * Set the number of independently locked stripes. Rounded down to a power of two.
+		 *
+		 * <p>Defaults to 16.
+		 *
+		 * @param concurrency the number of stripes
+		 * @return the builder
+		 */
+		public Builder setConcurrency(int concurrency) {
+			this.concurrency = concurrency;
+			return this;
+		}
+
+		/**
+		 * Set the {@link Logger} used to report values that could not be saved.
+		 *
+		 * <p>Defaults to a logger named after the cache class.
+		 *
+		 * @param logger the logger
+		 * @return the builder
+		 */
+		public Builder setLogger(@Nullable Logger logger) {
+			this.logger = logger;
+			return this;
+		}
+
+		/**
+		 * Set the {@link Executor} used to load values.
+		 *
+		 * <p>Defaults to a pool of 2 threads with up to 1024 queued loads owned by the cache.
+		 *
+		 * @param loadExecutor the executor
+		 * @return the builder
+		 * @see #newLoadExecutor(String, int, int, BooleanSupplier)
+		 */
+		public Builder setLoadExecutor(@Nullable Executor loadExecutor) {
+			this.loadExecutor = loadExecutor;
+			return this;
+		}
+
+		/**
+		 * Set the {@link Executor} used to save expired values.
+		 *
+		 * <p>Defaults to a single thread owned by the cache.
+		 *
+		 * @param flushExecutor the executor
+		 * @return the builder
+		 * @see #newFlushExecutor(String)
+		 */
+		public Builder setFlushExecutor(@Nullable Executor flushExecutor) {
+			this.flushExecutor = flushExecutor;
+			return this;
+		}
+
+		/**
+		 * Set the {@link ScheduledExecutorService} used to wait for larger batches before saving expired values.
+		 *
+		 * <p>Defaults to a single thread owned by the cache.
+		 *
+		 * @param delayExecutor the executor
+		 * @return the builder
+		 * @see #newDelayExecutor(String)
+		 */
+		public Builder setDelayExecutor(@Nullable ScheduledExecutorService delayExecutor) {
+			this.delayExecutor = delayExecutor;
+			return this;
+		}
 	}
 
 }
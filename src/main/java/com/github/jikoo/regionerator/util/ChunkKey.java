@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.jetbrains.annotations.Contract;
+
+/**
+ * Utility for packing chunk coordinates into a single primitive key.
+ *
+ * <p>The chunk X coordinate occupies the upper 32 bits and the chunk Z coordinate the lower 32 bits.
+ */
+public final class ChunkKey {
+
+	/** The number of chunks contained by a region. */
+	public static final int CHUNKS_PER_REGION = 1024;
+	/** The number of longs in a bitmap of the chunks of a region, ordered by {@link #getRegionIndex(long)}. */
+	public static final int REGION_BITMAP_LONGS = CHUNKS_PER_REGION / Long.SIZE;
+
+	/**
+	 * Packs chunk coordinates into a single key.
+	 *
+	 * @param chunkX the chunk X coordinate
+	 * @param chunkZ the chunk Z coordinate
+	 * @return the packed key
+	 */
+	@Contract(pure = true)
+	public static long of(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Gets the chunk X coordinate from a packed key.
+	 *
+	 * @param key the packed key
+	 * @return the chunk X coordinate
+	 */
+	@Contract(pure = true)
+	public static int getX(long key) {
+		return (int) (key >> 32);
+	}
+
+	/**
+	 * Gets the chunk Z coordinate from a packed key.
+	 *
+	 * @param key the packed key
+	 * @return the chunk Z coordinate
+	 */
+	@Contract(pure = true)
+	public static int getZ(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Gets the index of a chunk within its region. Indices are ordered by Z, then X, matching region file headers.
+	 *
+	 * @param key the packed key
+	 * @return the index of the chunk within its region
+	 */
+	@Contract(pure = true)
+	public static int getRegionIndex(long key) {
+		return (getZ(key) & 31) << 5 | getX(key) & 31;
+	}
+
+	/**
+	 * Gets the packed key of a chunk from its region's coordinates and its index within the region.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @param index the index of the chunk within the region
+	 * @return the packed key
+	 * @see #getRegionIndex(long)
+	 */
+	@Contract(pure = true)
+	public static long ofRegionIndex(int regionX, int regionZ, int index) {
+		return of(regionX << 5 | index & 31, regionZ << 5 | index >> 5 & 31);
+	}
+
+	/**
+	 * Converts a packed key to a Morton code, interleaving the bits of the chunk coordinates. Coordinates and codes
+	 * are offset so that signed codes sort consistently across the sign boundary.
+	 *
+	 * <p>Chunks sharing a region share all but the lowest 10 bits of their codes, so a region occupies the contiguous
+	 * range {@link #getMortonRegionStart(int, int)} to {@code start + CHUNKS_PER_REGION - 1}.
+	 *
+	 * @param key the packed key
+	 * @return the Morton code
+	 */
+	@Contract(pure = true)
+	public static long toMorton(long key) {
+		return (spread(getX(key) ^ Integer.MIN_VALUE) | spread(getZ(key) ^ Integer.MIN_VALUE) << 1) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Converts a Morton code to a packed key.
+	 *
+	 * @param morton the Morton code
+	 * @return the packed key
+	 * @see #toMorton(long)
+	 */
+	@Contract(pure = true)
+	public static long fromMorton(long morton) {
+		morton ^= Long.MIN_VALUE;
+		return of(compact(morton) ^ Integer.MIN_VALUE, compact(morton >>> 1) ^ Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Gets the lowest Morton code of any chunk in a region.
+	 *
+	 * @param regionX the region X coordinate
+	 * @param regionZ the region Z coordinate
+	 * @return the lowest Morton code in the region
+	 * @see #toMorton(long)
+	 */
+	@Contract(pure = true)
+	public static long getMortonRegionStart(int regionX, int regionZ) {
+		return toMorton(of(regionX << 5, regionZ << 5));
+	}
+
+	private static long spread(int value) {
+		long bits = value & 0xFFFFFFFFL;
+		bits = (bits | bits << 16) & 0x0000FFFF0000FFFFL;
+		bits = (bits | bits << 8) & 0x00FF00FF00FF00FFL;
+		bits = (bits | bits << 4) & 0x0F0F0F0F0F0F0F0FL;
+		bits = (bits | bits << 2) & 0x3333333333333333L;
+		return (bits | bits << 1) & 0x5555555555555555L;
+	}
+
+	private static int compact(long bits) {
+		bits &= 0x5555555555555555L;
+		bits = (bits | bits >>> 1) & 0x3333333333333333L;
+		bits = (bits | bits >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+		bits = (bits | bits >>> 4) & 0x00FF00FF00FF00FFL;
+		bits = (bits | bits >>> 8) & 0x0000FFFF0000FFFFL;
+		return (int) (bits | bits >>> 16);
+	}
+
+	private ChunkKey() {}
+
+}
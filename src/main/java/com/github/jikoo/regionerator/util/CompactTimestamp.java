@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.jetbrains.annotations.Contract;
+
+/**
+ * Utility for storing flags as ints.
+ *
+ * <p>Timestamps are stored as the number of minutes since {@link #EPOCH}, rounded up so that a chunk is never
+ * considered unvisited early. Flag constants are stored as reserved codes at either end of the range. Codes sort in
+ * the same order as the flags they represent, so the later of two flags is always the higher code.
+ */
+public final class CompactTimestamp {
+
+	/** The time codes are counted from, 2015-01-01T00:00:00Z. */
+	public static final long EPOCH = 1420070400000L;
+	/** Milliseconds per code. */
+	public static final long RESOLUTION = 60_000L;
+
+	/** Code for {@link Config#FLAG_DEFAULT}. */
+	public static final int DEFAULT = Integer.MIN_VALUE;
+	/** Code for {@link Config#FLAG_OH_NO}. */
+	public static final int OH_NO = Integer.MAX_VALUE - 2;
+	/** Code for {@link Config#FLAG_ETERNAL}. */
+	public static final int ETERNAL = Integer.MAX_VALUE - 1;
+	/** Code for a freshly generated chunk, {@link Long#MAX_VALUE}. */
+	public static final int GENERATED = Integer.MAX_VALUE;
+
+	private static final int MIN_TIME = DEFAULT + 1;
+	private static final int MAX_TIME = OH_NO - 1;
+	private static final long MIN_TIMESTAMP = EPOCH + MIN_TIME * RESOLUTION;
+	private static final long MAX_TIMESTAMP = EPOCH + MAX_TIME * RESOLUTION;
+
+	private CompactTimestamp() {}
+
+	/**
+	 * Encodes a flag. Timestamps outside of the representable range, roughly 4000 years either side of the epoch, are
+	 * clamped.
+	 *
+	 * @param flag the flag
+	 * @return the code
+	 */
+	@Contract(pure = true)
+	public static int encode(long flag) {
+		if (flag == Config.FLAG_DEFAULT) {
+			return DEFAULT;
+		}
+		if (flag == Long.MAX_VALUE) {
+			return GENERATED;
+		}
+		if (flag == Config.FLAG_ETERNAL) {
+			return ETERNAL;
+		}
+		if (flag == Config.FLAG_OH_NO) {
+			return OH_NO;
+		}
+		if (flag <= MIN_TIMESTAMP) {
+			return MIN_TIME;
+		}
+		if (flag >= MAX_TIMESTAMP) {
+			return MAX_TIME;
+		}
+		return (int) -Math.floorDiv(EPOCH - flag, RESOLUTION);
+	}
+
+	/**
+	 * Decodes a flag.
+	 *
+	 * @param code the code
+	 * @return the flag
+	 */
+	@Contract(pure = true)
+	public static long decode(int code) {
+		switch (code) {
+			case DEFAULT:
+				return Config.FLAG_DEFAULT;
+			case GENERATED:
+				return Long.MAX_VALUE;
+			case ETERNAL:
+				return Config.FLAG_ETERNAL;
+			case OH_NO:
+				return Config.FLAG_OH_NO;
+			default:
+				return EPOCH + code * RESOLUTION;
+		}
+	}
+
+}
@@ -43,7 +43,7 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 
 			// If chunk is visited, don't waste time processing hooks.
 			if (!isFresh && now <= lastVisit) {
-				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is visited until %s", flagData.getChunkId(), lastVisit));
+				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is visited until %s", getChunkId(chunkInfo), lastVisit));
 
 				// Handle visit status magic values.
 				if (lastVisit == Config.FLAG_ETERNAL) {
@@ -57,7 +57,7 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 
 			// If chunk is recently modified, prioritize that over protections for the sake of speed/calculation load.
 			if (!isFresh && now - plugin.config().getFlagDuration(bukkitWorld) <= chunkInfo.getLastModified()) {
-				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is modified until %s", flagData.getChunkId(), lastVisit));
+				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is modified until %s", getChunkId(chunkInfo), lastVisit));
 				return VisitStatus.VISITED;
 			}
 
@@ -77,11 +77,22 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 				// Otherwise query the hook immediately.
 				if (hook.isChunkProtected(world.getWorld(), chunkX, chunkZ)) {
 					plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s contains protections by %s",
-							flagData.getChunkId(), hook.getProtectionName()));
+							getChunkId(chunkInfo), hook.getProtectionName()));
 					return VisitStatus.PROTECTED;
 				}
 			}
 
+			// If non-async-capable hooks were already queried in a batch, use the result.
+			if (syncHooks != null && !syncHooks.isEmpty()) {
+				Boolean prefetched = plugin.getSyncHookBatcher().getProtection(world.getWorld(), chunkX, chunkZ);
+				if (prefetched != null) {
+					if (prefetched) {
+						return VisitStatus.PROTECTED;
+					}
+					syncHooks.clear();
+				}
+			}
+
 			// If non-async-capable hooks are enabled, attempt to return to the main thread to query.
 			if (syncHooks != null && !syncHooks.isEmpty()) {
 
@@ -96,7 +107,7 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 						for (Hook hook : syncHooks) {
 							if (hook.isChunkProtected(world.getWorld(), chunkX, chunkZ)) {
 								plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s contains protections by %s",
-										flagData.getChunkId(), hook.getProtectionName()));
+										getChunkId(chunkInfo), hook.getProtectionName()));
 								return VisitStatus.PROTECTED;
 							}
 						}
@@ -113,7 +124,7 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 
 			// If chunk is fresh and nothing else overwrote status, fall through to generated status.
 			if (isFresh) {
-				plugin.debug(DebugLevel.HIGH, () -> "Chunk " + flagData.getChunkId() + " has not been visited since it was generated.");
+				plugin.debug(DebugLevel.HIGH, () -> "Chunk " + getChunkId(chunkInfo) + " has not been visited since it was generated.");
 				return VisitStatus.GENERATED;
 			}
 
@@ -121,6 +132,16 @@ public class VisitStatusCache extends SupplierCache<VisitStatus> {
 		}, calcCacheDuration(plugin), TimeUnit.MINUTES);
 	}
 
+	/**
+	 * Gets a readable identifier for a chunk for use in debug messages.
+	 *
+	 * @param chunkInfo the chunk
+	 * @return the identifier
+	 */
+	private static String getChunkId(ChunkInfo chunkInfo) {
+		return chunkInfo.getWorld().getName() + '_' + chunkInfo.getChunkX() + '_' + chunkInfo.getChunkZ();
+	}
+
 	/**
 	 * Calculates the duration to cache VisitStatus values to prevent excess load.
 	 *
@@ -11,12 +11,15 @@
 package com.github.jikoo.regionerator.util.yaml;
 
 import com.github.jikoo.regionerator.DebugLevel;
+import com.github.jikoo.regionerator.database.StorageMode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -28,6 +31,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
 
 public class Config extends ConfigYamlData {
 
@@ -38,18 +42,36 @@ public class Config extends ConfigYamlData {
 	/** Constant representing a failure to load data. */
 	public static final long FLAG_OH_NO = Long.MAX_VALUE - 2;
 
+	private static final Collection<String> SQLITE_SYNCHRONOUS = ImmutableList.of("OFF", "NORMAL", "FULL", "EXTRA");
+
 	private final Object lock = new Object();
 	private DebugLevel debugLevel;
 	private Map<String, Long> worlds;
 	private final AtomicLong ticksPerFlag = new AtomicLong(),
 			millisBetweenCycles = new AtomicLong(), deletionRecovery = new AtomicLong();
 	private final AtomicInteger flaggingRadius = new AtomicInteger(), deletionChunkCount = new AtomicInteger();
+	private final AtomicInteger deletionThreads = new AtomicInteger(), deletionMaxRegions = new AtomicInteger(),
+			deletionIoPerSecond = new AtomicInteger();
+	private final AtomicInteger deletionReadThreads = new AtomicInteger(), deletionFlagThreads = new AtomicInteger(),
+			deletionHookThreads = new AtomicInteger(), deletionQueueSize = new AtomicInteger(),
+			hookMillisPerTick = new AtomicInteger();
 	private final AtomicBoolean rememberCycleDelay = new AtomicBoolean(), deleteFreshChunks = new AtomicBoolean();
 	private long cacheExpirationFrequency;
 	private long cacheRetention;
 	private int cacheBatchMax;
 	private long cacheBatchDelay;
 	private int cacheMaxSize;
+	private final AtomicInteger cacheLoadThreads = new AtomicInteger(), cacheMaxQueuedLoads = new AtomicInteger();
+	private final AtomicLong cacheCheckpointInterval = new AtomicLong();
+	private StorageMode storageMode;
+	private final AtomicInteger databaseReadConnections = new AtomicInteger(), databaseCacheSize = new AtomicInteger();
+	private final AtomicLong databaseMmapSize = new AtomicLong(), databaseMaintenanceInterval = new AtomicLong();
+	private final AtomicBoolean pruneDisabledWorlds = new AtomicBoolean(), compactTimestamps = new AtomicBoolean(),
+			confirmEmptyStorage = new AtomicBoolean();
+	private String databaseSynchronous;
+	private final AtomicBoolean deletionAdaptive = new AtomicBoolean();
+	private final AtomicInteger deletionTargetTickMillis = new AtomicInteger(), deletionMaxQueuedHookChunks = new AtomicInteger();
+	private double deletionMinRate, deletionMaxRate;
 
 	public Config(Plugin plugin) {
 		super(plugin);
@@ -111,12 +133,51 @@ public class Config extends ConfigYamlData {
 		deletionChunkCount.set(Math.max(1, getInt("deletion.expensive-checks-between-recovery")));
 		millisBetweenCycles.set(TimeUnit.HOURS.toMillis(Math.max(0, getInt("deletion.hours-between-cycles"))));
 		rememberCycleDelay.set(getBoolean("deletion.remember-next-cycle-time"));
+		deletionThreads.set(Math.max(1, getInt("deletion.budget.threads")));
+		deletionMaxRegions.set(Math.max(1, getInt("deletion.budget.max-concurrent-regions")));
+		deletionIoPerSecond.set(Math.max(0, getInt("deletion.budget.io-per-second")));
+		deletionReadThreads.set(Math.max(1, getInt("deletion.pipeline.read-threads")));
+		deletionFlagThreads.set(Math.max(1, getInt("deletion.pipeline.flag-threads")));
+		deletionHookThreads.set(Math.max(1, getInt("deletion.pipeline.hook-threads")));
+		deletionQueueSize.set(Math.max(1, getInt("deletion.pipeline.queue-size")));
+		hookMillisPerTick.set(Math.max(1, getInt("deletion.pipeline.hook-millis-per-tick")));
+		deletionAdaptive.set(getBoolean("deletion.throttle.adaptive"));
+		deletionTargetTickMillis.set(Math.max(50, getInt("deletion.throttle.target-tick-millis")));
+		deletionMaxQueuedHookChunks.set(Math.max(1, getInt("deletion.throttle.max-queued-hook-chunks")));
+		double minRate = Math.max(0.01, getDouble("deletion.throttle.min-regions-per-second"));
+		double maxRate = Math.max(minRate, getDouble("deletion.throttle.max-regions-per-second"));
+		synchronized (lock) {
+			deletionMinRate = minRate;
+			deletionMaxRate = maxRate;
+		}
 
 		cacheExpirationFrequency = TimeUnit.MILLISECONDS.convert(20, TimeUnit.SECONDS);
 		cacheRetention = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
 		cacheBatchMax = 1024;
 		cacheBatchDelay = 500;
 		cacheMaxSize = 80000;
+		cacheLoadThreads.set(Math.max(1, getInt("cache.load-threads")));
+		cacheMaxQueuedLoads.set(Math.max(1, getInt("cache.max-queued-loads")));
+		cacheCheckpointInterval.set(TimeUnit.SECONDS.toMillis(Math.max(1, getInt("cache.checkpoint-interval"))));
+
+		String storage = getString("database.storage-mode");
+		storageMode = StorageMode.of(storage);
+		if (storageMode == null) {
+			plugin.getLogger().severe(String.format("Invalid database.storage-mode %s! Valid storage modes are %s.",
+					storage, Arrays.toString(StorageMode.values())));
+		}
+		confirmEmptyStorage.set(getBoolean("database.confirm-empty-storage"));
+		databaseReadConnections.set(Math.max(1, getInt("database.read-connections")));
+		databaseCacheSize.set(getInt("database.pragma.cache-size"));
+		databaseMmapSize.set(Math.max(0, getLong("database.pragma.mmap-size")));
+		databaseMaintenanceInterval.set(TimeUnit.HOURS.toMillis(Math.max(0, getInt("database.maintenance.hours-between-runs"))));
+		pruneDisabledWorlds.set(getBoolean("database.maintenance.prune-disabled-worlds"));
+		compactTimestamps.set(getBoolean("database.compact-timestamps"));
+		String synchronous = getString("database.pragma.synchronous");
+		synchronous = synchronous == null ? "" : synchronous.toUpperCase(Locale.ROOT);
+		synchronized (lock) {
+			databaseSynchronous = SQLITE_SYNCHRONOUS.contains(synchronous) ? synchronous : "NORMAL";
+		}
 
 	}
 
@@ -147,6 +208,62 @@ public class Config extends ConfigYamlData {
 		return rememberCycleDelay.get();
 	}
 
+	public int getDeletionThreads() {
+		return deletionThreads.get();
+	}
+
+	public int getDeletionMaxRegions() {
+		return deletionMaxRegions.get();
+	}
+
+	public int getDeletionIoPerSecond() {
+		return deletionIoPerSecond.get();
+	}
+
+	public int getDeletionReadThreads() {
+		return deletionReadThreads.get();
+	}
+
+	public int getDeletionFlagThreads() {
+		return deletionFlagThreads.get();
+	}
+
+	public int getDeletionHookThreads() {
+		return deletionHookThreads.get();
+	}
+
+	public int getDeletionQueueSize() {
+		return deletionQueueSize.get();
+	}
+
+	public int getHookMillisPerTick() {
+		return hookMillisPerTick.get();
+	}
+
+	public boolean isDeletionAdaptive() {
+		return deletionAdaptive.get();
+	}
+
+	public double getDeletionMinRate() {
+		synchronized (lock) {
+			return deletionMinRate;
+		}
+	}
+
+	public double getDeletionMaxRate() {
+		synchronized (lock) {
+			return deletionMaxRate;
+		}
+	}
+
+	public int getDeletionTargetTickMillis() {
+		return deletionTargetTickMillis.get();
+	}
+
+	public int getDeletionMaxQueuedHookChunks() {
+		return deletionMaxQueuedHookChunks.get();
+	}
+
 	@Deprecated
 	public boolean isDeleteFreshChunks() {
 		return deleteFreshChunks.get() && getFlagDuration() > 0;
@@ -246,4 +363,59 @@ public class Config extends ConfigYamlData {
 		return cacheMaxSize;
 	}
 
+	public int getCacheLoadThreads() {
+		return cacheLoadThreads.get();
+	}
+
+	public int getCacheMaxQueuedLoads() {
+		return cacheMaxQueuedLoads.get();
+	}
+
+	public long getCacheCheckpointInterval() {
+		return cacheCheckpointInterval.get();
+	}
+
+	/**
+	 * Gets the configured storage mode.
+	 *
+	 * @return the storage mode, or null if the configured value is invalid
+	 */
+	public @Nullable StorageMode getStorageMode() {
+		return storageMode;
+	}
+
+	public boolean isConfirmEmptyStorage() {
+		return confirmEmptyStorage.get();
+	}
+
+	public int getDatabaseReadConnections() {
+		return databaseReadConnections.get();
+	}
+
+	public String getDatabaseSynchronous() {
+		synchronized (lock) {
+			return databaseSynchronous;
+		}
+	}
+
+	public int getDatabaseCacheSize() {
+		return databaseCacheSize.get();
+	}
+
+	public long getDatabaseMmapSize() {
+		return databaseMmapSize.get();
+	}
+
+	public long getDatabaseMaintenanceInterval() {
+		return databaseMaintenanceInterval.get();
+	}
+
+	public boolean isPruneDisabledWorlds() {
+		return pruneDisabledWorlds.get();
+	}
+
+	public boolean isCompactTimestamps() {
+		return compactTimestamps.get();
+	}
+
 }
@@ -11,10 +11,12 @@
 package com.github.jikoo.regionerator.util.yaml;
 
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.database.StorageMode;
 import java.io.File;
 import java.util.Collection;
 import org.bukkit.configuration.ConfigurationSection;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class MiscData extends FileYamlData {
 
@@ -35,14 +37,16 @@ public class MiscData extends FileYamlData {
 		if (plugin == null || plugin.config() == null) {
 			return;
 		}
-		ConfigurationSection worlds = raw().getConfigurationSection("next-cycle");
-		if (worlds == null) {
-			return;
-		}
 		Collection<String> enabledWorlds = plugin.config().enabledWorlds();
-		for (String worldName : worlds.getKeys(false)) {
-			if (!enabledWorlds.contains(worldName) && enabledWorlds.stream().noneMatch(worldName::equalsIgnoreCase)) {
-				set("next-cycle." + worldName, null);
+		for (String section : new String[] { "next-cycle", "cycle-progress" }) {
+			ConfigurationSection worlds = raw().getConfigurationSection(section);
+			if (worlds == null) {
+				continue;
+			}
+			for (String worldName : worlds.getKeys(false)) {
+				if (!enabledWorlds.contains(worldName) && enabledWorlds.stream().noneMatch(worldName::equalsIgnoreCase)) {
+					set(section + '.' + worldName, null);
+				}
 			}
 		}
 	}
@@ -60,4 +64,94 @@ public class MiscData extends FileYamlData {
 		return nextCycle;
 	}
 
+	/**
+	 * Records that flags were copied to a storage mode. Storage that flags were copied to is opened even if empty.
+	 *
+	 * @param storageMode the storage mode
+	 */
+	public void setMigratedStorage(@NotNull StorageMode storageMode) {
+		set("migrated-storage", storageMode.name());
+	}
+
+	/**
+	 * Gets the storage mode flags were last copied to.
+	 *
+	 * @return the storage mode, or null if flags have not been copied
+	 */
+	public @Nullable StorageMode getMigratedStorage() {
+		return StorageMode.of(getString("migrated-storage"));
+	}
+
+	/**
+	 * Sets the progress of an unfinished deletion cycle.
+	 *
+	 * @param worldName the name of the world
+	 * @param progress the progress, or null if no cycle is unfinished
+	 */
+	public void setCycleProgress(@NotNull String worldName, @Nullable CycleProgress progress) {
+		String path = "cycle-progress." + worldName;
+		if (progress == null) {
+			set(path, null);
+			return;
+		}
+		set(path + ".region-x", progress.getRegionX());
+		set(path + ".region-z", progress.getRegionZ());
+		set(path + ".checked", progress.getChecked());
+		set(path + ".regions-deleted", progress.getRegionsDeleted());
+		set(path + ".chunks-deleted", progress.getChunksDeleted());
+	}
+
+	/**
+	 * Gets the progress of an unfinished deletion cycle.
+	 *
+	 * @param worldName the name of the world
+	 * @return the progress, or null if no cycle is unfinished
+	 */
+	public @Nullable CycleProgress getCycleProgress(@NotNull String worldName) {
+		String path = "cycle-progress." + worldName;
+		if (!(get(path) instanceof ConfigurationSection)) {
+			return null;
+		}
+		return new CycleProgress(getInt(path + ".region-x"), getInt(path + ".region-z"), getInt(path + ".checked"),
+				getInt(path + ".regions-deleted"), getInt(path + ".chunks-deleted"));
+	}
+
+	/**
+	 * The position and statistics of an unfinished deletion cycle. Regions are checked in order of coordinates, so a
+	 * cycle resumes after the last region of the consecutive run of completed regions.
+	 */
+	public static class CycleProgress {
+
+		private final int regionX, regionZ, checked, regionsDeleted, chunksDeleted;
+
+		public CycleProgress(int regionX, int regionZ, int checked, int regionsDeleted, int chunksDeleted) {
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.checked = checked;
+			this.regionsDeleted = regionsDeleted;
+			this.chunksDeleted = chunksDeleted;
+		}
+
+		public int getRegionX() {
+			return regionX;
+		}
+
+		public int getRegionZ() {
+			return regionZ;
+		}
+
+		public int getChecked() {
+			return checked;
+		}
+
+		public int getRegionsDeleted() {
+			return regionsDeleted;
+		}
+
+		public int getChunksDeleted() {
+			return chunksDeleted;
+		}
+
+	}
+
 }
@@ -19,6 +19,7 @@ import org.bukkit.Location;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.IllegalPluginAccessException;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
@@ -114,6 +115,11 @@ public abstract class YamlData {
 		if (saveTask != null || !dirty) {
 			return;
 		}
+		if (!plugin.isEnabled()) {
+			// Plugin is being disabled, cannot schedule tasks
+			saveNow();
+			return;
+		}
 		try {
 			saveTask = new BukkitRunnable() {
 				@Override
@@ -128,13 +134,22 @@ public abstract class YamlData {
 					saveNow();
 				}
 			}.runTaskLater(plugin, 200L);
-		} catch (IllegalStateException e) {
+		} catch (IllegalStateException | IllegalPluginAccessException e) {
 			// Plugin is being disabled, cannot schedule tasks
 			saveNow();
 		}
 	}
 
-	private void saveNow() {
+	/**
+	 * Writes changes immediately rather than waiting for the scheduled save. Scheduled saves do not run once the
+	 * plugin is disabled, so this must be called when disabling.
+	 */
+	public void saveNow() {
+		if (saveTask != null) {
+			saveTask.cancel();
+			saveTask = null;
+		}
+
 		if (!this.dirty) {
 			return;
 		}